@@ -0,0 +1,140 @@
+package RelevanceFeedback;
+
+import common.CommonMethods;
+import common.DocumentVector;
+import common.TRECQuery;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the feedback hot paths, on a {@link SyntheticIndex}.<p>
+ * Each benchmark is one stage of a query, with the stages before it done at
+ * the setup: the vectors of the feedback documents, the feedback statistics,
+ * RM1, RM3, the expanded query, the KLD reranking (vectors read again each
+ * time), and reading a res file for feedback.<p>
+ * Run with: ant bench -Djmh.lib=dir-with-the-jmh-jars [-Dbench.args="JMH options"]
+ * @author dwaipayan
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FeedbackBenchmark {
+
+    @Param({"10", "20", "50"})
+    int numFeedbackDocs;
+
+    @Param({"20", "70", "200"})
+    int numFeedbackTerms;
+
+    @Param({"100", "500", "2000"})
+    int docLength;
+
+    @Param({"5000"})
+    int numDocs;
+
+    RelevanceBasedLanguageModel rblm;
+    RLM         rlm;
+    TRECQuery   query;
+    TopDocs     topDocs;
+    String[]    analyzedQuery;
+    String      resFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        File indexDir = SyntheticIndex.get(numDocs, docLength);
+        Properties prop = SyntheticIndex.properties(indexDir);
+        prop.setProperty("numFeedbackDocs", String.valueOf(numFeedbackDocs));
+        prop.setProperty("numFeedbackTerms", String.valueOf(numFeedbackTerms));
+        prop.setProperty("res.docidIndex", "true");
+        resFile = SyntheticIndex.getResFile(indexDir);
+
+        rblm = new RelevanceBasedLanguageModel(prop);
+        rlm = new RLM(rblm);
+        query = rblm.queries.get(0);
+        Query luceneQuery = rblm.trecQueryparser.getAnalyzedQuery(query);
+        topDocs = rblm.initialRetrieval(query, luceneQuery);
+        analyzedQuery = luceneQuery.toString(rblm.fieldToSearch).split(" ");
+
+        rlm.setFeedbackStats(topDocs, analyzedQuery, rblm);
+        rlm.RM3(query, topDocs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        rblm.resultWriter.close();
+        rblm.indexReader.close();
+    }
+
+    @Benchmark
+    public int getDocumentVector() throws IOException {
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        int numTerms = 0;
+        for (int i = 0; i < Math.min(numFeedbackDocs, hits.length); i++) {
+            DocumentVector dv = new DocumentVector().getDocumentVector(hits[i].doc, rblm.indexReader, rblm.termDict);
+            numTerms += dv.getNumUniqueTerms();
+        }
+        return numTerms;
+    }
+
+    @Benchmark
+    public RLM setFeedbackStats() throws IOException {
+
+        rlm.setFeedbackStats(topDocs, analyzedQuery, rblm);
+        return rlm;
+    }
+
+    @Benchmark
+    public RM3Workspace RM1() throws Exception {
+        return rlm.RM1(query, topDocs);
+    }
+
+    @Benchmark
+    public RM3Workspace RM3() throws Exception {
+        return rlm.RM3(query);
+    }
+
+    @Benchmark
+    public BooleanQuery getExpandedQuery() throws Exception {
+        return rlm.getExpandedQuery(rlm.workspace, query);
+    }
+
+    @Benchmark
+    public List<NewScore> rerankUsingRBLM() throws Exception {
+
+        // the vectors of the documents are not to be reused from the previous call
+        rlm.rerankTopDocs = null;
+        return rlm.rerankUsingRBLM(rlm.workspace, query, topDocs);
+    }
+
+    @Benchmark
+    public HashMap<String, TopDocs> readTopDocsFromFile() throws Exception {
+        return CommonMethods.readTopDocsFromFile(resFile, rblm.queries, rblm.docidIndex);
+    }
+}
@@ -0,0 +1,169 @@
+package RelevanceFeedback;
+
+import static common.CommonVariables.FIELD_BOW;
+import static common.CommonVariables.FIELD_ID;
+import common.EnglishAnalyzerWithSmartStopword;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Synthetic collection for the benchmarks: documents with Zipf distributed
+ * terms, with a few topical terms mixed in, so that the queries (made of the
+ * topical terms) have meaningful feedback documents.<p>
+ * Made once per (numDocs, docLength) under java.io.tmpdir, with the topic
+ * file, an empty stopword file and a res file of the queries next to it;
+ * reused by the later runs (and the forked JVMs of JMH).
+ * @author dwaipayan
+ */
+public class SyntheticIndex {
+
+    static final int    VOCABULARY_SIZE = 50000;
+    static final double ZIPF_EXPONENT   = 1.0;
+    static final int    NUM_TOPICS      = 50;
+    static final int    TOPIC_TERMS     = 20;
+    static final int    NUM_QUERIES     = 20;
+    static final int    NUM_HITS        = 1000;
+    static final long   SEED            = 42;
+
+    /**
+     * Returns the index for the parameters; made if not there.
+     * @param numDocs Number of documents
+     * @param docLength Average length of the documents
+     * @return The index directory
+     * @throws IOException
+     */
+    public static synchronized File get(int numDocs, int docLength) throws IOException {
+
+        File indexDir = new File(System.getProperty("java.io.tmpdir"),
+            "rf-bench-" + numDocs + "-" + docLength);
+        File complete = new File(indexDir.getPath() + ".complete");
+        if(!complete.exists()) {
+            System.out.println("Making synthetic index: " + indexDir.getPath());
+            make(indexDir, numDocs, docLength);
+            complete.createNewFile();
+        }
+        return indexDir;
+    }
+
+    /**
+     * Returns the properties of a run on the index, to be completed with the feedback parameters.
+     * @param indexDir The index directory
+     * @return The properties
+     */
+    public static Properties properties(File indexDir) {
+
+        Properties prop = new Properties();
+        prop.setProperty("indexPath", indexDir.getPath());
+        prop.setProperty("queryPath", indexDir.getPath() + ".topics.xml");
+        prop.setProperty("stopFilePath", indexDir.getPath() + ".stop");
+        prop.setProperty("resPath", indexDir.getParent() + File.separator);
+        prop.setProperty("numHits", String.valueOf(NUM_HITS));
+        prop.setProperty("similarityFunction", "2");
+        prop.setProperty("param1", "0.6");
+        prop.setProperty("rm3.queryMix", "0.6");
+        prop.setProperty("rm3.rerank", "true");
+        return prop;
+    }
+
+    /**
+     * @param indexDir The index directory
+     * @return Path of the res file of the queries
+     */
+    public static String getResFile(File indexDir) {
+        return indexDir.getPath() + ".res";
+    }
+
+    /**
+     * A term, as a string that the analyzer keeps as a single token.
+     */
+    static String term(int id) {
+
+        String consonants = "bcdfghjklmnpqrstvwz";
+        String vowels = "aeiou";
+        StringBuilder term = new StringBuilder();
+        do {
+            term.append(consonants.charAt(id % consonants.length()));
+            id /= consonants.length();
+            term.append(vowels.charAt(id % vowels.length()));
+            id /= vowels.length();
+        } while(id > 0);
+        return term.append('x').toString();
+    }
+
+    static void make(File indexDir, int numDocs, int docLength) throws IOException {
+
+        File stopFile = new File(indexDir.getPath() + ".stop");
+        new PrintWriter(stopFile).close();
+
+        Analyzer analyzer = new EnglishAnalyzerWithSmartStopword(stopFile.getPath()).setAndGetEnglishAnalyzerWithSmartStopword();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_4, analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(256);
+
+        // cumulative Zipf distribution over the vocabulary
+        double[] cumulative = new double[VOCABULARY_SIZE];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+
+        FieldType contentType = new FieldType(TextField.TYPE_NOT_STORED);
+        contentType.setStoreTermVectors(true);
+        contentType.freeze();
+
+        Random random = new Random(SEED);
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config)) {
+            StringBuilder content = new StringBuilder();
+            for (int d = 0; d < numDocs; d++) {
+                int length = docLength / 2 + random.nextInt(docLength + 1);
+                int topic = random.nextInt(NUM_TOPICS);
+                content.setLength(0);
+                for (int k = 0; k < length; k++) {
+                    int id;
+                    if(random.nextInt(10) == 0)     // a topical term
+                        id = 1000 + topic * TOPIC_TERMS + random.nextInt(TOPIC_TERMS);
+                    else {
+                        id = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                        if(id < 0)
+                            id = Math.min(-id - 1, VOCABULARY_SIZE - 1);
+                    }
+                    content.append(term(id)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new StringField(FIELD_ID, String.format("DOC-%07d", d), Field.Store.YES));
+                doc.add(new Field(FIELD_BOW, content.toString(), contentType));
+                writer.addDocument(doc);
+            }
+        }
+
+        try (PrintWriter topics = new PrintWriter(indexDir.getPath() + ".topics.xml");
+            PrintWriter res = new PrintWriter(getResFile(indexDir))) {
+            topics.println("<topics>");
+            for (int q = 0; q < NUM_QUERIES; q++) {
+                int first = 1000 + q * TOPIC_TERMS;
+                topics.println("<top><num>" + (401 + q) + "</num><title>" + term(first) + " " + term(first + 1)
+                    + " " + term(50 + q) + "</title><desc>d</desc><narr>n</narr></top>");
+                // a res file for the queries, with random documents
+                for (int rank = 0; rank < NUM_HITS; rank++)
+                    res.println((401 + q) + "\tQ0\t" + String.format("DOC-%07d", random.nextInt(numDocs))
+                        + "\t" + rank + "\t" + (NUM_HITS - rank) + "\tbench");
+            }
+            topics.println("</topics>");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package RelevanceFeedback;
+
+import common.TermDictionary;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+/**
+ * Collection probabilities, cf(w)/col-size, of the terms, for the KLD reranking.<p>
+ * Modes (property: rm3.rerank.colProbCache):<p>
+ * "none" - the cf is read from the index at every lookup;<p>
+ * "query" - read from the index once per expansion term per query, and
+ *      reused for all the documents to be reranked (default);<p>
+ * "collection" - the cf of the term dictionary, loaded at startup, is used.<p>
+ * The lookups of a query are made through a {@link Lookup}, which counts
+ * its hits (served without reading the index) and misses. Shared by all
+ * the RLMs of the index; the counters are thread safe.
+ * @author dwaipayan
+ */
+class CollectionProbabilityCache {
+
+    static final String NONE        = "none";
+    static final String QUERY       = "query";
+    static final String COLLECTION  = "collection";
+
+    String          mode;
+    TermDictionary  termDict;
+    IndexReader     indexReader;
+
+    AtomicLong      lookups;
+    AtomicLong      hits;
+
+    public CollectionProbabilityCache(TermDictionary termDict, IndexReader indexReader, String mode) {
+
+        this.termDict = termDict;
+        this.indexReader = indexReader;
+        this.mode = mode;
+        lookups = new AtomicLong();
+        hits = new AtomicLong();
+
+        if(!mode.equals(NONE) && !mode.equals(QUERY) && !mode.equals(COLLECTION)) {
+            System.err.println("Unknown rm3.rerank.colProbCache: " + mode + "; using " + QUERY);
+            this.mode = QUERY;
+        }
+    }
+
+    /**
+     * cf(w)/col-size, with the cf read from the index; the same as of the dictionary.
+     */
+    private float read(int termId) throws IOException {
+        long cf = indexReader.totalTermFreq(new Term(termDict.getField(), termDict.getTerm(termId)));
+        return (float) cf / (float) termDict.getVocSize();
+    }
+
+    /**
+     * @return A lookup for the queries of a thread
+     */
+    public Lookup newLookup() {
+        return new Lookup();
+    }
+
+    public long getLookups() {return lookups.get();}
+    public long getHits() {return hits.get();}
+
+    @Override
+    public String toString() {
+        long l = lookups.get();
+        long h = hits.get();
+        return "Collection probability cache (" + mode + "): lookups: " + l + " hits: " + h
+            + " hit rate: " + ((l == 0) ? 0 : (100.0 * h / l)) + "%";
+    }
+
+    /**
+     * The collection probabilities of the expansion terms of a query, with
+     * the per query memo of the "query" mode. Of one thread (one per RLM);
+     * its counts are added to the cache by {@link #end()}, to keep the shared
+     * counters out of the scoring loop.
+     */
+    class Lookup {
+
+        int[]       terms;
+        float[]     memo = new float[0];    // NaN till read
+        long        numLookups;
+        long        numHits;
+
+        /**
+         * Starts the lookups of a query.
+         * @param terms Term ids of the expansion terms
+         */
+        void start(int[] terms) {
+
+            this.terms = terms;
+            if(memo.length < terms.length)
+                memo = new float[terms.length];
+            Arrays.fill(memo, 0, terms.length, Float.NaN);
+        }
+
+        /**
+         * @param k Index of the expansion term
+         * @return Its collection probability
+         * @throws IOException
+         */
+        float get(int k) throws IOException {
+
+            numLookups++;
+            if(mode.equals(COLLECTION)) {
+                numHits++;
+                return termDict.getCollectionProbability(terms[k]);
+            }
+            if(mode.equals(QUERY)) {
+                if(!Float.isNaN(memo[k])) {
+                    numHits++;
+                    return memo[k];
+                }
+                return memo[k] = read(terms[k]);
+            }
+            return read(terms[k]);
+        }
+
+        /**
+         * Adds the counts of the query to the cache.
+         */
+        void end() {
+
+            lookups.addAndGet(numLookups);
+            hits.addAndGet(numHits);
+            numLookups = 0;
+            numHits = 0;
+        }
+    }
+}
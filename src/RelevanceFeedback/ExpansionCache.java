@@ -0,0 +1,266 @@
+package RelevanceFeedback;
+
+import common.IndexSidecar;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Cache of the expansion models (the expansion terms with their weights,
+ * and the feedback documents they are made from), keyed by the analyzed
+ * query with all the feedback parameters (property: expansionCache).<p>
+ * Two tiers: the most recently used entries in memory (expansionCache.size
+ * entries), and all the entries in a log file next to the index, which
+ * survives the restarts. The log is a sidecar (see {@link IndexSidecar}):
+ * it is started afresh when made from a different version of the index.<p>
+ * The same key being computed by another thread is waited for, and taken
+ * from the cache after; hence identical queries of a batch are expanded once.
+ * @author dwaipayan
+ */
+public class ExpansionCache {
+
+    static final int MAGIC = 0x52465843;        // "RFXC"
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * An expansion model.
+     */
+    public static class Entry {
+
+        int[]   feedbackDocs;   // lucene docids of the feedback documents
+        int[]   terms;          // term ids of the expansion terms
+        float[] weights;
+
+        public Entry(int[] feedbackDocs, int[] terms, float[] weights) {
+            this.feedbackDocs = feedbackDocs;
+            this.terms = terms;
+            this.weights = weights;
+        }
+    }
+
+    final int       capacity;
+    LinkedHashMap<String, Entry> memory;
+    Map<String, Long> diskOffsets = new HashMap<>();  // key to the offset of its record in the log
+    Set<String>     inFlight = new HashSet<>();      // keys being computed
+    RandomAccessFile log;
+    File            logFile;
+
+    long            memoryHits;
+    long            diskHits;
+    long            misses;
+    long            waits;
+
+    /**
+     * Opens the cache, with the entries in the log if made from this version of the index.
+     * @param indexReader The index
+     * @param field The field for feedback
+     * @param logFile The log file
+     * @param capacity Number of entries in memory
+     * @throws IOException
+     */
+    public ExpansionCache(IndexReader indexReader, String field, File logFile, int capacity) throws IOException {
+
+        this.capacity = capacity;
+        this.logFile = logFile;
+        memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ExpansionCache.this.capacity;
+            }
+        };
+
+        if(logFile.exists()) {
+            log = new RandomAccessFile(logFile, "rw");
+            if(null == IndexSidecar.readHeader(log.getChannel(), MAGIC, FORMAT_VERSION, indexReader, field)) {
+                System.out.println("Expansion cache is stale: " + logFile.getPath() + "; started afresh");
+                log.close();
+                log = null;
+            }
+            else
+                readLog();
+        }
+        if(null == log) {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile))) {
+                IndexSidecar.writeHeader(out, MAGIC, FORMAT_VERSION, indexReader, field, null);
+            }
+            log = new RandomAccessFile(logFile, "rw");
+        }
+        log.seek(log.length());
+        System.out.println("Expansion cache: " + logFile.getPath() + " with " + diskOffsets.size() + " entries");
+    }
+
+    /**
+     * Reads the offsets of the records of the log, from the current position;
+     * a partly written record at the end is cut off.
+     */
+    private void readLog() throws IOException {
+
+        long offset = log.getChannel().position();
+        long length = log.length();
+        log.seek(offset);
+        while(offset + 4 <= length) {
+            int recordLength = log.readInt();
+            if(recordLength < 0 || offset + 4 + recordLength > length)
+                break;
+            diskOffsets.put(log.readUTF(), offset);
+            offset += 4 + recordLength;
+            log.seek(offset);
+        }
+        if(offset != length) {
+            System.err.println("Expansion cache: incomplete record at the end of the log; cut off");
+            log.setLength(offset);
+        }
+    }
+
+    /**
+     * Reads a record of the log with positional reads, which do not move the
+     * file pointer that {@link #put} writes at; hence without the lock.
+     */
+    private Entry readRecord(long offset) throws IOException {
+
+        FileChannel channel = log.getChannel();
+        ByteBuffer recordLength = ByteBuffer.allocate(4);
+        readFully(channel, recordLength, offset);
+        ByteBuffer record = ByteBuffer.allocate(recordLength.getInt(0));
+        readFully(channel, record, offset + 4);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()));
+        in.readUTF();
+        int[] feedbackDocs = new int[in.readInt()];
+        for (int i = 0; i < feedbackDocs.length; i++)
+            feedbackDocs[i] = in.readInt();
+        int numTerms = in.readInt();
+        int[] terms = new int[numTerms];
+        float[] weights = new float[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            terms[i] = in.readInt();
+            weights[i] = in.readFloat();
+        }
+        return new Entry(feedbackDocs, terms, weights);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while(buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if(n < 0)
+                throw new IOException("Expansion cache: truncated record at " + position);
+        }
+    }
+
+    /**
+     * Returns the entry of a key: from the memory, else from the log. If
+     * another thread is computing the key, waits for it. On a miss, the key
+     * is taken as being computed by the caller, which has to {@link #put}
+     * it, or {@link #abandon} it if not computed. The log is read outside
+     * the lock.
+     * @param key The key
+     * @return The entry; null on a miss
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Entry get(String key) throws IOException, InterruptedException {
+
+        long offset;
+        synchronized(this) {
+            boolean waited = false;
+            while(true) {
+                Entry entry = memory.get(key);
+                if(null != entry) {
+                    memoryHits++;
+                    return entry;
+                }
+                Long diskOffset = diskOffsets.get(key);
+                if(null != diskOffset) {
+                    diskHits++;
+                    offset = diskOffset;
+                    break;
+                }
+                if(!inFlight.contains(key)) {
+                    misses++;
+                    inFlight.add(key);
+                    return null;
+                }
+                if(!waited) {
+                    waits++;
+                    waited = true;
+                }
+                wait();
+            }
+        }
+
+        // the records are never rewritten once in diskOffsets
+        Entry entry = readRecord(offset);
+        synchronized(this) {
+            memory.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the entry of a key, computed after a miss by {@link #get}.
+     * @param key The key
+     * @param entry The entry
+     * @throws IOException
+     */
+    public synchronized void put(String key, Entry entry) throws IOException {
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeUTF(key);
+        record.writeInt(entry.feedbackDocs.length);
+        for (int doc : entry.feedbackDocs)
+            record.writeInt(doc);
+        record.writeInt(entry.terms.length);
+        for (int i = 0; i < entry.terms.length; i++) {
+            record.writeInt(entry.terms[i]);
+            record.writeFloat(entry.weights[i]);
+        }
+        record.close();
+
+        long offset = log.length();
+        log.seek(offset);
+        log.writeInt(recordBytes.size());
+        log.write(recordBytes.toByteArray());
+        diskOffsets.put(key, offset);
+        memory.put(key, entry);
+
+        inFlight.remove(key);
+        notifyAll();
+    }
+
+    /**
+     * Releases a key taken on a miss by {@link #get}, but not computed.
+     * @param key The key
+     */
+    public synchronized void abandon(String key) {
+
+        inFlight.remove(key);
+        notifyAll();
+    }
+
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        return "Expansion cache: memory hits: " + memoryHits + " disk hits: " + diskHits
+            + " misses: " + misses + " waited for another thread: " + waits
+            + " entries: " + diskOffsets.size();
+    }
+}
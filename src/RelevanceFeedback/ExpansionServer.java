@@ -0,0 +1,339 @@
+package RelevanceFeedback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import common.LatencyHistogram;
+import common.ResultWriter.QueryResult;
+import common.TRECQuery;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.Query;
+
+/**
+ * Long running query expansion service: the index, the analyzer and the
+ * statistics of {@link RelevanceBasedLanguageModel} are loaded once, and
+ * the queries are taken one at a time over a local HTTP endpoint.<p>
+ * GET or POST (form encoded), with the parameters query, and optionally qid,
+ * numFeedbackDocs, numFeedbackTerms and queryMix (default: as in the properties):<p>
+ * /expand - the expansion terms with their weights, one "term weight" per line;<p>
+ * /search - the ranked list (re-retrieved, or reranked with rm3.rerank) in TREC res format;<p>
+ * /stats - the latency histograms, and the numbers of timeouts and errors.<p>
+ * The queries are processed by numThreads workers, each with its own RLM;
+ * a query not done within server.timeout ms gets a 503, and a query finding
+ * server.queueSize queries waiting for the workers gets a 503 at once, so
+ * that the queries bound to time out do not pile up behind the slow ones.
+ * numFeedbackDocs is to be within 1 and numHits, numFeedbackTerms within 1
+ * and server.maxFeedbackTerms, and queryMix within 0 and 1; else a 400.
+ * Properties (in addition to those of RelevanceBasedLanguageModel, without queryPath):
+ * server.host (default 127.0.0.1), server.port (default 8080), server.timeout (default 10000),
+ * server.queueSize (default 4*numThreads), server.maxFeedbackTerms (default 1000).
+ * @author dwaipayan
+ */
+public class ExpansionServer {
+
+    RelevanceBasedLanguageModel rblm;
+    HttpServer      server;
+    ExecutorService handlers;           // threads of the HTTP exchanges
+    ExecutorService workers;            // threads processing the queries
+    final ThreadLocal<RLM> workerRLM = new ThreadLocal<>();
+    long            timeout;            // in ms
+    int             maxFeedbackTerms;
+
+    LatencyHistogram expandLatency = new LatencyHistogram();
+    LatencyHistogram searchLatency = new LatencyHistogram();
+    AtomicLong      timeouts = new AtomicLong();
+    AtomicLong      errors = new AtomicLong();
+    AtomicLong      rejections = new AtomicLong();
+    AtomicLong      queryCount = new AtomicLong();
+
+    public ExpansionServer(Properties prop) throws Exception {
+
+        rblm = new RelevanceBasedLanguageModel(prop);
+        int numThreads = Math.max(1, rblm.numThreads);
+        timeout = Long.parseLong(prop.getProperty("server.timeout", "10000"));
+        maxFeedbackTerms = Integer.parseInt(prop.getProperty("server.maxFeedbackTerms", "1000"));
+        int queueSize = Integer.parseInt(prop.getProperty("server.queueSize", String.valueOf(4 * numThreads)));
+
+        // a full queue rejects the query, instead of queueing it behind the ones bound to time out
+        workers = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize));
+        // the handlers mostly wait for the workers
+        handlers = Executors.newFixedThreadPool(2 * numThreads + 2);
+        server = HttpServer.create(new InetSocketAddress(prop.getProperty("server.host", "127.0.0.1"),
+            Integer.parseInt(prop.getProperty("server.port", "8080"))), 0);
+        server.createContext("/expand", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleQuery(exchange, false);
+            }
+        });
+        server.createContext("/search", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleQuery(exchange, true);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, getStats());
+            }
+        });
+        server.setExecutor(handlers);
+    }
+
+    /**
+     * Starts taking the queries.
+     */
+    public void start() {
+
+        server.start();
+        System.out.println("Listening on: " + server.getAddress() + " with " +
+            Math.max(1, rblm.numThreads) + " workers; timeout: " + timeout + " ms");
+    }
+
+    /**
+     * Stops taking the queries, and closes the index.
+     * @throws IOException
+     */
+    public void stop() throws IOException {
+
+        server.stop(0);
+        handlers.shutdownNow();
+        workers.shutdownNow();
+        System.out.print(getStats());
+        if(null != rblm.expansionCache) {
+            rblm.expansionCache.close();
+            System.out.println(rblm.expansionCache);
+        }
+        if(null != rblm.prefetcher)
+            rblm.prefetcher.close();
+        if(null != rblm.segmentSearcher)
+            rblm.segmentSearcher.close();
+        rblm.indexReader.close();
+    }
+
+    /**
+     * The latency histograms, and the numbers of timeouts and errors.
+     */
+    String getStats() {
+
+        return "expand: " + expandLatency + "\n"
+            + "search: " + searchLatency + "\n"
+            + "timeouts: " + timeouts.get() + " rejections: " + rejections.get() + " errors: " + errors.get() + "\n";
+    }
+
+    /**
+     * Processes the query of an exchange with a worker, within the timeout, and sends the result.
+     * @param exchange The exchange
+     * @param ranked true for the ranked list; false for the expansion terms
+     * @throws IOException
+     */
+    private void handleQuery(HttpExchange exchange, final boolean ranked) throws IOException {
+
+        long start = System.nanoTime();
+        int status;
+        String response;
+
+        try {
+            Map<String, String> params = getParameters(exchange);
+            String queryText = params.get("query");
+            if(null == queryText || queryText.trim().isEmpty()) {
+                send(exchange, 400, "Missing parameter: query\n");
+                return;
+            }
+            final TRECQuery query = new TRECQuery();
+            query.qid = params.containsKey("qid") ? params.get("qid") : String.valueOf(queryCount.incrementAndGet());
+            query.qtitle = queryText;
+            final int numFeedbackDocs = getParameter(params, "numFeedbackDocs", rblm.numFeedbackDocs, rblm.numHits);
+            final int numFeedbackTerms = getParameter(params, "numFeedbackTerms", rblm.numFeedbackTerms, maxFeedbackTerms);
+            final float queryMix = params.containsKey("queryMix") ?
+                Float.parseFloat(params.get("queryMix")) : rblm.QMIX;
+            if(!(queryMix >= 0 && queryMix <= 1))
+                throw new IllegalArgumentException("queryMix: " + queryMix + " not within 0 and 1");
+
+            Future<String> future = workers.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return process(query, ranked, numFeedbackDocs, numFeedbackTerms, queryMix);
+                }
+            });
+            try {
+                response = future.get(timeout, TimeUnit.MILLISECONDS);
+                status = 200;
+            } catch (TimeoutException ex) {
+                // not started yet: it will not be; else the worker finishes it, and the result is dropped;
+                // not interrupted: an interrupt closes the NIO channels of the index, shared by all
+                future.cancel(false);
+                timeouts.incrementAndGet();
+                status = 503;
+                response = "Timed out after " + timeout + " ms\n";
+            }
+        } catch (RejectedExecutionException ex) {
+            rejections.incrementAndGet();
+            status = 503;
+            response = "Too many queries waiting\n";
+        } catch (IllegalArgumentException ex) {
+            // a malformed number, a value out of range, or a malformed % escape
+            status = 400;
+            response = "Bad parameter: " + ex.getMessage() + "\n";
+        } catch (ExecutionException | InterruptedException ex) {
+            errors.incrementAndGet();
+            Throwable cause = (ex instanceof ExecutionException) ? ex.getCause() : ex;
+            System.err.println("Error in the query: " + cause);
+            status = 500;
+            response = "Error: " + cause + "\n";
+        }
+
+        send(exchange, status, response);
+        if(200 == status)
+            (ranked ? searchLatency : expandLatency).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Processes a query as RelevanceBasedLanguageModel does (with the expansion
+     * cache, if enabled), with the RLM of the worker.
+     * @param query The query
+     * @param ranked true for the ranked list; false for the expansion terms
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of feedback terms
+     * @param queryMix rm3.queryMix
+     * @return The expansion terms, or the ranked list
+     * @throws Exception
+     */
+    private String process(TRECQuery query, boolean ranked,
+        int numFeedbackDocs, int numFeedbackTerms, float queryMix) throws Exception {
+
+        RLM rlm = workerRLM.get();
+        if(null == rlm) {
+            rlm = new RLM(rblm);
+            workerRLM.set(rlm);
+        }
+        rlm.numFeedbackDocs = numFeedbackDocs;
+        rlm.numFeedbackTerms = numFeedbackTerms;
+        rlm.QMIX = queryMix;
+
+        Query luceneQuery;
+        // the query parser is not thread safe
+        synchronized(rblm.trecQueryparser) {
+            luceneQuery = rblm.trecQueryparser.getAnalyzedQuery(query);
+        }
+
+        StringBuilder response = new StringBuilder();
+        if(ranked) {
+            QueryResult result = rblm.retrieve(query, luceneQuery, rlm);
+            if(null != result)
+                result.format(response);
+        }
+        else {
+            RM3Workspace topM_PwGivenR = rblm.expand(query, luceneQuery, null, rlm);
+            for (int i = 0; null != topM_PwGivenR && i < topM_PwGivenR.size(); i++)
+                response.append(rblm.termDict.getTerm(topM_PwGivenR.getTerm(i))).append("\t")
+                    .append(topM_PwGivenR.getWeight(i)).append("\n");
+        }
+        return response.toString();
+    }
+
+    /**
+     * Returns an integer parameter, within 1 and max.
+     * @throws IllegalArgumentException If not a number, or out of the range
+     */
+    private static int getParameter(Map<String, String> params, String name, int defaultValue, int max) {
+
+        if(!params.containsKey(name))
+            return defaultValue;
+        int value = Integer.parseInt(params.get(name));
+        if(value < 1 || value > max)
+            throw new IllegalArgumentException(name + ": " + value + " not within 1 and " + max);
+        return value;
+    }
+
+    /**
+     * Returns the parameters of the query string, and of the body if a POST.
+     */
+    private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+
+        Map<String, String> params = new HashMap<>();
+        addParameters(exchange.getRequestURI().getRawQuery(), params);
+        if("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while((n = in.read(buffer)) != -1)
+                    body.write(buffer, 0, n);
+            }
+            addParameters(body.toString("UTF-8"), params);
+        }
+        return params;
+    }
+
+    private static void addParameters(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+
+        if(null == encoded || encoded.isEmpty())
+            return;
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            if(eq > 0)
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                    URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String response) throws IOException {
+
+        byte[] bytes = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if(1 != args.length) {
+            System.out.println("Usage: java RelevanceFeedback.ExpansionServer <properties-file>\n"
+                + "The properties of RelevanceBasedLanguageModel (queryPath and resPath not needed), and\n"
+                + "[server.host]: default-127.0.0.1; [server.port]: default-8080; [server.timeout]: default-10000 ms;\n"
+                + "[server.queueSize]: default-4*numThreads; [server.maxFeedbackTerms]: default-1000");
+            System.exit(1);
+        }
+        Properties prop = new Properties();
+        prop.load(new FileReader(args[0]));
+        final ExpansionServer expansionServer = new ExpansionServer(prop);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    expansionServer.stop();
+                } catch (IOException ex) {
+                    System.err.println("Error in stopping: " + ex);
+                }
+            }
+        });
+        expansionServer.start();
+    }
+}
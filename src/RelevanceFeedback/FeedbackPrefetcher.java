@@ -0,0 +1,191 @@
+package RelevanceFeedback;
+
+import common.DocumentVectorCache;
+import common.TRECQuery;
+import common.TRECQueryParser;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+/**
+ * Read-ahead of the feedback documents of the upcoming queries (property:
+ * feedback.readAhead): while a query is processed, a background thread
+ * retrieves the top numFeedbackDocs documents (the largest of the sweep, if
+ * any) of each of the next feedback.readAhead queries, and reads their
+ * vectors, in docid order, into the {@link DocumentVectorCache}; the query
+ * takes them from the cache then. A query whose processing has started (see
+ * {@link #started}) by the time its turn comes is skipped: it reads its
+ * documents itself. With a pool of workers, the queries submitted to the
+ * pool but not started yet are still read ahead.
+ * Only warms the cache: the results are the same with or without it.
+ * @author dwaipayan
+ */
+public class FeedbackPrefetcher {
+
+    RelevanceBasedLanguageModel rblm;
+    int             numQueries;         // number of queries read ahead
+    int             numDocs;            // number of feedback documents read per query
+    ExecutorService executor;
+    TRECQueryParser queryParser;        // of the read-ahead thread; the one of rblm is not thread safe
+    RLM             rlm;                // of the read-ahead thread, for reading the vectors
+
+    /**
+     * Flags of the queries submitted and not started yet, set when started.
+     */
+    ConcurrentHashMap<TRECQuery, AtomicBoolean> notStarted = new ConcurrentHashMap<>();
+    AtomicLong      skippedQueries = new AtomicLong();
+    AtomicLong      prefetchedQueries = new AtomicLong();
+    AtomicLong      prefetchedDocs = new AtomicLong();
+    AtomicLong      failures = new AtomicLong();
+
+    /**
+     * @param rblm The main class; its document vector cache is warmed
+     * @param numQueries Number of queries to be read ahead of the one processed
+     * @throws Exception
+     */
+    public FeedbackPrefetcher(RelevanceBasedLanguageModel rblm, int numQueries) throws Exception {
+
+        this.rblm = rblm;
+        this.numQueries = numQueries;
+        numDocs = (null != rblm.sweep) ? rblm.sweep.maxFeedbackDocs : rblm.numFeedbackDocs;
+        queryParser = new TRECQueryParser(rblm.queryPath, rblm.analyzer);
+        rlm = new RLM(rblm);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "feedback-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        System.out.println("Feedback read-ahead: " + numQueries + " queries of " + numDocs + " documents");
+    }
+
+    /**
+     * Returns the queries, with the feedback documents of the next numQueries
+     * queries read in the background as each query is taken.
+     * @param queries The queries
+     * @return The same queries, in the same order
+     */
+    public Iterable<TRECQuery> readAhead(final Iterable<TRECQuery> queries) {
+
+        return new Iterable<TRECQuery>() {
+            @Override
+            public Iterator<TRECQuery> iterator() {
+                final Iterator<TRECQuery> source = queries.iterator();
+                final LinkedList<TRECQuery> ahead = new LinkedList<>();
+                return new Iterator<TRECQuery>() {
+                    @Override
+                    public boolean hasNext() {
+                        fill();
+                        return !ahead.isEmpty();
+                    }
+
+                    @Override
+                    public TRECQuery next() {
+                        fill();
+                        return ahead.removeFirst();
+                    }
+
+                    /**
+                     * Keeps the next query, and numQueries after it, taken from the source and submitted.
+                     */
+                    private void fill() {
+                        while(ahead.size() <= numQueries && source.hasNext()) {
+                            TRECQuery query = source.next();
+                            ahead.add(query);
+                            submit(query);
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private void submit(final TRECQuery query) {
+
+        final AtomicBoolean started = new AtomicBoolean();
+        notStarted.put(query, started);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if(started.get()) {
+                    // being processed already
+                    skippedQueries.incrementAndGet();
+                    return;
+                }
+                try {
+                    prefetch(query);
+                } catch (Exception ex) {
+                    // the query reads its documents itself then
+                    failures.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks a query as started, by the thread processing it; its documents
+     * are not read ahead any more.
+     * @param query The query
+     */
+    public void started(TRECQuery query) {
+
+        AtomicBoolean started = notStarted.remove(query);
+        if(null != started)
+            started.set(true);
+    }
+
+    /**
+     * Reads the vectors of the feedback documents of a query into the cache.
+     */
+    private void prefetch(TRECQuery query) throws Exception {
+
+        TopDocs topDocs;
+        if(rblm.feedbackFromFile == true)
+            topDocs = rblm.allTopDocsFromFileHashMap.get(query.qid);
+        else {
+            Query luceneQuery = queryParser.getAnalyzedQuery(query);
+            TopScoreDocCollector collector = TopScoreDocCollector.create(numDocs, true);
+            rblm.indexSearcher.search(luceneQuery, collector);
+            topDocs = collector.topDocs();
+        }
+        if(null == topDocs)
+            return;
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        int[] docs = new int[Math.min(numDocs, hits.length)];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = hits[i].doc;
+        rlm.readDocumentVectors(docs);
+        prefetchedQueries.incrementAndGet();
+        prefetchedDocs.addAndGet(docs.length);
+    }
+
+    /**
+     * Stops the read-ahead; the queries not read yet are dropped.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "Feedback read-ahead: queries: " + prefetchedQueries.get() + " documents: " + prefetchedDocs.get()
+            + " skipped (already started): " + skippedQueries.get() + " failures: " + failures.get();
+    }
+}
@@ -0,0 +1,185 @@
+package RelevanceFeedback;
+
+import common.DocumentVector;
+import common.TermDictionary;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Approximate RM (properties: rm3.approx.docTerms, rm3.approx.minDf): the
+ * candidate terms of RM1 are pruned before the estimation;<p>
+ * each feedback document keeps only its top docTerms terms by tf*idf, and
+ * the terms in less than minDf feedback documents are dropped. The query
+ * terms are never pruned, hence P(Q|d) is the same as of the exact RM; the
+ * length of the documents, and the cf of the kept terms for smoothing, are
+ * those of the full vectors.<p>
+ * With rm3.approx.report, the exact RM3 is also estimated, and compared with
+ * the approximate one in a {@link Report}.<p>
+ * One per {@link RLM}; not thread safe.
+ * @author dwaipayan
+ */
+public class FeedbackPruning {
+
+    int             docTerms;       // terms kept per feedback document; 0 for all
+    int             minDf;          // minimum number of feedback documents of a term
+    Report          report;         // null if not comparing with the exact RM
+
+    /**
+     * The pruned vocabulary and matrix of the feedback documents.
+     */
+    FeedbackVocabulary  termStats = new FeedbackVocabulary();
+    FeedbackMatrix      matrix = new FeedbackMatrix();
+    /**
+     * True if termStats and matrix are of the current feedback documents.
+     */
+    boolean         pruned;
+    /**
+     * RM1 and RM3 of the exact RM, for the report.
+     */
+    RM3Workspace    exactWorkspace = new RM3Workspace();
+
+    float[]         scores = new float[0];  // tf*idf of the terms of a document
+    float[]         sorted = new float[0];
+
+    public FeedbackPruning(int docTerms, int minDf, Report report) {
+
+        this.docTerms = docTerms;
+        this.minDf = minDf;
+        this.report = report;
+    }
+
+    /**
+     * Sets {@link #termStats} and {@link #matrix} with the pruned feedback documents.
+     * @param docVectors The feedback documents
+     * @param exactTermStats The vocabulary of the full feedback documents
+     * @param queryTerms Term ids of the query terms
+     * @param termDict The dictionary, for the idf
+     */
+    void prune(List<DocumentVector> docVectors, FeedbackVocabulary exactTermStats,
+        int[] queryTerms, TermDictionary termDict) {
+
+        termStats.clear();
+        matrix.clear();
+
+        for (DocumentVector docV : docVectors) {
+            // for each feedback document
+            int numTerms = docV.numUniqueTerms;
+
+            // ++ the tf*idf of the docTerms-th best term of the document
+            float threshold = Float.NEGATIVE_INFINITY;
+            int numAtThreshold = Integer.MAX_VALUE;     // ties at the threshold to be kept
+            if(docTerms > 0 && numTerms > docTerms) {
+                if(scores.length < numTerms) {
+                    scores = new float[ArrayUtil.oversize(numTerms, 4)];
+                    sorted = new float[scores.length];
+                }
+                for (int k = 0; k < numTerms; k++)
+                    scores[k] = (float) (docV.termFreqs[k] * termDict.getIDF(docV.termIds[k]));
+                System.arraycopy(scores, 0, sorted, 0, numTerms);
+                Arrays.sort(sorted, 0, numTerms);
+                threshold = sorted[numTerms - docTerms];
+                numAtThreshold = 0;
+                for (int k = numTerms - docTerms; k < numTerms && sorted[k] == threshold; k++)
+                    numAtThreshold++;
+            }
+            // --
+
+            for (int k = 0; k < numTerms; k++) {
+                // for each term of that feedback document
+                int termId = docV.termIds[k];
+                if(!isQueryTerm(termId, queryTerms)) {
+                    if(threshold != Float.NEGATIVE_INFINITY) {
+                        if(scores[k] < threshold)
+                            continue;
+                        if(scores[k] == threshold && numAtThreshold-- <= 0)
+                            continue;
+                    }
+                    if(exactTermStats.getDF(exactTermStats.getLocalId(termId)) < minDf)
+                        continue;
+                }
+                matrix.add(termStats.add(termId, docV.termFreqs[k]), docV.termFreqs[k]);
+            }
+            matrix.endRow(docV.getDocSize());
+        }
+
+        // the statistics of the full documents, for smoothing
+        for (int localId = 0; localId < termStats.size(); localId++) {
+            int exactId = exactTermStats.getLocalId(termStats.getTermId(localId));
+            termStats.cf[localId] = exactTermStats.getCF(exactId);
+            termStats.df[localId] = exactTermStats.getDF(exactId);
+        }
+        pruned = true;
+    }
+
+    private static boolean isQueryTerm(int termId, int[] queryTerms) {
+
+        for (int qTerm : queryTerms)
+            if(qTerm == termId)
+                return true;
+        return false;
+    }
+
+    /**
+     * Comparison of the approximate expansion models with the exact ones,
+     * over all the queries (and configurations) run; shared by the RLMs.
+     */
+    public static class Report {
+
+        long        numModels;
+        long        exactTerms;     // candidate terms of RM1, summed over the models
+        long        prunedTerms;
+        double      sumOverlap;
+        double      minOverlap = 1;
+        double      sumL1;
+        double      maxL1;
+
+        /**
+         * Records an approximate expansion model against the exact one.<p>
+         * overlap@T - the fraction of the exact expansion terms which are in the approximate model;<p>
+         * L1 - \sum_w |P_exact(w|R) - P_approx(w|R)| over the terms of both the models.
+         * @param qid The query
+         * @param exact The exact RM3
+         * @param approx The approximate RM3
+         * @param numExactTerms Number of candidate terms of the exact RM1
+         * @param numPrunedTerms Number of candidate terms of the approximate RM1
+         */
+        public synchronized void record(String qid, RM3Workspace exact, RM3Workspace approx,
+            int numExactTerms, int numPrunedTerms) {
+
+            int common = 0;
+            double l1 = 0;
+            for (int i = 0; i < exact.size(); i++) {
+                int j = approx.indexOf(exact.getTerm(i));
+                if(-1 != j) {
+                    common++;
+                    l1 += Math.abs(exact.getWeight(i) - approx.getWeight(j));
+                }
+                else
+                    l1 += exact.getWeight(i);
+            }
+            for (int j = 0; j < approx.size(); j++)
+                if(-1 == exact.indexOf(approx.getTerm(j)))
+                    l1 += approx.getWeight(j);
+            double overlap = (exact.size() == 0) ? 1 : (double) common / exact.size();
+
+            numModels++;
+            exactTerms += numExactTerms;
+            prunedTerms += numPrunedTerms;
+            sumOverlap += overlap;
+            minOverlap = Math.min(minOverlap, overlap);
+            sumL1 += l1;
+            maxL1 = Math.max(maxL1, l1);
+            System.out.println(qid + ": Approximate RM: candidate terms: " + numPrunedTerms + "/" + numExactTerms
+                + " overlap@" + exact.size() + ": " + overlap + " L1: " + l1);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Approximate RM: models: " + numModels
+                + " candidate terms: " + prunedTerms + "/" + exactTerms
+                + " overlap@T: mean " + ((numModels == 0) ? 0 : sumOverlap / numModels) + " min " + minOverlap
+                + " L1: mean " + ((numModels == 0) ? 0 : sumL1 / numModels) + " max " + maxL1;
+        }
+    }
+}
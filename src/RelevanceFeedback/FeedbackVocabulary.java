@@ -0,0 +1,131 @@
+package RelevanceFeedback;
+
+import java.util.Arrays;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Vocabulary of the feedback documents of a query.<p>
+ * Maps the term ids of the {@link common.TermDictionary} into dense local ids
+ * [0, size()), in order of first appearance, and accumulates the cf and df
+ * of each term in the feedback documents in primitive arrays.<p>
+ * Meant to be reused across the queries by {@link #clear()}; not thread safe.
+ * @author dwaipayan
+ */
+class FeedbackVocabulary {
+
+    /**
+     * Term id of each local id.
+     */
+    int[]   termIds;
+    /**
+     * cf of each local id in the feedback documents (i.e. sum of tf).
+     */
+    long[]  cf;
+    /**
+     * df of each local id in the feedback documents.
+     */
+    int[]   df;
+    /**
+     * Number of terms in the vocabulary.
+     */
+    int     size;
+
+    /**
+     * Open addressing hash table of local ids, keyed by the term id; -1 for empty slot.
+     */
+    int[]   hashTable;
+    int     hashMask;
+
+    public FeedbackVocabulary() {
+        termIds = new int[1024];
+        cf = new long[1024];
+        df = new int[1024];
+        hashTable = new int[2048];
+        hashMask = hashTable.length - 1;
+        Arrays.fill(hashTable, -1);
+    }
+
+    /**
+     * Empties the vocabulary, keeping the allocated arrays.
+     */
+    public void clear() {
+        Arrays.fill(hashTable, -1);
+        size = 0;
+    }
+
+    public int size() {return size;}
+    public int getTermId(int localId) {return termIds[localId];}
+    public long getCF(int localId) {return cf[localId];}
+    public int getDF(int localId) {return df[localId];}
+
+    private static int hash(int termId) {
+        int h = termId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the local id of a term.
+     * @param termId The term id
+     * @return The local id; -1 if the term is not in the vocabulary
+     */
+    public int getLocalId(int termId) {
+
+        int slot = hash(termId) & hashMask;
+        int localId;
+        while((localId = hashTable[slot]) != -1) {
+            if(termIds[localId] == termId)
+                return localId;
+            slot = (slot + 1) & hashMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an occurrence of a term in a feedback document.
+     * @param termId The term id
+     * @param tf tf of the term in the feedback document
+     * @return The local id of the term
+     */
+    public int add(int termId, long tf) {
+
+        int slot = hash(termId) & hashMask;
+        int localId;
+        while((localId = hashTable[slot]) != -1) {
+            if(termIds[localId] == termId) {
+                cf[localId] += tf;
+                df[localId]++;
+                return localId;
+            }
+            slot = (slot + 1) & hashMask;
+        }
+
+        localId = size++;
+        if(localId == termIds.length) {
+            int newLength = ArrayUtil.oversize(size, 8);
+            termIds = Arrays.copyOf(termIds, newLength);
+            cf = Arrays.copyOf(cf, newLength);
+            df = Arrays.copyOf(df, newLength);
+        }
+        termIds[localId] = termId;
+        cf[localId] = tf;
+        df[localId] = 1;
+        hashTable[slot] = localId;
+
+        if(2 * size > hashTable.length)
+            rehash();
+        return localId;
+    }
+
+    private void rehash() {
+
+        hashTable = new int[2 * hashTable.length];
+        hashMask = hashTable.length - 1;
+        Arrays.fill(hashTable, -1);
+        for (int localId = 0; localId < size; localId++) {
+            int slot = hash(termIds[localId]) & hashMask;
+            while(hashTable[slot] != -1)
+                slot = (slot + 1) & hashMask;
+            hashTable[slot] = localId;
+        }
+    }
+}
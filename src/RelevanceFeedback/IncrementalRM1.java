@@ -0,0 +1,186 @@
+package RelevanceFeedback;
+
+import common.DocumentVector;
+import java.util.Arrays;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * RM1 of the top D feedback documents, for increasing D, adding only the
+ * new documents each time (property: sweep.incremental).<p>
+ * RM1 is \sum_d P(w|d) P(Q|d), but P(Q|d) of a document already added
+ * changes with D: the query terms are smoothed with their cf in the
+ * feedback documents. Hence the product over the k query terms
+ * P(Q|d) = \prod_q (lambda r(q,d) + c(q)), r(q,d) = tf(q,d)/|d|,
+ * c(q) = (1-lambda) cf(q)/vocSize, is expanded over the subsets S of the
+ * query terms: \sum_S \prod_{q in S} c(q) \prod_{q not in S} lambda r(q,d).
+ * For each feedback term w and subset S,
+ * B(w,S) = \sum_d r(w,d) \prod_{q not in S} r(q,d) is accumulated as the
+ * documents are added; it depends neither on D nor on lambda. At any depth,
+ * for any lambda, <p>
+ * P(w|R) = lambda \sum_S coef(S) B(w,S) + (1-lambda) cf(w)/vocSize \sum_S coef(S) C(S), <p>
+ * with coef(S) = \prod_{q in S} c(q) lambda^(k-|S|), and C(S) the sum over
+ * the documents of \prod_{q not in S} r(q,d). A query term not in the
+ * feedback documents is left out of P(Q|d) (taken as 1), as in
+ * {@link RLM#setQueryLikelihoods}.<p>
+ * The same RM1 as RLM.RM1(), up to the rounding (the sums are made in
+ * double). 2^k accumulators per term: at most {@link #MAX_QUERY_TERMS}
+ * query terms, and at most {@link #MAX_ACCUMULATOR_SIZE} accumulators in all,
+ * bounded by the terms of the feedback documents (see {@link #supports}).
+ * Meant to be reused across the queries; not thread safe.
+ * @author dwaipayan
+ */
+public class IncrementalRM1 {
+
+    static final int MAX_QUERY_TERMS = 8;
+    /**
+     * Memory budget of the accumulator, in doubles (32 MB); it is kept across the queries.
+     */
+    static final int MAX_ACCUMULATOR_SIZE = 1 << 22;
+
+    long                vocSize;
+
+    int[]               queryTerms;     // term ids of the query terms (-1 if not in the collection)
+    int                 numSubsets;     // 2^(number of query terms)
+    /**
+     * cf and df of the terms of the documents added, with their local ids.
+     */
+    FeedbackVocabulary  vocabulary = new FeedbackVocabulary();
+    /**
+     * B(w,S), at [localId * numSubsets + S].
+     */
+    double[]            accumulator = new double[0];
+    /**
+     * C(S).
+     */
+    double[]            sumProducts = new double[0];
+    int                 numDocs;        // number of documents added
+
+    double[]            products = new double[0];   // \prod_{q not in S} r(q,d) of a document
+    int[]               nonZero = new int[0];       // the S with non-zero products
+    double[]            coef = new double[0];
+
+    public IncrementalRM1(long vocSize) {
+        this.vocSize = vocSize;
+    }
+
+    /**
+     * The number of the terms of the feedback documents is bounded by the sum
+     * of their unique terms; with 2^k accumulators per term, it has to fit the budget.
+     * @param numQueryTerms Number of the query terms
+     * @param docVectors The vectors of the feedback documents (null for a document without vector)
+     * @return true if the query can be estimated incrementally
+     */
+    public static boolean supports(int numQueryTerms, DocumentVector[] docVectors) {
+
+        if(numQueryTerms > MAX_QUERY_TERMS)
+            return false;
+        long maxTerms = 0;
+        for (DocumentVector docV : docVectors) {
+            if(null != docV)
+                maxTerms += docV.numUniqueTerms;
+        }
+        return (maxTerms << numQueryTerms) <= MAX_ACCUMULATOR_SIZE;
+    }
+
+    /**
+     * Starts the RM1 of a query, with no document.
+     * @param queryTerms Term ids of the query terms, one per occurrence (-1 if not in the collection)
+     */
+    public void start(int[] queryTerms) {
+
+        this.queryTerms = queryTerms;
+        numSubsets = 1 << queryTerms.length;
+        if(sumProducts.length < numSubsets) {
+            sumProducts = new double[numSubsets];
+            products = new double[numSubsets];
+            nonZero = new int[numSubsets];
+            coef = new double[numSubsets];
+        }
+        Arrays.fill(sumProducts, 0, numSubsets, 0);
+        vocabulary.clear();
+        numDocs = 0;
+    }
+
+    /**
+     * Adds the next feedback document.
+     * @param docV The vector of the document; null (without term vector) is skipped
+     */
+    public void add(DocumentVector docV) {
+
+        if(null == docV)
+            return;
+        numDocs++;
+        double docSize = docV.getDocSize();
+
+        // ++ \prod_{q not in S} r(q,d) of each subset S
+        int numNonZero = 0;
+        for (int S = 0; S < numSubsets; S++) {
+            double product = 1;
+            for (int j = 0; j < queryTerms.length && product != 0; j++) {
+                if((S & (1 << j)) == 0)
+                    product *= (queryTerms[j] < 0) ? 0 : docV.getTf(queryTerms[j]) / docSize;
+            }
+            products[S] = product;
+            sumProducts[S] += product;
+            if(product != 0)
+                nonZero[numNonZero++] = S;
+        }
+        // --
+
+        for (int k = 0; k < docV.numUniqueTerms; k++) {
+            // for each term of the document
+            int localId = vocabulary.add(docV.termIds[k], docV.termFreqs[k]);
+            if((localId + 1) * numSubsets > accumulator.length)
+                accumulator = Arrays.copyOf(accumulator,
+                    Math.min(ArrayUtil.oversize((localId + 1) * numSubsets, 8), MAX_ACCUMULATOR_SIZE));
+            if(vocabulary.getDF(localId) == 1)      // a new term; its row may be of the last query
+                Arrays.fill(accumulator, localId * numSubsets, (localId + 1) * numSubsets, 0);
+
+            double r = docV.termFreqs[k] / docSize;
+            int base = localId * numSubsets;
+            for (int i = 0; i < numNonZero; i++)
+                accumulator[base + nonZero[i]] += r * products[nonZero[i]];
+        }
+    }
+
+    /**
+     * @return Number of documents added
+     */
+    public int getNumDocs() {return numDocs;}
+
+    /**
+     * Sets the RM1 of the documents added so far into a workspace, as RLM.RM1() does.
+     * @param mixingLambda Weight of the document model in smoothing
+     * @param workspace The workspace
+     */
+    public void estimate(float mixingLambda, RM3Workspace workspace) {
+
+        // ++ coef(S); a query term not in the documents is taken as 1
+        double[] c = new double[queryTerms.length];
+        for (int j = 0; j < queryTerms.length; j++) {
+            int localId = (queryTerms[j] < 0) ? -1 : vocabulary.getLocalId(queryTerms[j]);
+            c[j] = (localId == -1) ? 1 : (1.0f-mixingLambda)*(double)vocabulary.getCF(localId)/(double)vocSize;
+        }
+        double sum_P_Q_Given_D = 0;
+        for (int S = 0; S < numSubsets; S++) {
+            double product = 1;
+            for (int j = 0; j < queryTerms.length; j++)
+                product *= ((S & (1 << j)) != 0) ? c[j] : mixingLambda;
+            coef[S] = product;
+            sum_P_Q_Given_D += product * sumProducts[S];
+        }
+        // --
+
+        int numTerms = vocabulary.size();
+        workspace.ensureRM1Capacity(numTerms);
+        for (int localId = 0; localId < numTerms; localId++) {
+            int base = localId * numSubsets;
+            double documentPart = 0;
+            for (int S = 0; S < numSubsets; S++)
+                documentPart += coef[S] * accumulator[base + S];
+            double smoothing = (1.0f-mixingLambda)*((double)vocabulary.getCF(localId)/(double)vocSize);
+            workspace.p_w_given_R[localId] = (float) (mixingLambda * documentPart + smoothing * sum_P_Q_Given_D);
+            workspace.rm1TermIds[localId] = vocabulary.getTermId(localId);
+        }
+    }
+}
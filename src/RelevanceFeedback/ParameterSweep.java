@@ -0,0 +1,215 @@
+package RelevanceFeedback;
+
+import common.DocumentVector;
+import common.TRECQuery;
+import common.ResultWriter.QueryResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Runs a grid of feedback parameters in a single pass over the queries,
+ * writing one res file per configuration.<p>
+ * Properties (comma separated lists; each defaults to the single value of the run):<p>
+ * sweep.numFeedbackDocs - D; sweep.numFeedbackTerms - T;
+ * sweep.queryMix - rm3.queryMix; sweep.lambda - the mixing weight of the
+ * feedback model (the similarity function keeps param1).<p>
+ * For each query, the initial retrieval is done once and the vectors of the
+ * top max(D) documents are read once; the feedback statistics are made for
+ * each D, P(Q|d) and RM1 for each (D, lambda), and RM3 for each (T, QMIX)
+ * from that RM1.<p>
+ * With sweep.incremental, RM1 is estimated by {@link IncrementalRM1}:
+ * the documents are added once, in the order of the retrieval, and the RM1
+ * of each (D, lambda) is taken from the accumulators as the D-th document
+ * is reached; the same RM1 up to the rounding. A query over its limits
+ * (query terms, accumulator memory) is estimated afresh.
+ * @author dwaipayan
+ */
+public class ParameterSweep {
+
+    RelevanceBasedLanguageModel rblm;
+
+    int[]       numFeedbackDocs;
+    int[]       numFeedbackTerms;
+    float[]     queryMix;
+    float[]     mixingLambda;
+    int         maxFeedbackDocs;
+    boolean     incremental;    // RM1 by IncrementalRM1
+
+    /**
+     * Run names of the configurations, in the order of the res files:
+     * D, lambda, T, QMIX, the last one varying fastest.
+     */
+    List<String> runNames;
+
+    /**
+     * Returns true if any of the sweep properties is set.
+     * @param prop The properties
+     * @return true for a sweep
+     */
+    public static boolean isSweep(Properties prop) {
+
+        return null != prop.getProperty("sweep.numFeedbackDocs") ||
+            null != prop.getProperty("sweep.numFeedbackTerms") ||
+            null != prop.getProperty("sweep.queryMix") ||
+            null != prop.getProperty("sweep.lambda");
+    }
+
+    public ParameterSweep(RelevanceBasedLanguageModel rblm) {
+
+        this.rblm = rblm;
+        Properties prop = rblm.prop;
+
+        String[] values;
+        values = prop.getProperty("sweep.numFeedbackDocs", String.valueOf(rblm.numFeedbackDocs)).split(",");
+        numFeedbackDocs = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            numFeedbackDocs[i] = Integer.parseInt(values[i].trim());
+            maxFeedbackDocs = Math.max(maxFeedbackDocs, numFeedbackDocs[i]);
+        }
+        incremental = Boolean.parseBoolean(prop.getProperty("sweep.incremental", "false"));
+        values = prop.getProperty("sweep.numFeedbackTerms", String.valueOf(rblm.numFeedbackTerms)).split(",");
+        numFeedbackTerms = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            numFeedbackTerms[i] = Integer.parseInt(values[i].trim());
+        values = prop.getProperty("sweep.queryMix", String.valueOf(rblm.QMIX)).split(",");
+        queryMix = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            queryMix[i] = Float.parseFloat(values[i].trim());
+        values = prop.getProperty("sweep.lambda", String.valueOf(rblm.mixingLambda)).split(",");
+        mixingLambda = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            mixingLambda[i] = Float.parseFloat(values[i].trim());
+
+        // lambda is named in the run only when it is swept, as it is param1 otherwise
+        boolean lambdaInName = null != prop.getProperty("sweep.lambda");
+        runNames = new ArrayList<>();
+        for (int D : numFeedbackDocs)
+            for (float lambda : mixingLambda)
+                for (int T : numFeedbackTerms)
+                    for (float qmix : queryMix)
+                        runNames.add(rblm.getRunName(D, T, qmix, lambdaInName ? lambda : null));
+    }
+
+    /**
+     * Returns the paths of the res files of all the configurations.
+     * @return The paths, in the order of the configurations
+     */
+    public String[] getResPaths() {
+
+        System.out.println("Sweep of " + runNames.size() + " configurations");
+        String[] resPaths = new String[runNames.size()];
+        for (int i = 0; i < resPaths.length; i++)
+            resPaths[i] = rblm.getResPath(runNames.get(i));
+        return resPaths;
+    }
+
+    /**
+     * Processes a query with all the configurations.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to be used for this query; not to be shared by concurrent calls
+     * @return The results, in the order of the configurations; null if the query is to be skipped
+     * @throws Exception
+     */
+    public QueryResult[] retrieve(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        rlm.trace.begin();
+        TopDocs topDocs = rblm.initialRetrieval(query, luceneQuery);
+        rlm.trace.end(QueryTracer.FIRST_RETRIEVAL);
+        if(null == topDocs)
+            return null;
+
+        String[] analyzedQuery = luceneQuery.toString(rblm.fieldToSearch).split(" ");
+        DocumentVector[] docVectors = rlm.readFeedbackDocumentVectors(topDocs, maxFeedbackDocs);
+
+        QueryResult[] results = new QueryResult[runNames.size()];
+        if(incremental && null == rlm.pruning && IncrementalRM1.supports(analyzedQuery.length, docVectors)) {
+            retrieveIncremental(query, topDocs, analyzedQuery, docVectors, rlm, results);
+            return results;
+        }
+
+        int c = 0;
+        for (int D : numFeedbackDocs) {
+            rlm.numFeedbackDocs = D;
+            rlm.setFeedbackDocumentVectors(docVectors, D);
+            for (float lambda : mixingLambda) {
+                rlm.mixingLambda = lambda;
+                rlm.setQueryLikelihoods(analyzedQuery);
+                rlm.RM1(query, topDocs);
+                for (int T : numFeedbackTerms) {
+                    rlm.numFeedbackTerms = T;
+                    for (float qmix : queryMix) {
+                        rlm.QMIX = qmix;
+                        RM3Workspace topM_PwGivenR = rlm.RM3(query);
+                        results[c] = rblm.getResult(query, topM_PwGivenR, topDocs, rlm, runNames.get(c));
+                        c++;
+                    }
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Processes a query with all the configurations, with RM1 by {@link IncrementalRM1}.
+     * @param query The query
+     * @param topDocs The initially retrieved documents
+     * @param analyzedQuery The analyzed query terms
+     * @param docVectors The vectors of the top max(D) documents
+     * @param rlm The RLM to be used for this query
+     * @param results To be set with the results, in the order of the configurations
+     * @throws Exception
+     */
+    private void retrieveIncremental(TRECQuery query, TopDocs topDocs, String[] analyzedQuery,
+        DocumentVector[] docVectors, RLM rlm, QueryResult[] results) throws Exception {
+
+        if(null == rlm.incrementalRM1)
+            rlm.incrementalRM1 = new IncrementalRM1(rlm.vocSize);
+        IncrementalRM1 estimator = rlm.incrementalRM1;
+        int[] queryTerms = new int[analyzedQuery.length];
+        for (int k = 0; k < analyzedQuery.length; k++)
+            queryTerms[k] = rlm.termDict.getId(analyzedQuery[k]);
+        estimator.start(queryTerms);
+
+        // ++ the D in increasing order, with their positions among the configurations
+        long[] order = new long[numFeedbackDocs.length];
+        for (int i = 0; i < numFeedbackDocs.length; i++)
+            order[i] = ((long)numFeedbackDocs[i] << 32) | i;
+        Arrays.sort(order);
+        // --
+
+        int configurationsPerD = mixingLambda.length * numFeedbackTerms.length * queryMix.length;
+        int added = 0;
+        for (long o : order) {
+            int D = (int) (o >>> 32);
+            int c = (int) o * configurationsPerD;
+
+            rlm.trace.begin();
+            for (; added < Math.min(D, docVectors.length); added++)
+                estimator.add(docVectors[added]);
+            rlm.trace.end(QueryTracer.EXTRACTION);
+
+            rlm.numFeedbackDocs = D;
+            for (float lambda : mixingLambda) {
+                rlm.mixingLambda = lambda;
+                rlm.trace.begin();
+                estimator.estimate(lambda, rlm.workspace);
+                rlm.trace.end(QueryTracer.RM1);
+                for (int T : numFeedbackTerms) {
+                    rlm.numFeedbackTerms = T;
+                    for (float qmix : queryMix) {
+                        rlm.QMIX = qmix;
+                        RM3Workspace topM_PwGivenR = rlm.RM3(query);
+                        results[c] = rblm.getResult(query, topM_PwGivenR, topDocs, rlm, runNames.get(c));
+                        c++;
+                    }
+                }
+            }
+        }
+    }
+}
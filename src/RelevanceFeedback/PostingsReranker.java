@@ -0,0 +1,171 @@
+package RelevanceFeedback;
+
+import common.DocLengthColumn;
+import common.TermDictionary;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * KLD reranking (see {@link RLM#rerankUsingRBLM}) term-at-a-time over the
+ * postings of the expansion terms, without the term vectors of the documents
+ * to be reranked (property: rm3.rerank.engine=postings).<p>
+ * The documents to be reranked are sorted by the lucene docid; the postings
+ * of each expansion term are walked over them with advance(), and the scores
+ * are accumulated per document. The document lengths are taken from the
+ * {@link DocLengthColumn}. The terms are taken in the same order, and the
+ * scores computed with the same arithmetic as the term vector engine,
+ * hence the scores are the same.<p>
+ * One per RLM; not to be shared among threads.
+ * @author dwaipayan
+ */
+public class PostingsReranker {
+
+    IndexReader     indexReader;
+    String          field;
+    TermDictionary  termDict;
+    DocLengthColumn docLengths;
+
+    /**
+     * The documents to be reranked, sorted by the lucene docid, for candidatesOf.
+     */
+    TopDocs         candidatesOf;
+    int             numCandidates;
+    int[]           docs = new int[0];
+    int[]           ranks = new int[0];     // position of the document in the initial retrieval
+    int[]           lengths = new int[0];
+    double[]        accumulator = new double[0];
+
+    public PostingsReranker(IndexReader indexReader, TermDictionary termDict, DocLengthColumn docLengths) {
+
+        this.indexReader = indexReader;
+        this.termDict = termDict;
+        this.field = termDict.getField();
+        this.docLengths = docLengths;
+    }
+
+    /**
+     * Sets the documents to be reranked; kept if the same TopDocs is set again.
+     * @param topDocs The initially retrieved documents
+     */
+    public void setCandidates(TopDocs topDocs) {
+
+        if(topDocs == candidatesOf)
+            return;
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        numCandidates = hits.length;
+        if(docs.length < numCandidates) {
+            int capacity = ArrayUtil.oversize(numCandidates, 4);
+            docs = new int[capacity];
+            ranks = new int[capacity];
+            lengths = new int[capacity];
+            accumulator = new double[capacity];
+        }
+
+        long[] order = new long[numCandidates];
+        for (int i = 0; i < numCandidates; i++)
+            order[i] = ((long)hits[i].doc << 32) | i;
+        Arrays.sort(order);
+        for (int c = 0; c < numCandidates; c++) {
+            docs[c] = (int) (order[c] >>> 32);
+            ranks[c] = (int) order[c];
+            lengths[c] = docLengths.getLength(docs[c]);
+        }
+        candidatesOf = topDocs;
+    }
+
+    /**
+     * Returns the postings (with freqs) of a term; null if the term is not in the field.
+     */
+    private DocsEnum postings(int termId) throws IOException {
+
+        return MultiFields.getTermDocsEnum(indexReader, null, field,
+            new BytesRef(termDict.getTerm(termId)), DocsEnum.FLAG_FREQS);
+    }
+
+    /**
+     * KL-divergence of each document, term by term (the "scalar" kernel).
+     * @param expansionTerms The expansion terms
+     * @param p_w_R P(w|R) of the expansion terms
+     * @param colPart (1-mixingLambda)*cf(w)/col-size of the expansion terms
+     * @param mixingLambda Weight of the document model
+     * @return The scores, in the order of the initial retrieval
+     * @throws IOException
+     */
+    public double[] scalarKLD(int[] expansionTerms, double[] p_w_R, float[] colPart, float mixingLambda) throws IOException {
+
+        Arrays.fill(accumulator, 0, numCandidates, 0);
+
+        for (int k = 0; k < expansionTerms.length; k++) {
+            double preComputed_p_w_R = p_w_R[k];
+            // for the documents without the term
+            double absent = preComputed_p_w_R * Math.log(preComputed_p_w_R/(0.0 + colPart[k]));
+
+            DocsEnum de = postings(expansionTerms[k]);
+            int current = (null == de) ? DocIdSetIterator.NO_MORE_DOCS : -1;
+            for (int c = 0; c < numCandidates; c++) {
+                int doc = docs[c];
+                if(current < doc)
+                    current = de.advance(doc);
+                if(current == doc) {
+                    double singleTerm_p_w_d = (mixingLambda * (double)de.freq() / (double)lengths[c]) + colPart[k];
+                    accumulator[c] += (preComputed_p_w_R * Math.log(preComputed_p_w_R/singleTerm_p_w_d));
+                }
+                else
+                    accumulator[c] += absent;
+            }
+        }
+
+        double[] scores = new double[numCandidates];
+        for (int c = 0; c < numCandidates; c++)
+            scores[ranks[c]] = accumulator[c];
+        return scores;
+    }
+
+    /**
+     * KL-divergence of each document with the "split" kernel (see {@link ScoringKernels}).
+     * @param sortedTerms The expansion terms, sorted by id
+     * @param sortedP P(w|R) of the sorted expansion terms
+     * @param colPart (1-mixingLambda)*cf(w)/col-size of the sorted expansion terms
+     * @param queryConstant The per query constant of the kernel
+     * @param mixingLambda Weight of the document model
+     * @return The scores, in the order of the initial retrieval
+     * @throws IOException
+     */
+    public double[] splitKLD(int[] sortedTerms, double[] sortedP, double[] colPart,
+        double queryConstant, float mixingLambda) throws IOException {
+
+        Arrays.fill(accumulator, 0, numCandidates, 0);
+
+        for (int k = 0; k < sortedTerms.length; k++) {
+            DocsEnum de = postings(sortedTerms[k]);
+            if(null == de)
+                continue;
+            int current = -1;
+            for (int c = 0; c < numCandidates; c++) {
+                int doc = docs[c];
+                if(current < doc) {
+                    if((current = de.advance(doc)) == DocIdSetIterator.NO_MORE_DOCS)
+                        break;
+                }
+                if(current == doc) {
+                    double lambdaByLength = (double) mixingLambda / (double) lengths[c];
+                    accumulator[c] += sortedP[k] * Math.log1p(lambdaByLength * de.freq() / colPart[k]);
+                }
+            }
+        }
+
+        double[] scores = new double[numCandidates];
+        for (int c = 0; c < numCandidates; c++)
+            scores[ranks[c]] = queryConstant - accumulator[c];
+        return scores;
+    }
+}
@@ -0,0 +1,235 @@
+package RelevanceFeedback;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Per query, per stage tracing of the wall clock time, the CPU time and the
+ * bytes allocated by the thread (property: trace.path).<p>
+ * Each query has a {@link Trace}; a stage is measured between begin() and
+ * end(stage), in the thread doing it, and accumulated if done more than once
+ * (e.g. for the configurations of a sweep). When a query is done, its trace
+ * is written to the trace file, one line per stage:
+ * qid, stage, wall-us, cpu-us, allocated-bytes (tab separated);
+ * and a summary of the percentiles per stage is made at the end of the run.<p>
+ * The CPU time and the allocated bytes are -1 if the JVM does not support them.
+ * @author dwaipayan
+ */
+public class QueryTracer {
+
+    static final int ANALYSIS           = 0;    // topic analysis
+    static final int FIRST_RETRIEVAL    = 1;
+    static final int EXTRACTION         = 2;    // feedback document vectors, feedback statistics
+    static final int QUERY_LIKELIHOOD   = 3;    // P(Q|d)
+    static final int RM1                = 4;
+    static final int RM3                = 5;
+    static final int EXPANDED_QUERY     = 6;
+    static final int SECOND_RETRIEVAL   = 7;
+    static final int RERANK             = 8;
+    static final int WRITE              = 9;    // docids of the result, handing over to the writer
+
+    static final String[] STAGES = {"analysis", "retrieval", "extraction", "pqd", "rm1",
+        "rm3", "expansion", "reretrieval", "rerank", "write"};
+
+    static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    static final boolean cpuTimeSupported;
+    static final boolean allocationSupported;
+    static {
+        boolean cpu = false, allocation = false;
+        try {
+            if(threadBean.isCurrentThreadCpuTimeSupported()) {
+                if(!threadBean.isThreadCpuTimeEnabled())
+                    threadBean.setThreadCpuTimeEnabled(true);
+                cpu = true;
+            }
+            if(threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+                if(sunBean.isThreadAllocatedMemorySupported()) {
+                    if(!sunBean.isThreadAllocatedMemoryEnabled())
+                        sunBean.setThreadAllocatedMemoryEnabled(true);
+                    allocation = true;
+                }
+            }
+        } catch (UnsupportedOperationException | SecurityException ex) {
+            System.err.println("Thread CPU time / allocation not available: " + ex);
+        }
+        cpuTimeSupported = cpu;
+        allocationSupported = allocation;
+    }
+
+    static long cpuTime() {
+        return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    static long allocatedBytes() {
+        return allocationSupported ?
+            ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Trace of a query; used by one thread at a time.
+     */
+    public static class Trace {
+
+        /**
+         * The trace that records nothing, when tracing is off.
+         */
+        static final Trace NONE = new Trace(null);
+
+        String  qid;
+        long[]  wall = new long[STAGES.length];
+        long[]  cpu = new long[STAGES.length];
+        long[]  allocated = new long[STAGES.length];
+        int[]   count = new int[STAGES.length];
+
+        long    startWall;
+        long    startCpu;
+        long    startAllocated;
+
+        Trace(String qid) {
+            this.qid = qid;
+        }
+
+        /**
+         * Starts measuring a stage.
+         */
+        public void begin() {
+
+            if(null == qid)
+                return;
+            startWall = System.nanoTime();
+            startCpu = cpuTime();
+            startAllocated = allocatedBytes();
+        }
+
+        /**
+         * Ends measuring a stage, started by the last begin() in this thread.
+         * @param stage The stage
+         */
+        public void end(int stage) {
+
+            if(null == qid)
+                return;
+            wall[stage] += System.nanoTime() - startWall;
+            cpu[stage] += cpuTime() - startCpu;
+            allocated[stage] += allocatedBytes() - startAllocated;
+            count[stage]++;
+        }
+    }
+
+    BufferedWriter  traceWriter;
+
+    /**
+     * Wall time, CPU time and allocated bytes of each stage, one entry per query.
+     */
+    long[][]        wallSamples = new long[STAGES.length][16];
+    long[][]        cpuSamples = new long[STAGES.length][16];
+    long[][]        allocatedSamples = new long[STAGES.length][16];
+    int[]           numSamples = new int[STAGES.length];
+    int             numQueries;
+
+    /**
+     * Opens the trace file.
+     * @param tracePath Path of the trace file
+     * @throws IOException
+     */
+    public QueryTracer(String tracePath) throws IOException {
+
+        traceWriter = new BufferedWriter(new FileWriter(tracePath), 1 << 16);
+        traceWriter.write("qid\tstage\twall-us\tcpu-us\tallocated-bytes\n");
+        System.out.println("Trace will be stored in: " + tracePath);
+    }
+
+    /**
+     * @param qid The query id
+     * @return A new trace for the query
+     */
+    public Trace newTrace(String qid) {
+        return new Trace(qid);
+    }
+
+    /**
+     * Writes the trace of a finished query, and keeps it for the summary.
+     * @param trace The trace
+     * @throws IOException
+     */
+    public synchronized void record(Trace trace) throws IOException {
+
+        if(null == trace.qid)
+            return;
+        numQueries++;
+        StringBuilder lines = new StringBuilder();
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            if(0 == trace.count[stage])
+                continue;
+            lines.append(trace.qid).append("\t").append(STAGES[stage]).append("\t")
+                .append(trace.wall[stage] / 1000).append("\t")
+                .append(cpuTimeSupported ? trace.cpu[stage] / 1000 : -1).append("\t")
+                .append(allocationSupported ? trace.allocated[stage] : -1).append("\n");
+
+            int n = numSamples[stage];
+            if(n == wallSamples[stage].length) {
+                wallSamples[stage] = Arrays.copyOf(wallSamples[stage], 2 * n);
+                cpuSamples[stage] = Arrays.copyOf(cpuSamples[stage], 2 * n);
+                allocatedSamples[stage] = Arrays.copyOf(allocatedSamples[stage], 2 * n);
+            }
+            wallSamples[stage][n] = trace.wall[stage];
+            cpuSamples[stage][n] = trace.cpu[stage];
+            allocatedSamples[stage][n] = trace.allocated[stage];
+            numSamples[stage]++;
+        }
+        traceWriter.write(lines.toString());
+    }
+
+    /**
+     * Nearest rank percentile of sorted values.
+     */
+    private static long percentile(long[] sorted, int n, double p) {
+        return sorted[Math.max(0, (int) Math.ceil(p / 100.0 * n) - 1)];
+    }
+
+    /**
+     * Closes the trace file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        traceWriter.close();
+    }
+
+    /**
+     * Summary of the stages over the queries: percentiles of the wall time,
+     * mean CPU time and mean allocation, in ms and KB.
+     */
+    @Override
+    public synchronized String toString() {
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Trace of ").append(numQueries).append(" queries (ms; KB):\n");
+        summary.append(String.format("%-12s %6s %9s %9s %9s %9s %9s %9s %11s%n",
+            "stage", "n", "mean", "p50", "p90", "p99", "max", "cpu-mean", "alloc-mean"));
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            int n = numSamples[stage];
+            if(0 == n)
+                continue;
+            long[] wall = Arrays.copyOf(wallSamples[stage], n);
+            Arrays.sort(wall);
+            double wallSum = 0, cpuSum = 0, allocatedSum = 0;
+            for (int i = 0; i < n; i++) {
+                wallSum += wall[i];
+                cpuSum += cpuSamples[stage][i];
+                allocatedSum += allocatedSamples[stage][i];
+            }
+            summary.append(String.format("%-12s %6d %9.3f %9.3f %9.3f %9.3f %9.3f %9s %11s%n",
+                STAGES[stage], n, wallSum / n / 1e6,
+                percentile(wall, n, 50) / 1e6, percentile(wall, n, 90) / 1e6,
+                percentile(wall, n, 99) / 1e6, wall[n-1] / 1e6,
+                cpuTimeSupported ? String.format("%.3f", cpuSum / n / 1e6) : "-",
+                allocationSupported ? String.format("%.1f", allocatedSum / n / 1024) : "-"));
+        }
+        return summary.toString();
+    }
+}
@@ -1,30 +1,23 @@
-/*
-TODO: To add an option:
-    If Rerank (i.e. KLD), then add an option whether to precompute the 
-        collection statistics (e.g. col-probab. that is needed) for all the terms
-        of collection into hashmap to reduce time consumption during reranking.
- */
 package RelevanceFeedback;
 
-import static common.CommonVariables.FIELD_ID;
 import common.DocumentVector;
-import common.PerTermStat;
+import common.DocumentVectorCache;
+import common.ForwardIndex;
+import common.SegmentParallelSearcher;
 import common.TRECQuery;
+import common.TermDictionary;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -52,38 +45,102 @@ public class RLM {
     RelevanceBasedLanguageModel rblm;   // main class from which the call is done; used for setting the variables.
 
     /**
-     * Hashmap of Vectors of all feedback documents, keyed by luceneDocId.
+     * Dictionary of the terms of fieldForFeedback; shared by all RLMs of the index.
+     */
+    TermDictionary  termDict;
+    /**
+     * Collection probabilities for the KLD reranking; shared by all RLMs of the index.
+     */
+    CollectionProbabilityCache colProbCache;
+    /**
+     * Lookups of the collection probabilities of the reranked queries of this RLM.
+     */
+    CollectionProbabilityCache.Lookup colProbLookup;
+    /**
+     * Scoring kernels for P(Q|d) and the KLD reranking; shared by all RLMs of the index.
      */
-    HashMap<Integer, DocumentVector>    feedbackDocumentVectors;
+    ScoringKernels  kernels;
     /**
-     * HashMap of PerTermStat of all feedback terms, keyed by the term.
+     * Document vectors shared across the queries; null if disabled.
      */
-    HashMap<String, PerTermStat>        feedbackTermStats;
+    DocumentVectorCache docVectorCache;
     /**
-     * HashMap of P(Q|D) for all feedback documents, keyed by luceneDocId.
+     * Source of the document vectors, instead of the term vectors; null if disabled.
      */
-    HashMap<Integer, Float> hash_P_Q_Given_D;
+    ForwardIndex    forwardIndex;
+
+    /**
+     * Vectors of all feedback documents, in the order of the initial retrieval.
+     */
+    List<DocumentVector>    feedbackDocumentVectors;
+    /**
+     * cf and df of all feedback terms in the feedback documents, keyed by the term id.
+     */
+    FeedbackVocabulary      feedbackTermStats;
+    /**
+     * P(Q|D) for all feedback documents, parallel to feedbackDocumentVectors.
+     */
+    float[]                 p_Q_Given_D;
+    /**
+     * The feedback documents as a doc x term matrix over the local ids of feedbackTermStats;
+     * rows parallel to feedbackDocumentVectors.
+     */
+    FeedbackMatrix          feedbackMatrix;
+    /**
+     * RM1 engine: "matrix" - over the columns of feedbackMatrix (default);
+     * "exhaustive" - smoothed MLE of every term in every feedback document;
+     * "closedForm" - single pass over the non-zeros of feedbackMatrix, in double.
+     * The first two are identical; closedForm differs in the rounding.
+     */
+    String                  rm1Engine;
+    /**
+     * Pruning of the candidate terms of RM1 (approximate RM); null for the exact RM.
+     */
+    FeedbackPruning         pruning;
+    /**
+     * RM1 for the incremental sweep (see {@link ParameterSweep}); null till used.
+     */
+    IncrementalRM1          incrementalRM1;
 
     TopDocs         topDocs;
 
+    /**
+     * Reranking engine: null - the term vectors of the documents (default);
+     * else term-at-a-time over the postings of the expansion terms.
+     */
+    PostingsReranker        postingsReranker;
+    /**
+     * The expanded query for the maxscore re-retrieval engine; null if not used.
+     */
+    WeightedTermsQuery      weightedTermsQuery;
+    /**
+     * The documents to be reranked, with their vectors and docids (parallel to
+     * rerankTopDocs.scoreDocs); kept for reranking the same TopDocs again
+     * with other parameters (see {@link ParameterSweep}). The vectors are
+     * read only by the term vector engine.
+     */
+    TopDocs                 rerankTopDocs;
+    DocumentVector[]        rerankDocVectors;
+    String[]                rerankDocids;
+
     long            vocSize;        // vocabulary size
     long            docCount;       // number of documents in the collection
 
     /**
-     * List, for sorting the words in non-increasing order of probability.
+     * RM1 of the feedback terms, and P(w|R) for 'numFeedbackTerms' terms with
+     * top P(w|R) among each w in R; reused across the queries.
      */
-    List<WordProbability> list_PwGivenR;
+    RM3Workspace    workspace;
     /**
-     * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
-     * keyed by the term with P(w|R) as the value.
+     * The analyzed query (term ids) for RM3, and the query it is of.
      */
-    HashMap<String, WordProbability> hashmap_PwGivenR;
+    int[]           analyzedQuery;
+    TRECQuery       analyzedQueryOf;
 
     /**
-     * HashMap<DocId, DocumentVector> to contain all topdocs for reranking.
-     * Only used if reranking, reading top docs from file.
+     * Trace of the query being processed; the stages are measured where they are done.
      */
-    HashMap<String, DocumentVector> topDocsDV = new HashMap<>();
+    QueryTracer.Trace       trace = QueryTracer.Trace.NONE;
 
     public RLM(RelevanceBasedLanguageModel rblm) throws IOException {
 
@@ -96,16 +153,68 @@ public class RLM {
         this.numFeedbackTerms = rblm.numFeedbackTerms;
         this.mixingLambda = rblm.mixingLambda;
         this.QMIX = rblm.QMIX;
-        vocSize = getVocabularySize();
+        this.termDict = rblm.termDict;
+        this.colProbCache = rblm.colProbCache;
+        this.colProbLookup = colProbCache.newLookup();
+        this.kernels = rblm.scoringKernels;
+        this.docVectorCache = rblm.docVectorCache;
+        this.forwardIndex = rblm.forwardIndex;
+        vocSize = termDict.getVocSize();
         docCount = indexReader.maxDoc();      // total number of documents in the index
+        feedbackTermStats = new FeedbackVocabulary();
+        feedbackMatrix = new FeedbackMatrix();
+        workspace = new RM3Workspace();
+        if(null != rblm.docLengths)
+            postingsReranker = new PostingsReranker(indexReader, termDict, rblm.docLengths);
+        if(null != rblm.termScoreBounds)
+            weightedTermsQuery = new WeightedTermsQuery(indexSearcher, rblm.fieldToSearch, rblm.termScoreBounds);
+        rm1Engine = rblm.prop.getProperty("rm1.engine", "matrix");
+        int approxDocTerms = Integer.parseInt(rblm.prop.getProperty("rm3.approx.docTerms", "0"));
+        int approxMinDf = Integer.parseInt(rblm.prop.getProperty("rm3.approx.minDf", "0"));
+        if(approxDocTerms > 0 || approxMinDf > 1)
+            pruning = new FeedbackPruning(approxDocTerms, approxMinDf, rblm.pruningReport);
 
     }
 
+    /**
+     * Constructor without an index, for estimating from the document vectors
+     * read elsewhere (see {@link ShardCoordinator}): only
+     * {@link #setFeedbackDocumentVectors}, {@link #setQueryLikelihoods} and
+     * {@link #RM3(TRECQuery, TopDocs)}, with the dictionary set per query
+     * by {@link #setTermDictionary}. The feedback parameters are to be set by the caller.
+     * @param analyzer The analyzer of the queries
+     * @param kernels The scoring kernels
+     * @param rm1Engine The RM1 engine
+     */
+    RLM(Analyzer analyzer, ScoringKernels kernels, String rm1Engine) {
+
+        this.analyzer = analyzer;
+        this.kernels = kernels;
+        this.rm1Engine = rm1Engine;
+        feedbackTermStats = new FeedbackVocabulary();
+        feedbackMatrix = new FeedbackMatrix();
+        workspace = new RM3Workspace();
+    }
+
+    /**
+     * Sets the dictionary of the terms (and vocSize and docCount from it),
+     * for the RLM made without an index.
+     * @param termDict The dictionary
+     */
+    void setTermDictionary(TermDictionary termDict) {
+
+        this.termDict = termDict;
+        vocSize = termDict.getVocSize();
+        docCount = termDict.getDocCount();
+        analyzedQueryOf = null;     // its ids are of the last dictionary
+    }
+
     /**
      * Sets the following variables with feedback statistics: to be used consequently.<p>
      * {@link #feedbackDocumentVectors},<p> 
      * {@link #feedbackTermStats}, <p>
-     * {@link #hash_P_Q_Given_D}
+     * {@link #feedbackMatrix}, <p>
+     * {@link #p_Q_Given_D}
      * @param topDocs
      * @param analyzedQuery
      * @param rblm
@@ -113,131 +222,258 @@ public class RLM {
      */
     public void setFeedbackStats(TopDocs topDocs, String[] analyzedQuery, RelevanceBasedLanguageModel rblm) throws IOException {
 
-        feedbackDocumentVectors = new HashMap<>();
-        feedbackTermStats = new HashMap<>();
-        hash_P_Q_Given_D = new HashMap<>();
+        setFeedbackDocumentVectors(readFeedbackDocumentVectors(topDocs, numFeedbackDocs), numFeedbackDocs);
+        setQueryLikelihoods(analyzedQuery);
+    }
 
-        ScoreDoc[] hits;
-        int hits_length;
-        hits = topDocs.scoreDocs;
-        hits_length = hits.length;               // number of documents retrieved in the first retrieval
+    /**
+     * Reads the vectors of the top documents of the initial retrieval.
+     * @param topDocs Initial retrieved document list
+     * @param numDocs Number of top documents to be read
+     * @return The vectors, in the order of the initial retrieval; null for 
+     *  a document without term vector
+     * @throws IOException 
+     */
+    public DocumentVector[] readFeedbackDocumentVectors(TopDocs topDocs, int numDocs) throws IOException {
+
+        trace.begin();
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        DocumentVector[] docVectors = readDocumentVectors(hits, Math.min(numDocs, hits.length));
+
+        trace.end(QueryTracer.EXTRACTION);
+        return docVectors;
+    }
+
+    /**
+     * Reads the vectors of the top documents.
+     * @param hits The documents
+     * @param numDocs Number of top documents to be read
+     * @return The vectors, parallel to hits; null for a document without term vector
+     * @throws IOException 
+     */
+    private DocumentVector[] readDocumentVectors(ScoreDoc[] hits, int numDocs) throws IOException {
+
+        int[] docs = new int[numDocs];
+        for (int i = 0; i < numDocs; i++)
+            docs[i] = hits[i].doc;
+        return readDocumentVectors(docs);
+    }
+
+    /**
+     * Reads the vectors of a batch of documents (e.g. the feedback documents
+     * of a query, or of a window of queries) in ascending lucene docid order,
+     * i.e. sequentially through the term vectors (or forward index) of each
+     * segment, instead of in the order of the scores; with the segment parallel
+     * search, the documents of each segment are read by a task of its pool.
+     * @param docs The lucene docids, in any order
+     * @return The vectors, parallel to docs; null for a document without term vector
+     * @throws IOException 
+     */
+    public DocumentVector[] readDocumentVectors(final int[] docs) throws IOException {
+
+        final DocumentVector[] docVectors = new DocumentVector[docs.length];
+
+        // ++ the positions of the documents in docid order
+        long[] order = new long[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            order[i] = ((long)docs[i] << 32) | i;
+        Arrays.sort(order);
+        // --
+
+        SegmentParallelSearcher segmentSearcher = (null == rblm) ? null : rblm.segmentSearcher;
+        if(null == segmentSearcher || docs.length < 2) {
+            for (long o : order)
+                docVectors[(int) o] = readDocumentVector(docs[(int) o]);
+            return docVectors;
+        }
+
+        // ++ grouping the documents by their segments, in docid order within each
+        List<AtomicReaderContext> leaves = segmentSearcher.getLeaves();
+        List<List<Integer>> leafDocs = new ArrayList<>(leaves.size());
+        for (int l = 0; l < leaves.size(); l++)
+            leafDocs.add(new ArrayList<Integer>());
+        for (long o : order)
+            leafDocs.get(ReaderUtil.subIndex(docs[(int) o], leaves)).add((int) o);
+        // --
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final List<Integer> positions : leafDocs) {
+            if(positions.isEmpty())
+                continue;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int i : positions)
+                        docVectors[i] = readDocumentVector(docs[i]);
+                    return null;
+                }
+            });
+        }
+        segmentSearcher.invokeAll(tasks);
+        return docVectors;
+    }
+
+    /**
+     * Sets {@link #feedbackDocumentVectors}, {@link #feedbackTermStats} and
+     * {@link #feedbackMatrix} with the top documents, which do not depend on mixingLambda.
+     * @param docVectors Vectors of the top documents, as read by {@link #readFeedbackDocumentVectors}
+     * @param numDocs Number of the top documents to be used as feedback documents
+     */
+    public void setFeedbackDocumentVectors(DocumentVector[] docVectors, int numDocs) {
 
-        for (int i = 0; i < Math.min(numFeedbackDocs, hits_length); i++) {
+        trace.begin();
+        feedbackDocumentVectors = new ArrayList<>();
+        feedbackTermStats.clear();
+        feedbackMatrix.clear();
+        if(null != pruning)
+            pruning.pruned = false;
+
+        for (int i = 0; i < Math.min(numDocs, docVectors.length); i++) {
             // for each feedback document
-            int luceneDocId = hits[i].doc;
-            Document d = indexSearcher.doc(luceneDocId);
-            DocumentVector docV = new DocumentVector();
-            docV = docV.getDocumentVector(luceneDocId, indexReader);
+            DocumentVector docV = docVectors[i];
             if(docV == null)
                 continue;
-            feedbackDocumentVectors.put(luceneDocId, docV);                // the document vector is added in the list
+            feedbackDocumentVectors.add(docV);                // the document vector is added in the list
 
-            for (Map.Entry<String, PerTermStat> entrySet : docV.docPerTermStat.entrySet()) {
+            for (int k = 0; k < docV.numUniqueTerms; k++)
             // for each term of that feedback document
-                String key = entrySet.getKey();
-                PerTermStat value = entrySet.getValue();
-                if(null == feedbackTermStats.get(key))
-                    feedbackTermStats.put(key, new PerTermStat(key, value.getCF(), value.getDF()));
-                else {
-                    value.setCF(value.getCF() + feedbackTermStats.get(key).getCF());
-                    value.setDF(value.getDF() + feedbackTermStats.get(key).getDF());
-                    feedbackTermStats.put(key, value);
-                }
-            } // ends for each term of that feedback document
+                feedbackMatrix.add(feedbackTermStats.add(docV.termIds[k], docV.termFreqs[k]), docV.termFreqs[k]);
+            feedbackMatrix.endRow(docV.getDocSize());
         } // ends for each feedback document
+        trace.end(QueryTracer.EXTRACTION);
+    }
+
+    /**
+     * Sets {@link #p_Q_Given_D} for the feedback documents, with the current mixingLambda.
+     * @param analyzedQuery The analyzed query terms
+     * @throws IOException 
+     */
+    public void setQueryLikelihoods(String[] analyzedQuery) throws IOException {
+
+        trace.begin();
+        int[] analyzedQueryIds = new int[analyzedQuery.length];
+        for (int k = 0; k < analyzedQuery.length; k++)
+            analyzedQueryIds[k] = termDict.getId(analyzedQuery[k]);
 
         // Calculating P(Q|d) for each feedback documents
-        for (Map.Entry<Integer, DocumentVector> entrySet : feedbackDocumentVectors.entrySet()) {
-            // for each feedback document
-            int luceneDocId = entrySet.getKey();
-            DocumentVector docV = entrySet.getValue();
-
-            float p_Q_GivenD = 1;
-            for (String qTerm : analyzedQuery)
-                p_Q_GivenD *= return_Smoothed_MLE(qTerm, docV);
-            if(null == hash_P_Q_Given_D.get(luceneDocId))
-                hash_P_Q_Given_D.put(luceneDocId, p_Q_GivenD);
-            else {
-                System.err.println("Error while pre-calculating P(Q|d). "
-                + "For luceneDocId: " + luceneDocId + ", P(Q|d) already existed.");
+        p_Q_Given_D = new float[feedbackDocumentVectors.size()];
+        if(kernels.isSplit()) {
+            // the collection part of the smoothed MLE of each query term, once for all the documents;
+            // the terms not in the feedback documents are left out (their MLE is taken as 1)
+            int numQueryTerms = 0;
+            int[] queryTerms = new int[analyzedQueryIds.length];
+            float[] colPart = new float[analyzedQueryIds.length];
+            for (int qTermId : analyzedQueryIds) {
+                int localId = (qTermId < 0) ? -1 : feedbackTermStats.getLocalId(qTermId);
+                if(localId == -1)
+                    continue;
+                queryTerms[numQueryTerms] = qTermId;
+                colPart[numQueryTerms] = (1.0f-mixingLambda)*(float)feedbackTermStats.getCF(localId)/(float)vocSize;
+                numQueryTerms++;
             }
+
+            for (int i = 0; i < p_Q_Given_D.length; i++) {
+                // for each feedback document
+                DocumentVector docV = feedbackDocumentVectors.get(i);
+                float docSize = (float)docV.getDocSize();
+
+                float p_Q_GivenD = 1;
+                for (int k = 0; k < numQueryTerms; k++) {
+                    int tf = docV.getTf(queryTerms[k]);
+                    p_Q_GivenD *= ((tf!=0)?(mixingLambda * (float)tf / docSize):(0)) + colPart[k];
+                }
+                p_Q_Given_D[i] = p_Q_GivenD;
+            }
+        }
+        if(!kernels.isSplit() || kernels.check) {
+            for (int i = 0; i < p_Q_Given_D.length; i++) {
+                // for each feedback document
+                DocumentVector docV = feedbackDocumentVectors.get(i);
+
+                float p_Q_GivenD = 1;
+                for (int qTermId : analyzedQueryIds)
+                    p_Q_GivenD *= return_Smoothed_MLE(qTermId, docV);
+                if(kernels.isSplit())
+                    kernels.record(p_Q_GivenD, p_Q_Given_D[i]);
+                else
+                    p_Q_Given_D[i] = p_Q_GivenD;
+            }
+        }
+        trace.end(QueryTracer.QUERY_LIKELIHOOD);
+    }
+
+    /**
+     * Returns the document vector of a document: from the {@link #docVectorCache},
+     * if enabled; read from the index otherwise.
+     * @param luceneDocId The lucene docid
+     * @return The document vector; null if term vectors were not indexed
+     * @throws IOException 
+     */
+    private DocumentVector readDocumentVector(int luceneDocId) throws IOException {
+
+        if(null == forwardIndex) {
+            if(null != docVectorCache)
+                return docVectorCache.getDocumentVector(luceneDocId, indexReader);
+            return new DocumentVector().getDocumentVector(luceneDocId, indexReader, termDict);
         }
 
+        DocumentVector dv;
+        if(null != docVectorCache && null != (dv = docVectorCache.get(luceneDocId)))
+            return dv;
+        dv = new DocumentVector().getDocumentVector(luceneDocId, forwardIndex);
+        if(null != docVectorCache)
+            docVectorCache.put(luceneDocId, dv);
+        return dv;
     }
 
     /**
      * mixingLambda*tf(t,d)/d-size + (1-mixingLambda)*cf(t)/col-size
-     * @param t The term under consideration
+     * @param t Id of the term under consideration; -1 if the term is not in the collection
      * @param dv The document vector under consideration
-     * @return MLE of t in a document dv, smoothed with collection statistics
+     * @return MLE of t in a document dv, smoothed with collection statistics;
+     *  1 if t is not in the feedback documents
      */
-    public float return_Smoothed_MLE(String t, DocumentVector dv) throws IOException {
+    public float return_Smoothed_MLE(int t, DocumentVector dv) throws IOException {
 
         float smoothedMLEofTerm = 1;
-        PerTermStat docPTS;
 
-//        HashMap<String, PerTermStat>     docPerTermStat = dv.getDocPerTermStat();
-//        docPTS = docPerTermStat.get(t);
-        docPTS = dv.docPerTermStat.get(t);
-//        colPTS = collStat.perTermStat.get(t);
-        PerTermStat colPTS = feedbackTermStats.get(t);
+        int localId = (t < 0) ? -1 : feedbackTermStats.getLocalId(t);
 
-        if (colPTS != null) {
+        if (localId != -1) {
+            int tf = dv.getTf(t);
             smoothedMLEofTerm = 
-                ((docPTS!=null)?(mixingLambda * (float)docPTS.getCF() / (float)dv.getDocSize()):(0)) +
-                ((feedbackTermStats.get(t)!=null)?((1.0f-mixingLambda)*(float)feedbackTermStats.get(t).getCF()/(float)vocSize):0);
+                ((tf!=0)?(mixingLambda * (float)tf / (float)dv.getDocSize()):(0)) +
+                ((1.0f-mixingLambda)*(float)feedbackTermStats.getCF(localId)/(float)vocSize);
         }
         return smoothedMLEofTerm;
     } // ends return_Smoothed_MLE()
 
     /**
-     * Returns the vocabulary size of the collection for 'fieldToSearch'.
-     * @return vocSize Total number of terms in the vocabulary
-     * @throws IOException IOException
+     * cf(t) / col-size, with cf taken from the term dictionary.
+     * @param termId The term id
+     * @return Collection probability of the term
      */
-    private long getVocabularySize() throws IOException {
-
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(fieldForFeedback);
-        if(null == terms) {
-            System.err.println("Field: "+fieldForFeedback);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-
-        return vocSize;  // total number of terms in the index in that field
-    }
+    public float getCollectionProbability(int termId) {
 
-    public float getCollectionProbability(String term, IndexReader reader, String fieldName) throws IOException {
-
-        Term termInstance = new Term(fieldName, term);
-        long termFreq = reader.totalTermFreq(termInstance); // CF: Returns the total number of occurrences of term across all documents (the sum of the freq() for each doc that has this term).
-
-        return (float) termFreq / (float) vocSize;
+        return (float) termDict.getCF(termId) / (float) vocSize;
     }
 
     /**
      * mixingLambda*tf(t,d)/d-size + (1-mixingLambda)*cf(t)/col-size
-     * @param pts
+     * @param t Id of the term under consideration
+     * @param cf cf of the term, to be used for smoothing
      * @param dv The document vector under consideration
      * @return MLE of t in a document dv, smoothed with collection statistics
      * @throws IOException IOException
      */
-    public float return_Smoothed_MLE(PerTermStat pts, DocumentVector dv) throws IOException {
+    public float return_Smoothed_MLE(int t, long cf, DocumentVector dv) throws IOException {
 
         float smoothedMLEofTerm;
-        PerTermStat docPTS;
-        PerTermStat colPTS;
-
-//        HashMap<String, PerTermStat>     docPerTermStat = dv.getDocPerTermStat();
-//        docPTS = docPerTermStat.get(t);
-        docPTS = dv.docPerTermStat.get(pts.t);
-//        colPTS = collStat.perTermStat.get(t);
+        int tf = dv.getTf(t);
 
         smoothedMLEofTerm = 
-            ((docPTS!=null)?(mixingLambda * (float)docPTS.getCF() / (float)dv.getDocSize()):(0))
-            + (1.0f-mixingLambda)*((float)pts.getCF()/(float)vocSize);
-//            + ((colPTS!=null)?((1.0f-mixingLambda)*(float)colPTS.getCF() / (float)vocSize):(0));
+            ((tf!=0)?(mixingLambda * (float)tf / (float)dv.getDocSize()):(0))
+            + (1.0f-mixingLambda)*((float)cf/(float)vocSize);
 
         return smoothedMLEofTerm;
     } // ends return_Smoothed_MLE()
@@ -249,69 +485,88 @@ public class RLM {
      * @param qTerm query term under consideration
      * @return MLE of qTerm in the query qTerms
      */
-    public float returnMLE_of_q_in_Q(String[] qTerms, String qTerm) {
+    public float returnMLE_of_q_in_Q(int[] qTerms, int qTerm) {
 
         int count=0;
-        for (String queryTerm : qTerms)
-            if (qTerm.equals(queryTerm))
+        for (int queryTerm : qTerms)
+            if (qTerm == queryTerm)
                 count++;
         return ( (float)count / (float)qTerms.length );
     } // ends returnMLE_of_w_in_Q()
 
     /**
      * RM1: IID Sampling <p>
-     * Returns 'hashmap_PwGivenR' containing all terms of PR docs (PRD) with 
-     * weights calculated using IID Sampling <p>
+     * Estimates P(w|R) of all terms of PR docs (PRD), using IID Sampling,
+     * into the workspace <p>
      * P(w|R) = \sum{d\in PRD} {smoothedMLE(w,d)*smoothedMLE(Q,d)}
      * Reference: Relevance Based Language Model - Victor Lavrenko (SIGIR-2001)
      * @param query The query
      * @param topDocs Initial retrieved document list
-     * @return 'hashmap_PwGivenR' containing all terms of PR docs with weights
+     * @return The workspace, with P(w|R) of all terms of PR docs
      * @throws Exception 
      */
     ///*
-    public HashMap RM1(TRECQuery query, TopDocs topDocs) throws Exception {
+    public RM3Workspace RM1(TRECQuery query, TopDocs topDocs) throws Exception {
+
+        trace.begin();
+        if(null == pruning)
+            estimateRM1(feedbackTermStats, feedbackMatrix, workspace);
+        else {
+            if(!pruning.pruned)
+                pruning.prune(feedbackDocumentVectors, feedbackTermStats, getAnalyzedQuery(query), termDict);
+            if(null != pruning.report)
+                estimateRM1(feedbackTermStats, feedbackMatrix, pruning.exactWorkspace);
+            estimateRM1(pruning.termStats, pruning.matrix, workspace);
+        }
 
-        float p_W_GivenR_one_doc;
+        trace.end(QueryTracer.RM1);
+        return workspace;
+    }   // ends RM1()
 
-        list_PwGivenR = new ArrayList<>();
+    /**
+     * P(w|R) of all the terms of a feedback vocabulary, into a workspace.
+     * @param termStats The feedback vocabulary
+     * @param matrix The feedback documents over termStats
+     * @param workspace The workspace
+     * @throws IOException 
+     */
+    private void estimateRM1(FeedbackVocabulary termStats, FeedbackMatrix matrix, RM3Workspace workspace) throws IOException {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        float p_W_GivenR_one_doc;
+
+        int numTerms = termStats.size();
+        workspace.ensureRM1Capacity(numTerms);
 
         // Calculating for each wi in R: P(wi|R)~P(wi, q1 ... qk)
         // P(wi, q1 ... qk) = \sum_{D \in initial-ret-docs} {P(w|D)*\prod_{i=1... k} {P(qi|D}}
 
-        for (Map.Entry<String, PerTermStat> entrySet : feedbackTermStats.entrySet()) {
-            // for each t in R:
-            String t = entrySet.getKey();
-            p_W_GivenR_one_doc = 0;
-
-            for (Map.Entry<Integer, DocumentVector> docEntrySet : feedbackDocumentVectors.entrySet()) {
-                int luceneDocId = docEntrySet.getKey();
-                p_W_GivenR_one_doc += 
-                    return_Smoothed_MLE(entrySet.getValue(), feedbackDocumentVectors.get(luceneDocId)) *
-                    hash_P_Q_Given_D.get(luceneDocId);
-            }
-            list_PwGivenR.add(new WordProbability(t, p_W_GivenR_one_doc));
-        }
-
-        // ++ sorting list in descending order
-        Collections.sort(list_PwGivenR, new Comparator<WordProbability>(){
-            @Override
-            public int compare(WordProbability t, WordProbability t1) {
-                return t.p_w_given_R<t1.p_w_given_R?1:t.p_w_given_R==t1.p_w_given_R?0:-1;
-            }});
-        // -- sorted list in descending order
-
-        for (WordProbability singleTerm : list_PwGivenR) {
-            if (null == hashmap_PwGivenR.get(singleTerm.w)) {
-                hashmap_PwGivenR.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
+        // the vectors are of the full feedback documents; a pruned matrix is
+        // estimated over its own cells, with the same sums as the exhaustive loop
+        if(rm1Engine.equals("exhaustive") && matrix == feedbackMatrix) {
+            for (int localId = 0; localId < numTerms; localId++) {
+                // for each t in R:
+                int t = termStats.getTermId(localId);
+                long cf = termStats.getCF(localId);
+                p_W_GivenR_one_doc = 0;
+
+                for (int i = 0; i < feedbackDocumentVectors.size(); i++) {
+                    p_W_GivenR_one_doc += 
+                        return_Smoothed_MLE(t, cf, feedbackDocumentVectors.get(i)) *
+                        p_Q_Given_D[i];
+                }
+                workspace.p_w_given_R[localId] = p_W_GivenR_one_doc;
             }
-            //* else: The t is already entered in the hash-map 
         }
-
-        return hashmap_PwGivenR;
-    }   // ends RM1()
+        else if(rm1Engine.equals("closedForm"))
+            workspace.p_w_given_R = matrix.estimateRM1ClosedForm(p_Q_Given_D, mixingLambda, vocSize,
+                termStats, workspace.p_w_given_R);
+        else
+            workspace.p_w_given_R = matrix.estimateRM1(p_Q_Given_D, mixingLambda, vocSize,
+                termStats, workspace.p_w_given_R);
+
+        for (int localId = 0; localId < numTerms; localId++)
+            workspace.rm1TermIds[localId] = termStats.getTermId(localId);
+    }
 
 
     /**
@@ -320,86 +575,109 @@ public class RLM {
      * Reference: Nasreen Abdul Jaleel - TREC 2004 UMass Report <p>
      * @param query The query 
      * @param topDocs Initially retrieved document list
-     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @return The workspace, with numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3(TRECQuery query, TopDocs topDocs) throws Exception {
+    public RM3Workspace RM3(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        RM1(query, topDocs);
+        // the workspace has all terms of PRDs along with their probabilities 
 
-        hashmap_PwGivenR = RM1(query, topDocs);
-        // hashmap_PwGivenR has all terms of PRDs along with their probabilities 
+        return RM3(query);
+    }
 
-        /*
-        // +++ Insearting the idf factor
-        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR.entrySet()) {
-            String key = entrySet.getKey();
-            WordProbability value = entrySet.getValue();
-            value.p_w_given_R *= feedbackTermStats.get(key).getIDF();
+    /**
+     * RM3 from the RM1 last estimated, with the current numFeedbackTerms and QMIX.
+     * The RM1 is not modified, hence can be used for several RM3.
+     * @param query The query 
+     * @return The workspace, with numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public RM3Workspace RM3(TRECQuery query) throws Exception {
+
+        trace.begin();
+        selectExpansionTerms(query, workspace);
+        if(null != pruning && null != pruning.report) {
+            selectExpansionTerms(query, pruning.exactWorkspace);
+            pruning.report.record(query.qid, pruning.exactWorkspace, workspace,
+                feedbackTermStats.size(), pruning.termStats.size());
         }
-        hashmap_PwGivenR = sortByValues(hashmap_PwGivenR);
-        // ---
-        //*/
+        trace.end(QueryTracer.RM3);
+        return workspace;
+    } // end RM3()
+
+    /**
+     * RM3 from the RM1 in a workspace, with the current numFeedbackTerms and QMIX.
+     * @param query The query
+     * @param workspace The workspace, with the RM1
+     * @throws Exception 
+     */
+    private void selectExpansionTerms(TRECQuery query, RM3Workspace workspace) throws Exception {
 
         // +++ selecting top numFeedbackTerms terms and normalize
-        int expansionTermCount = 0;
-        float normFactor = 0;
+        // (at least one term is taken, as before)
+        workspace.selectTop(Math.max(numFeedbackTerms, 1));
+        float[] weights = workspace.weights;
+        int size = workspace.size;
 
-        list_PwGivenR = new ArrayList<>(hashmap_PwGivenR.values());
-        hashmap_PwGivenR = new LinkedHashMap<>();
-        for (WordProbability singleTerm : list_PwGivenR) {
-            if (null == hashmap_PwGivenR.get(singleTerm.w)) {
-                hashmap_PwGivenR.put(singleTerm.w, new WordProbability(singleTerm.w, singleTerm.p_w_given_R));
-                expansionTermCount++;
-                normFactor += singleTerm.p_w_given_R;
-                if(expansionTermCount>=numFeedbackTerms)
-                    break;
-            }
-            //* else: The t is already there in the hash-map 
-        }
+        float normFactor = 0;
+        for (int i = 0; i < size; i++)
+            normFactor += weights[i];
         // ++ Normalizing 
-        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR.entrySet()) {
-            WordProbability wp = entrySet.getValue();
-            wp.p_w_given_R /= normFactor;
-        }
+        for (int i = 0; i < size; i++)
+            weights[i] /= normFactor;
         // -- Normalizing done
 
-        String[] analyzedQuery = query.queryFieldAnalyze(analyzer, query.qtitle).split("\\s+");
+        int[] analyzedQuery = getAnalyzedQuery(query);
 
         normFactor = 0;
         //* Each w of R: P(w|R) to be QMIX*P(w|R) 
-        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR.entrySet()) {
-            String key = entrySet.getKey();
-            WordProbability value = entrySet.getValue();
-            value.p_w_given_R = value.p_w_given_R * QMIX;
-            normFactor += value.p_w_given_R;
+        for (int i = 0; i < size; i++) {
+            weights[i] = weights[i] * QMIX;
+            normFactor += weights[i];
         }
 
         // Now P(w|R) = QMIX*P(w|R)
         //* Each w which are also query terms: P(w|R) += (1-QMIX)*P(w|Q)
         //      P(w|Q) = tf(w,Q)/|Q|
-        for (String qTerm : analyzedQuery) {
-            WordProbability oldProba = hashmap_PwGivenR.get(qTerm);
+        for (int qTerm : analyzedQuery) {
+            if(qTerm < 0)   // the qTerm is not in the collection
+                continue;
+            int i = workspace.indexOf(qTerm);
             float newProb = (1.0f-QMIX) * returnMLE_of_q_in_Q(analyzedQuery, qTerm);
-            float oldProb;
-            if (null != oldProba) { // qTerm is in R
-                oldProba.p_w_given_R += newProb;
+            if (-1 != i) { // qTerm is in R
+                workspace.weights[i] += newProb;
                 normFactor += newProb;
-                hashmap_PwGivenR.put(qTerm, oldProba);
             }
             else  // the qTerm is not in R
-                hashmap_PwGivenR.put(qTerm, new WordProbability(qTerm, newProb));
+                workspace.add(qTerm, newProb);
         }
 
         // ++ Normalizing
-        for (Map.Entry<String, WordProbability> entrySet : hashmap_PwGivenR.entrySet()) {
-            WordProbability wp = entrySet.getValue();
-            wp.p_w_given_R /= normFactor;
-        }
+        weights = workspace.weights;
+        size = workspace.size;
+        for (int i = 0; i < size; i++)
+            weights[i] /= normFactor;
         // -- Normalizing done
+    }
 
-        return hashmap_PwGivenR;
-    } // end RM3()
+    /**
+     * Returns the analyzed query as term ids (-1 for a term not in the collection).
+     * @param query The query
+     * @return The term ids; kept for the query till another is asked for
+     * @throws Exception 
+     */
+    private int[] getAnalyzedQuery(TRECQuery query) throws Exception {
+
+        if(query != analyzedQueryOf) {
+            String[] analyzedQueryTerms = query.queryFieldAnalyze(analyzer, query.qtitle).split("\\s+");
+            analyzedQuery = new int[analyzedQueryTerms.length];
+            for (int k = 0; k < analyzedQueryTerms.length; k++)
+                analyzedQuery[k] = termDict.getId(analyzedQueryTerms[k]);
+            analyzedQueryOf = query;
+        }
+        return analyzedQuery;
+    }
 
     /**
      * Returns the expanded query in BooleanQuery form with P(w|R) as 
@@ -409,16 +687,15 @@ public class RLM {
      * @return BooleanQuery to be used for consequent re-retrieval
      * @throws Exception 
      */
-    public BooleanQuery getExpandedQuery(HashMap<String, WordProbability> expandedQuery, TRECQuery query) throws Exception {
+    public BooleanQuery getExpandedQuery(RM3Workspace expandedQuery, TRECQuery query) throws Exception {
 
         BooleanQuery booleanQuery = new BooleanQuery();
         
-        for (Map.Entry<String, WordProbability> entrySet : expandedQuery.entrySet()) {
-            String key = entrySet.getKey();
+        for (int i = 0; i < expandedQuery.size(); i++) {
+            String key = termDict.getTerm(expandedQuery.getTerm(i));
             if(key.contains(":"))
                 continue;
-            WordProbability wProba = entrySet.getValue();
-            float value = wProba.p_w_given_R;
+            float value = expandedQuery.getWeight(i);
 
             Term t = new Term(rblm.fieldToSearch, key);
             Query tq = new TermQuery(t);
@@ -430,56 +707,142 @@ public class RLM {
         return booleanQuery;
     } // ends getExpandedQuery()
 
+    /**
+     * Returns the expanded query as weighted terms, for the maxscore
+     * re-retrieval engine; the same terms and weights as {@link #getExpandedQuery}.
+     * @param expandedQuery The expanded query
+     * @param query The query
+     * @return The {@link #weightedTermsQuery}, with the terms of the expanded query
+     * @throws Exception 
+     */
+    public WeightedTermsQuery getWeightedTermsQuery(RM3Workspace expandedQuery, TRECQuery query) throws Exception {
+
+        weightedTermsQuery.clear();
+        for (int i = 0; i < expandedQuery.size(); i++) {
+            String key = termDict.getTerm(expandedQuery.getTerm(i));
+            if(key.contains(":"))
+                continue;
+            weightedTermsQuery.add(key, expandedQuery.getWeight(i));
+        }
+
+        return weightedTermsQuery;
+    }
+
     /**
      * Rerank the result depending on the KL-Divergence between the estimated relevance model 
      *  and individual document model.
-     * @param hashmap_topM_PwGivenR Top M terms with highest P(w|R)
+     * @param topM_PwGivenR Top M terms with highest P(w|R)
      * @param query The raw query (unanalyzed)
      * @param topDocs Initial retrieved documents
      * @throws Exception 
      */
-    public List<NewScore> rerankUsingRBLM(HashMap<String, WordProbability> hashmap_topM_PwGivenR, 
+    public List<NewScore> rerankUsingRBLM(RM3Workspace topM_PwGivenR, 
         TRECQuery query, TopDocs topDocs) throws Exception {
 
         List<NewScore> finalList = new ArrayList<>();
         ScoreDoc[] hits;
 
         int hits_length;
-        String w;
-
-        PerTermStat ptsFromDocument;
 
         hits = topDocs.scoreDocs;
         hits_length = hits.length;               // number of documents retrieved in the first retrieval
 
         double score;
-        double preComputed_p_w_R;
-        double singleTerm_p_w_d;
 
-        for (int i = 0; i < hits_length; i++) {
-            int luceneDocId = hits[i].doc;
-            Document d = indexSearcher.doc(luceneDocId);
-            DocumentVector dv = new DocumentVector();
-            dv = dv.getDocumentVector(luceneDocId, indexReader);
-
-            score = 0;
+        // the top terms in R with P(w|R), taken once for all the documents
+        int numExpansionTerms = topM_PwGivenR.size();
+        int[] expansionTerms = new int[numExpansionTerms];
+        double[] p_w_R = new double[numExpansionTerms];
+        int k;
+        for (k = 0; k < numExpansionTerms; k++) {
+            expansionTerms[k] = topM_PwGivenR.getTerm(k);
+            p_w_R[k] = topM_PwGivenR.getWeight(k);
+        }
 
-            for (Map.Entry<String, WordProbability> entrySet : hashmap_topM_PwGivenR.entrySet()) {
-            // for each of the words in top numFeedbackTerms terms in R
-                w = entrySet.getKey();
-                ptsFromDocument     = dv.docPerTermStat.get(w);
-//                ptsFromCollection   = collStat.perTermStat.get(w);
-                preComputed_p_w_R = entrySet.getValue().p_w_given_R;
+        // the collection probabilities of the expansion terms, for this query
+        colProbLookup.start(expansionTerms);
+
+        // ++ split kernel: the expansion terms sorted by id, with the per query constant
+        int[] sortedTerms = null;
+        double[] sortedP = null;
+        double[] colPart = null;
+        double queryConstant = 0;
+        if(kernels.isSplit() || kernels.check) {
+            long[] order = new long[numExpansionTerms];
+            for (k = 0; k < numExpansionTerms; k++)
+                order[k] = ((long)expansionTerms[k] << 32) | k;
+            Arrays.sort(order);
+            sortedTerms = new int[numExpansionTerms];
+            sortedP = new double[numExpansionTerms];
+            colPart = new double[numExpansionTerms];
+            for (int j = 0; j < numExpansionTerms; j++) {
+                k = (int) order[j];
+                sortedTerms[j] = expansionTerms[k];
+                sortedP[j] = p_w_R[k];
+                colPart[j] = (1.0f-mixingLambda)*colProbLookup.get(k);
+            }
+            queryConstant = ScoringKernels.sumPLogP(sortedP, numExpansionTerms)
+                - ScoringKernels.sumPLogQ(sortedP, colPart, numExpansionTerms);
+        }
+        // --
+
+        if(topDocs != rerankTopDocs) {
+            rerankDocids = new String[hits_length];
+            for (int i = 0; i < hits_length; i++)
+                rerankDocids[i] = rblm.getDocid(hits[i].doc);
+            rerankDocVectors = null;
+            rerankTopDocs = topDocs;
+        }
 
-                singleTerm_p_w_d = ( ((ptsFromDocument!=null)?(mixingLambda * (double)ptsFromDocument.getCF() / (double)dv.getDocSize()):(0.0))// );
-                    + (1.0f-mixingLambda)*(getCollectionProbability(w, indexReader, fieldForFeedback)));
-//                     + ((ptsFromCollection!=null)?((1-mixingLambda)*(double)ptsFromCollection.getCF() / (double)vocSize):(0.0)) );
-                score +=  (preComputed_p_w_R * (double)Math.log(preComputed_p_w_R/singleTerm_p_w_d));
+        double[] scores;
+        if(null != postingsReranker) {
+            // ++ term-at-a-time over the postings of the expansion terms
+            postingsReranker.setCandidates(topDocs);
+            double[] splitScores = null;
+            double[] scalarScores = null;
+            if(kernels.isSplit() || kernels.check)
+                splitScores = postingsReranker.splitKLD(sortedTerms, sortedP, colPart, queryConstant, mixingLambda);
+            if(!kernels.isSplit() || kernels.check) {
+                float[] scalarColPart = new float[numExpansionTerms];
+                for (k = 0; k < numExpansionTerms; k++)
+                    scalarColPart[k] = (1.0f-mixingLambda)*colProbLookup.get(k);
+                scalarScores = postingsReranker.scalarKLD(expansionTerms, p_w_R, scalarColPart, mixingLambda);
+            }
+            scores = kernels.isSplit() ? splitScores : scalarScores;
+            if(kernels.check) {
+                for (int i = 0; i < hits_length; i++)
+                    kernels.record(scalarScores[i], splitScores[i]);
+            }
+            // --
+        }
+        else {
+            if(null == rerankDocVectors)
+                rerankDocVectors = readDocumentVectors(hits, hits_length);
+
+            scores = new double[hits_length];
+            for (int i = 0; i < hits_length; i++) {
+                DocumentVector dv = rerankDocVectors[i];
+
+                if(kernels.isSplit()) {
+                    score = queryConstant - ScoringKernels.documentSum(dv.termIds, dv.termFreqs, dv.numUniqueTerms,
+                        dv.getDocSize(), sortedTerms, sortedP, colPart, numExpansionTerms, mixingLambda);
+                    if(kernels.check)
+                        kernels.record(scalarKLD(dv, expansionTerms, p_w_R), score);
+                }
+                else {
+                    score = scalarKLD(dv, expansionTerms, p_w_R);
+                    if(kernels.check)
+                        kernels.record(score, queryConstant - ScoringKernels.documentSum(dv.termIds, dv.termFreqs,
+                            dv.numUniqueTerms, dv.getDocSize(), sortedTerms, sortedP, colPart, numExpansionTerms, mixingLambda));
+                }
+                scores[i] = score;
+            } //ends for each initially retrieved documents
+        }
 
-            } // ends for each t in top numFeedbackTerms terms in R
+        colProbLookup.end();
 
-            finalList.add(new NewScore(score, d.get(FIELD_ID)));
-        } //ends for each initially retrieved documents
+        for (int i = 0; i < hits_length; i++)
+            finalList.add(new NewScore(scores[i], rerankDocids[i]));
 
         Collections.sort(finalList, new Comparator<NewScore>(){
             @Override
@@ -491,22 +854,37 @@ public class RLM {
         return finalList;
     }
 
-    private static HashMap sortByValues(HashMap map) {
-        List<Map.Entry<String, WordProbability>> list = new ArrayList(map.entrySet());
-        // Defined Custom Comparator here
-        Collections.sort(list, new Comparator<Map.Entry<String, WordProbability>>() {
-            @Override
-            public int compare(Map.Entry<String, WordProbability> t1, Map.Entry<String, WordProbability> t2) {
-                return t1.getValue().p_w_given_R<t2.getValue().p_w_given_R?1:t1.getValue().p_w_given_R==t2.getValue().p_w_given_R?0:-1;
-            }
-        });
+    /**
+     * KL-divergence between the relevance model and a document model,
+     * term by term (the "scalar" kernel).
+     * @param dv The document vector
+     * @param expansionTerms The expansion terms
+     * @param p_w_R P(w|R) of the expansion terms
+     * @return \sum_w P(w|R) log(P(w|R) / P(w|d))
+     * @throws IOException
+     */
+    private double scalarKLD(DocumentVector dv, int[] expansionTerms, double[] p_w_R) throws IOException {
 
-        // Copying the sorted list in HashMap
-        // using LinkedHashMap to preserve the insertion order
-        HashMap sortedHashMap = new LinkedHashMap();
-        for (Map.Entry entry : list) {
-            sortedHashMap.put(entry.getKey(), entry.getValue());
-        }
-        return sortedHashMap;
+        int w;
+        int tfInDocument;
+        double preComputed_p_w_R;
+        double singleTerm_p_w_d;
+        double score = 0;
+
+        for (int k = 0; k < expansionTerms.length; k++) {
+        // for each of the words in top numFeedbackTerms terms in R
+            w = expansionTerms[k];
+            tfInDocument        = dv.getTf(w);
+//            ptsFromCollection   = collStat.perTermStat.get(w);
+            preComputed_p_w_R = p_w_R[k];
+
+            singleTerm_p_w_d = ( ((tfInDocument!=0)?(mixingLambda * (double)tfInDocument / (double)dv.getDocSize()):(0.0))// );
+                + (1.0f-mixingLambda)*colProbLookup.get(k));
+//                 + ((ptsFromCollection!=null)?((1-mixingLambda)*(double)ptsFromCollection.getCF() / (double)vocSize):(0.0)) );
+            score +=  (preComputed_p_w_R * (double)Math.log(preComputed_p_w_R/singleTerm_p_w_d));
+
+        } // ends for each t in top numFeedbackTerms terms in R
+
+        return score;
     }
 }
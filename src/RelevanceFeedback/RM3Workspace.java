@@ -0,0 +1,174 @@
+package RelevanceFeedback;
+
+import java.util.Arrays;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Reusable buffers for RM1 and RM3 of an {@link RLM}; one per thread.<p>
+ * RM1 is kept as P(w|R) of all the feedback terms, over the local ids of the
+ * feedback vocabulary. RM3 selects the top numFeedbackTerms of them with a
+ * bounded min-heap, and normalizes and mixes with the query model in place;
+ * the expansion terms with their weights are held in parallel arrays, in
+ * non-increasing order of P(w|R) (ties broken by the term id), followed by
+ * the query terms not in R. The buffers only grow, hence no allocation in
+ * the steady state.
+ * @author dwaipayan
+ */
+public class RM3Workspace {
+
+    /**
+     * P(w|R) of RM1, indexed by the local id of the feedback vocabulary.
+     */
+    float[]     p_w_given_R = new float[0];
+    /**
+     * Term ids of the feedback vocabulary, parallel to p_w_given_R.
+     */
+    int[]       rm1TermIds = new int[0];
+    int         rm1Size;
+
+    /**
+     * Min-heap of local ids, the worst of the selected ones at the top.
+     */
+    int[]       heap = new int[0];
+
+    /**
+     * The expansion terms with their weights.
+     */
+    int[]       terms = new int[0];
+    float[]     weights = new float[0];
+    int         size;
+
+    /**
+     * Makes room for the RM1 of a feedback vocabulary.
+     * @param numTerms Size of the feedback vocabulary
+     */
+    void ensureRM1Capacity(int numTerms) {
+
+        if(p_w_given_R.length < numTerms)
+            p_w_given_R = new float[ArrayUtil.oversize(numTerms, 4)];
+        if(rm1TermIds.length < numTerms)
+            rm1TermIds = new int[ArrayUtil.oversize(numTerms, 4)];
+        rm1Size = numTerms;
+    }
+
+    public int size() {return size;}
+    public int getTerm(int i) {return terms[i];}
+    public float getWeight(int i) {return weights[i];}
+
+    /**
+     * Returns the position of a term among the expansion terms.
+     * @param term The term id
+     * @return The position; -1 if not an expansion term
+     */
+    public int indexOf(int term) {
+
+        for (int i = 0; i < size; i++)
+            if(terms[i] == term)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Adds an expansion term at the end.
+     * @param term The term id
+     * @param weight The weight
+     */
+    void add(int term, float weight) {
+
+        if(terms.length <= size) {
+            int capacity = ArrayUtil.oversize(size+1, 4);
+            terms = Arrays.copyOf(terms, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        terms[size] = term;
+        weights[size] = weight;
+        size++;
+    }
+
+    /**
+     * Sets the expansion terms, e.g. as taken from the {@link ExpansionCache}.
+     * @param terms The term ids
+     * @param weights The weights
+     */
+    void setExpansionTerms(int[] terms, float[] weights) {
+
+        size = 0;
+        for (int i = 0; i < terms.length; i++)
+            add(terms[i], weights[i]);
+    }
+
+    /**
+     * True if the RM1 entry a ranks below b: smaller P(w|R), or equal with a larger term id.
+     */
+    private boolean below(int a, int b) {
+
+        float pa = p_w_given_R[a], pb = p_w_given_R[b];
+        return pa < pb || (pa == pb && rm1TermIds[a] > rm1TermIds[b]);
+    }
+
+    private void siftDown(int i, int n) {
+
+        int x = heap[i];
+        while(true) {
+            int child = 2*i + 1;
+            if(child >= n)
+                break;
+            if(child + 1 < n && below(heap[child+1], heap[child]))
+                child++;
+            if(!below(heap[child], x))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+
+    /**
+     * Sets the expansion terms to the top k terms of RM1, in non-increasing order of P(w|R).
+     * @param k Number of terms to select
+     */
+    void selectTop(int k) {
+
+        k = Math.min(k, rm1Size);
+        if(heap.length < k)
+            heap = new int[ArrayUtil.oversize(k, 4)];
+
+        // ++ bounded min-heap of the best k seen so far
+        int n = 0;
+        for (int localId = 0; localId < rm1Size; localId++) {
+            if(n < k) {
+                // sift up
+                int i = n++;
+                while(i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if(!below(localId, heap[parent]))
+                        break;
+                    heap[i] = heap[parent];
+                    i = parent;
+                }
+                heap[i] = localId;
+            }
+            else if(below(heap[0], localId)) {
+                heap[0] = localId;
+                siftDown(0, n);
+            }
+        }
+        // --
+
+        // ++ heap-sort: the worst goes last
+        size = 0;
+        if(terms.length < k) {
+            terms = new int[ArrayUtil.oversize(k, 4)];
+            weights = new float[terms.length];
+        }
+        for (int last = n - 1; last >= 0; last--) {
+            int localId = heap[0];
+            terms[last] = rm1TermIds[localId];
+            weights[last] = p_w_given_R[localId];
+            heap[0] = heap[last];
+            siftDown(0, last);
+        }
+        size = n;
+        // --
+    }
+}
@@ -11,11 +11,18 @@ import static common.CommonVariables.FIELD_BOW;
 import static common.CommonVariables.FIELD_ID;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
@@ -36,6 +43,16 @@ import org.apache.lucene.store.FSDirectory;
 import common.EnglishAnalyzerWithSmartStopword;
 import common.TRECQuery;
 import common.TRECQueryParser;
+import common.DocLengthColumn;
+import common.DocidIndex;
+import common.DocumentVectorCache;
+import common.ForwardIndex;
+import common.ResultWriter;
+import common.SegmentParallelSearcher;
+import common.ResultWriter.QueryResult;
+import common.IndexSidecar;
+import common.TermDictionary;
+import common.TermStatsSidecar;
 
 /**
  *
@@ -52,10 +69,11 @@ public class RelevanceBasedLanguageModel {
     IndexReader     indexReader;
     IndexSearcher   indexSearcher;
     String          resPath;        // path of the res file
-    FileWriter      resFileWriter;  // the res file writer
+    ResultWriter    resultWriter;   // writer of the res file(s): one, or one per configuration of the sweep
     int             numHits;      // number of document to retrieveWithExpansionTermsFromFile
     String          runName;        // name of the run
-    List<TRECQuery> queries;
+    List<TRECQuery> queries;        // the queries; null if they are streamed from the file (queries.stream)
+    String          queryFormat;    // format of the query file: trec/lines
     File            indexFile;          // place where the index is stored
     Analyzer        analyzer;           // the analyzer
     boolean         boolIndexExists;    // boolean flag to indicate whether the index exists or not
@@ -65,10 +83,25 @@ public class RelevanceBasedLanguageModel {
     int             simFuncChoice;
     float           param1, param2;
     long            vocSize;            // vocabulary size
+    TermDictionary  termDict;           // dictionary of the terms of fieldForFeedback
+    CollectionProbabilityCache colProbCache;    // collection probabilities for the KLD reranking
+    ScoringKernels  scoringKernels;     // kernels for P(Q|d) and the KLD reranking
+    DocumentVectorCache docVectorCache; // document vectors shared across the queries; null if disabled
     RLM             rlm;
     Boolean         feedbackFromFile;
+    int             numThreads;         // number of queries to be processed in parallel
+    ParameterSweep  sweep;              // the parameter sweep; null if a single configuration is run
 
     HashMap<String, TopDocs> allTopDocsFromFileHashMap;    // to contain all topdocs from file
+    DocidIndex      docidIndex;         // docid to lucene docid resolution; null if not needed
+    DocLengthColumn docLengths;         // lengths of the documents, for the postings rerank engine; null if not needed
+    ForwardIndex    forwardIndex;       // source of the document vectors instead of the term vectors; null if disabled
+    QueryTracer     tracer;             // per query, per stage tracing; null if disabled
+    TermScoreBounds termScoreBounds;    // bounds of the term scores, for the maxscore re-retrieval engine; null if not needed
+    ExpansionCache  expansionCache;     // expansion models of the queries, kept across the runs; null if disabled
+    SegmentParallelSearcher segmentSearcher;    // searches the segments in parallel; null if disabled
+    FeedbackPrefetcher prefetcher;      // reads the feedback documents of the upcoming queries; null if disabled
+    FeedbackPruning.Report pruningReport;   // approximate vs exact RM3; null if not reported
     
     float           mixingLambda;    // mixing weight, used for doc-col weight distribution
     int             numFeedbackTerms;// number of feedback terms
@@ -115,19 +148,26 @@ public class RelevanceBasedLanguageModel {
 
         /* setting query path */
         queryPath = prop.getProperty("queryPath");
-        queryFile = new File(queryPath);
         /* query path set */
 
         /* constructing the query */
         trecQueryparser = new TRECQueryParser(queryPath, analyzer);
-        queries = constructQueries();
+        queryFormat = prop.getProperty("queryFormat", TRECQueryParser.FORMAT_TREC);
+        if(null != queryPath) {
+            queryFile = new File(queryPath);
+            if(!Boolean.parseBoolean(prop.getProperty("queries.stream", "false")))
+                queries = constructQueries();
+        }
+        else    // no query file, and no res file, in the server mode (see ExpansionServer)
+            queries = new ArrayList<>();
         /* constructed the query */
 
         feedbackFromFile = Boolean.parseBoolean(prop.getProperty("feedbackFromFile"));
         if(feedbackFromFile == true) {
             String feedbackFilePath = prop.getProperty("feedbackFilePath");
             System.out.println("Using feedback information from file: " + feedbackFilePath);
-            allTopDocsFromFileHashMap = common.CommonMethods.readTopDocsFromFile(feedbackFilePath, queries, indexReader);
+            loadDocidIndex();
+            allTopDocsFromFileHashMap = common.CommonMethods.readTopDocsFromFile(feedbackFilePath, queries, docidIndex);
         }
 
         // numFeedbackTerms = number of top terms to select
@@ -140,16 +180,141 @@ public class RelevanceBasedLanguageModel {
         else
             mixingLambda = param1;
 
-        /* setting res path */
-        setRunName_ResFileName();
-        resFileWriter = new FileWriter(resPath);
-        System.out.println("Result will be stored in: "+resPath);
-
         /* res path set */
         numHits = Integer.parseInt(prop.getProperty("numHits","1000"));
         QMIX = Float.parseFloat(prop.getProperty("rm3.queryMix"));
 
+        numThreads = Integer.parseInt(prop.getProperty("numThreads", "1"));
+
+        /* setting res path */
+        String[] resPaths;
+        if(ParameterSweep.isSweep(prop) && null != queryFile) {
+            sweep = new ParameterSweep(this);
+            resPaths = sweep.getResPaths();
+        }
+        else {
+            setRunName_ResFileName();
+            resPaths = new String[] {resPath};
+        }
+        if(null != queryFile) {
+            boolean gzip = Boolean.parseBoolean(prop.getProperty("res.gzip", "false"));
+            for (int i = 0; i < resPaths.length; i++) {
+                if(gzip)
+                    resPaths[i] += ".gz";
+                System.out.println("Result will be stored in: "+resPaths[i]);
+            }
+            resultWriter = new ResultWriter(resPaths, gzip, 4 * Math.max(1, numThreads) * resPaths.length);
+        }
+
+        if(Boolean.parseBoolean(prop.getProperty("termStats.sidecar", "false"))) {
+            File sidecarFile = (null != prop.getProperty("termStats.path")) ?
+                new File(prop.getProperty("termStats.path")) :
+                IndexSidecar.getSidecarFile(indexPath, fieldForFeedback + ".termstats");
+            termDict = TermStatsSidecar.loadOrBuild(indexReader, fieldForFeedback, sidecarFile,
+                Runtime.getRuntime().availableProcessors());
+        }
+        else
+            termDict = new TermDictionary(indexReader, fieldForFeedback);
+        System.out.println("Term dictionary: " + termDict.size() + " terms");
+        colProbCache = new CollectionProbabilityCache(termDict, indexReader,
+            Boolean.parseBoolean(prop.getProperty("rm3.rerank")) ?
+            prop.getProperty("rm3.rerank.colProbCache", CollectionProbabilityCache.QUERY) :
+            CollectionProbabilityCache.NONE);
+
+        scoringKernels = new ScoringKernels(prop.getProperty("scoring.kernel", ScoringKernels.SPLIT),
+            Boolean.parseBoolean(prop.getProperty("scoring.kernel.check", "false")),
+            Double.parseDouble(prop.getProperty("scoring.kernel.tolerance", "1e-9")));
+
+        long docVectorCacheSize = Long.parseLong(prop.getProperty("docVectorCache.size", "0"));
+        if(docVectorCacheSize > 0) {
+            docVectorCache = new DocumentVectorCache(termDict, docVectorCacheSize << 20,
+                Boolean.parseBoolean(prop.getProperty("docVectorCache.offHeap", "false")),
+                Math.max(16, 4 * numThreads));
+            System.out.println("Document vector cache: " + docVectorCacheSize + "MB");
+        }
+
+        if(Boolean.parseBoolean(prop.getProperty("res.docidIndex", "false")))
+            loadDocidIndex();
+
+        if(Boolean.parseBoolean(prop.getProperty("forwardIndex", "false")))
+            forwardIndex = ForwardIndex.loadOrBuild(indexReader, termDict,
+                (null != prop.getProperty("forwardIndex.path")) ?
+                new File(prop.getProperty("forwardIndex.path")) :
+                IndexSidecar.getSidecarFile(indexPath, fieldForFeedback + ".forward"),
+                Long.parseLong(prop.getProperty("forwardIndex.buildMemory", "256")) << 20);
+
+        String rerankEngine = prop.getProperty("rm3.rerank.engine", "vectors");
+        if(rerankEngine.equals("postings") && Boolean.parseBoolean(prop.getProperty("rm3.rerank")))
+            docLengths = DocLengthColumn.loadOrBuild(indexReader, fieldForFeedback,
+                (null != prop.getProperty("docLength.path")) ?
+                new File(prop.getProperty("docLength.path")) :
+                IndexSidecar.getSidecarFile(indexPath, fieldForFeedback + ".doclen"));
+        else if(!rerankEngine.equals("vectors"))
+            System.err.println("Unknown rm3.rerank.engine: " + rerankEngine + "; using vectors");
+
+        String reretrievalEngine = prop.getProperty("rm3.reretrieval.engine", "boolean");
+        if(reretrievalEngine.equals("maxscore") && !Boolean.parseBoolean(prop.getProperty("rm3.rerank")))
+            termScoreBounds = new TermScoreBounds(indexReader, fieldToSearch);
+        else if(!reretrievalEngine.equals("boolean"))
+            System.err.println("Unknown rm3.reretrieval.engine: " + reretrievalEngine + "; using boolean");
+
+        if(null != prop.getProperty("trace.path"))
+            tracer = new QueryTracer(prop.getProperty("trace.path"));
+
+        int searchThreads = Integer.parseInt(prop.getProperty("search.threads", "0"));
+        if(searchThreads > 0)
+            segmentSearcher = new SegmentParallelSearcher(indexSearcher, searchThreads);
+
+        if(Boolean.parseBoolean(prop.getProperty("expansionCache", "false"))) {
+            if(feedbackFromFile)
+                System.err.println("Expansion cache is not used with feedbackFromFile");
+            else
+                expansionCache = new ExpansionCache(indexReader, fieldForFeedback,
+                    (null != prop.getProperty("expansionCache.path")) ?
+                    new File(prop.getProperty("expansionCache.path")) :
+                    IndexSidecar.getSidecarFile(indexPath, fieldForFeedback + ".expansions"),
+                    Integer.parseInt(prop.getProperty("expansionCache.size", "10000")));
+        }
+
+        if(Boolean.parseBoolean(prop.getProperty("rm3.approx.report", "false")))
+            pruningReport = new FeedbackPruning.Report();
+
         rlm = new RLM(this);
+
+        int readAhead = Integer.parseInt(prop.getProperty("feedback.readAhead", "0"));
+        if(readAhead > 0) {
+            if(null == docVectorCache)
+                System.err.println("feedback.readAhead needs docVectorCache.size; read-ahead disabled");
+            else
+                prefetcher = new FeedbackPrefetcher(this, readAhead);
+        }
+    }
+
+    /**
+     * Sets {@link #docidIndex}, if not already set, from the docid sidecar of the index.
+     * @throws IOException 
+     */
+    private void loadDocidIndex() throws IOException {
+
+        if(null == docidIndex)
+            docidIndex = DocidIndex.loadOrBuild(indexReader, (null != prop.getProperty("docidIndex.path")) ?
+                new File(prop.getProperty("docidIndex.path")) :
+                IndexSidecar.getSidecarFile(indexPath, FIELD_ID + ".docids"));
+    }
+
+    /**
+     * Returns the docid of a document: from the docid index, if loaded, 
+     * without reading the stored document; else from the stored field.
+     * @param luceneDocId The lucene docid
+     * @return The docid
+     * @throws IOException 
+     */
+    String getDocid(int luceneDocId) throws IOException {
+
+        if(null != docidIndex)
+            return docidIndex.getDocid(luceneDocId);
+        Document d = indexSearcher.doc(luceneDocId);
+        return d.get(FIELD_ID);
     }
 
     /**
@@ -160,39 +325,94 @@ public class RelevanceBasedLanguageModel {
      */
     private void setSimilarityFunction(int choice, float param1, float param2) {
 
+        Similarity similarity = getSimilarity(choice, param1, param2);
+        if(null != similarity)
+            indexSearcher.setSimilarity(similarity);
+    } // ends setSimilarityFunction()
+
+    /**
+     * Returns the similarity function of a choice.
+     * @param choice similarity function selection flag
+     * @param param1 similarity function parameter 1
+     * @param param2 similarity function parameter 2
+     * @return The similarity; null for an unknown choice
+     */
+    static Similarity getSimilarity(int choice, float param1, float param2) {
+
         switch(choice) {
             case 0:
-                indexSearcher.setSimilarity(new DefaultSimilarity());
-                break;
+                return new DefaultSimilarity();
             case 1:
-                indexSearcher.setSimilarity(new BM25Similarity(param1, param2));
-                break;
+                return new BM25Similarity(param1, param2);
             case 2:
-                indexSearcher.setSimilarity(new LMJelinekMercerSimilarity(param1));
-                break;
+                return new LMJelinekMercerSimilarity(param1);
             case 3:
-                indexSearcher.setSimilarity(new LMDirichletSimilarity(param1));
-                break;
+                return new LMDirichletSimilarity(param1);
         }
-    } // ends setSimilarityFunction()
+        return null;
+    }
 
     /**
      * Sets runName and resPath variables depending on similarity functions.
      */
     private void setRunName_ResFileName() {
 
-        Similarity s = indexSearcher.getSimilarity();
-        runName = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTerms;
-        runName += "-rm3-"+Float.parseFloat(prop.getProperty("rm3.queryMix", "0.98"));
-        runName = runName.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
-        if(Boolean.parseBoolean(prop.getProperty("rm3.rerank")) == true)
-            runName += "-rerank";
+        runName = getRunName(numFeedbackDocs, numFeedbackTerms,
+            Float.parseFloat(prop.getProperty("rm3.queryMix", "0.98")), null);
+        resPath = (null == queryFile) ? null : getResPath(runName);
+    } // ends setRunName_ResFileName()
+
+    /**
+     * Returns the name of a run, depending on the similarity function and the feedback parameters.
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of feedback terms
+     * @param queryMix rm3.queryMix
+     * @param mixingLambda Mixing weight; null if it is not to be in the name
+     * @return The run name
+     */
+    String getRunName(int numFeedbackDocs, int numFeedbackTerms, float queryMix, Float mixingLambda) {
+
+        return getRunName(indexSearcher.getSimilarity(), numFeedbackDocs, numFeedbackTerms, queryMix, mixingLambda,
+            Boolean.parseBoolean(prop.getProperty("rm3.rerank")));
+    }
+
+    /**
+     * Returns the name of a run.
+     * @param s The similarity function
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of feedback terms
+     * @param queryMix rm3.queryMix
+     * @param mixingLambda Mixing weight; null if it is not to be in the name
+     * @param rerank rm3.rerank
+     * @return The run name
+     */
+    static String getRunName(Similarity s, int numFeedbackDocs, int numFeedbackTerms,
+        float queryMix, Float mixingLambda, boolean rerank) {
+
+        String name = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTerms;
+        name += "-rm3-"+queryMix;
+        if(null != mixingLambda)
+            name += "-lambda-"+mixingLambda;
+        name = name.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
+        if(rerank == true)
+            name += "-rerank";
+        return name;
+    }
+
+    /**
+     * Returns the path of the res file of a run.
+     * @param runName The run name
+     * @return resPath + query-file-name + "-" + runName + ".res"
+     */
+    String getResPath(String runName) {
+
+        String path;
         if(null == prop.getProperty("resPath"))
-            resPath = "/home/dwaipayan/";
+            path = "/home/dwaipayan/";
         else
-            resPath = prop.getProperty("resPath");
-        resPath = resPath+queryFile.getName()+"-"+runName + ".res";
-    } // ends setRunName_ResFileName()
+            path = prop.getProperty("resPath");
+        return path+queryFile.getName()+"-"+runName + ".res";
+    }
 
     /**
      * Parses the query from the file and makes a List<TRECQuery> 
@@ -202,112 +422,454 @@ public class RelevanceBasedLanguageModel {
      */
     private List<TRECQuery> constructQueries() throws Exception {
 
-        trecQueryparser.queryFileParse();
+        if(TRECQueryParser.FORMAT_LINES.equals(queryFormat)) {
+            Iterator<TRECQuery> lines = trecQueryparser.queryFileStream(queryFormat, 0);
+            while(lines.hasNext())
+                trecQueryparser.queries.add(lines.next());
+        }
+        else
+            trecQueryparser.queryFileParse();
         return trecQueryparser.queries;
     } // ends constructQueries()
 
-    public void retrieveAll() throws Exception {
+    /**
+     * Returns the queries: the list read at the start; or, with queries.stream,
+     * the queries read from the file as they are taken (at most queries.buffer
+     * topics ahead), to be iterated once. With feedback.readAhead, the
+     * feedback documents of the next queries are read as each one is taken.
+     * @return The queries, in the order of the file
+     * @throws Exception 
+     */
+    Iterable<TRECQuery> getQueries() throws Exception {
 
-        ScoreDoc[] hits;
-        TopDocs topDocs;
-        TopScoreDocCollector collector;
-//        FileWriter baselineRes = new FileWriter(resPath+".baseline");
+        return (null == prefetcher) ? getQueryList() : prefetcher.readAhead(getQueryList());
+    }
 
-        for (TRECQuery query : queries) {
-            collector = TopScoreDocCollector.create(numHits, true);
-            Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+    /**
+     * @return The queries, as {@link #getQueries}, without the read-ahead
+     * @throws Exception 
+     */
+    private Iterable<TRECQuery> getQueryList() throws Exception {
+
+        if(null != queries)
+            return queries;
+        final Iterator<TRECQuery> stream = trecQueryparser.queryFileStream(queryFormat,
+            Integer.parseInt(prop.getProperty("queries.buffer", "1024")));
+        return new Iterable<TRECQuery>() {
+            @Override
+            public Iterator<TRECQuery> iterator() {
+                return stream;
+            }
+        };
+    }
 
-            System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
+    /**
+     * Retrieves all the queries, sequentially or with a pool of 
+     * {@link #numThreads} workers sharing the one indexReader and indexSearcher.
+     * The res file is written in the original topic order in both the cases.
+     * @throws Exception 
+     */
+    public void retrieveAll() throws Exception {
 
-            if(feedbackFromFile == true) {
-                System.out.println("Feedback from file");
-                if(null == (topDocs = allTopDocsFromFileHashMap.get(query.qid))) {
-                    System.err.println("Error: Query id: "+query.qid+
-                        " not present in res file");
-                    continue;
+//        FileWriter baselineRes = new FileWriter(resPath+".baseline");
+
+        boolean completed = false;
+        try {
+            if(numThreads <= 1) {
+                for (TRECQuery query : getQueries()) {
+                    QueryTracer.Trace trace = newTrace(query);
+                    trace.begin();
+                    Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+                    trace.end(QueryTracer.ANALYSIS);
+                    rlm.trace = trace;
+                    writeQueryResult(process(query, luceneQuery, rlm), trace);
                 }
             }
             else {
-                indexSearcher.search(luceneQuery, collector);
-                topDocs = collector.topDocs();
-            }
-
-            /*
-            // ++ Writing the baseline res
-            baselineRes = new FileWriter(resPath+".baseline", true);
-
-            StringBuffer resBuffer = new StringBuffer();
-            resBuffer = CommonMethods.writeTrecResFileFormat(query.qid, hits, indexSearcher, runName);
-            baselineRes.write(resBuffer.toString());
-            baselineRes.close();
-            // -- baseline res written
-            //*/
-
-            if(true) {
-
-                rlm.setFeedbackStats(topDocs, luceneQuery.toString(fieldToSearch).split(" "), this);
-                /**
-                 * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
-                 * keyed by the term with P(w|R) as the value.
-                 */
-                HashMap<String, WordProbability> hashmap_PwGivenR;
-                //hashmap_PwGivenR = rlm.RM1(query, topDocs);
-                hashmap_PwGivenR = rlm.RM3(query, topDocs);
-                BooleanQuery booleanQuery;
-
-                if(Boolean.parseBoolean(prop.getProperty("rm3.rerank"))==false) {
-
-                    booleanQuery = rlm.getExpandedQuery(hashmap_PwGivenR, query);
-                    System.out.println("Re-retrieving with QE");
-                    System.out.println(booleanQuery.toString(fieldToSearch));
-                    collector = TopScoreDocCollector.create(numHits, true);
-                    indexSearcher.search(booleanQuery, collector);
-
-                    topDocs = collector.topDocs();
-                    hits = topDocs.scoreDocs;
-                    if(hits == null)
-                        System.out.println("Nothing found");
-
-                    int hits_length = hits.length;
-
-                    resFileWriter = new FileWriter(resPath, true);
-
-                    StringBuffer resBuffer = new StringBuffer();
-                    for (int i = 0; i < hits_length; ++i) {
-                        int docId = hits[i].doc;
-                        Document d = indexSearcher.doc(docId);
-                        resBuffer.append(query.qid).append("\tQ0\t").
-                            append(d.get(FIELD_ID)).append("\t").
-                            append((i)).append("\t").
-                            append(hits[i].score).append("\t").
-                            append(runName).append("\n");
+                // each worker keeps its own RLM, as RLM holds the per-query feedback statistics
+                final ThreadLocal<RLM> workerRLM = new ThreadLocal<>();
+                ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+                // futures of the submitted queries, in the order of the topic file
+                LinkedList<Future<QueryResult[]>> pending = new LinkedList<>();
+                LinkedList<QueryTracer.Trace> pendingTraces = new LinkedList<>();
+                int maxPending = 4 * numThreads;
+
+                try {
+                    for (final TRECQuery query : getQueries()) {
+                        final QueryTracer.Trace trace = newTrace(query);
+                        // the query parser is not thread safe; parsing is done here, before submitting
+                        trace.begin();
+                        final Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+                        trace.end(QueryTracer.ANALYSIS);
+
+                        pending.add(workers.submit(new Callable<QueryResult[]>() {
+                            @Override
+                            public QueryResult[] call() throws Exception {
+                                RLM localRLM = workerRLM.get();
+                                if(null == localRLM) {
+                                    localRLM = new RLM(RelevanceBasedLanguageModel.this);
+                                    workerRLM.set(localRLM);
+                                }
+                                localRLM.trace = trace;
+                                return process(query, luceneQuery, localRLM);
+                            }
+                        }));
+                        pendingTraces.add(trace);
+
+                        // bounding the number of queries in flight; writing the oldest one
+                        if(pending.size() >= maxPending)
+                            writeQueryResult(pending.removeFirst().get(), pendingTraces.removeFirst());
                     }
-                    resFileWriter.write(resBuffer.toString());
-
-                    resFileWriter.close();
+                    while(!pending.isEmpty())
+                        writeQueryResult(pending.removeFirst().get(), pendingTraces.removeFirst());
                 }
-                else {
-
-                    System.out.println("Reranking");
-                    List<NewScore> rerankedDocList = rlm.rerankUsingRBLM(hashmap_PwGivenR, query, topDocs);
-
-                    int rerankedSize = rerankedDocList.size();
-                    StringBuffer resBuffer = new StringBuffer();
-                    for (int i = 0; i < rerankedSize; ++i) {
-                        int docId = rerankedDocList.get(i).luceneDocid;
-                        Document d = indexSearcher.doc(docId);
-                        resBuffer.append(query.qid).append("\tQ0\t").
-                            append(rerankedDocList.get(i).docid).append("\t").
-                            append((i)).append("\t").
-                            append((-1)*rerankedDocList.get(i).score).append("\t").
-                            append(runName).append("\n");                
-                    }
-                    resFileWriter.write(resBuffer.toString());
+                finally {
+                    workers.shutdownNow();
                 }
             }
-        } // ends for each query
+            completed = true;
+        }
+        finally {
+            // also on a failed query: the writer thread is not a daemon, the JVM would not exit
+            shutdown(completed);
+        }
     } // ends retrieveAll
 
+    /**
+     * Stops the threads and closes the files of the run, printing the
+     * statistics of the caches if the run is completed. After a failed query,
+     * the errors of closing are only printed, not to hide the failure.
+     * @param completed All the queries are done
+     * @throws IOException 
+     */
+    private void shutdown(boolean completed) throws IOException {
+
+        if(null != prefetcher)
+            prefetcher.close();
+        if(null != segmentSearcher)
+            segmentSearcher.close();
+        try {
+            resultWriter.close();
+            if(null != expansionCache)
+                expansionCache.close();
+            if(null != tracer)
+                tracer.close();
+        } catch (IOException ex) {
+            if(completed)
+                throw ex;
+            System.err.println("Error in closing the run: " + ex);
+        }
+        if(!completed)
+            return;
+
+        if(null != prefetcher)
+            System.out.println(prefetcher);
+        if(Boolean.parseBoolean(prop.getProperty("rm3.rerank")))
+            System.out.println(colProbCache);
+        if(null != docVectorCache)
+            System.out.println(docVectorCache);
+        if(scoringKernels.check)
+            System.out.println(scoringKernels);
+        if(null != pruningReport)
+            System.out.println(pruningReport);
+        if(null != termScoreBounds)
+            System.out.println(termScoreBounds);
+        if(null != expansionCache)
+            System.out.println(expansionCache);
+        if(null != tracer)
+            System.out.print(tracer);
+    }
+
+    /**
+     * Returns the top documents of a query: with the segments searched in
+     * parallel if enabled, else with a TopScoreDocCollector.
+     * @param query The query
+     * @param numHits Number of documents to retrieve
+     * @return The top documents
+     * @throws IOException 
+     */
+    TopDocs search(Query query, int numHits) throws IOException {
+
+        if(null != segmentSearcher)
+            return segmentSearcher.search(query, numHits);
+
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, true);
+        indexSearcher.search(query, collector);
+        return collector.topDocs();
+    }
+
+    /**
+     * @param query The query
+     * @return A new trace for the query; {@link QueryTracer.Trace#NONE} if tracing is disabled
+     */
+    private QueryTracer.Trace newTrace(TRECQuery query) {
+        return (null == tracer) ? QueryTracer.Trace.NONE : tracer.newTrace(query.qid);
+    }
+
+    /**
+     * Hands over the result of a single query to the writer of the res file(s).
+     * @param results Result of the query, one per res file; null if the query is skipped
+     * @param trace Trace of the query; recorded once the result is handed over
+     * @throws IOException 
+     */
+    private void writeQueryResult(QueryResult[] results, QueryTracer.Trace trace) throws IOException {
+
+        trace.begin();
+        if(null != results) {
+            for (int i = 0; i < results.length; i++)
+                resultWriter.add(i, results[i]);
+        }
+        trace.end(QueryTracer.WRITE);
+        if(null != tracer)
+            tracer.record(trace);
+    }
+
+    /**
+     * Processes a query with the single configuration, or with all the configurations of the sweep.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to be used for this query; not to be shared by concurrent calls
+     * @return The results, one per res file; null if the query is to be skipped
+     * @throws Exception 
+     */
+    private QueryResult[] process(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        if(null != prefetcher)
+            prefetcher.started(query);
+        if(null != sweep)
+            return sweep.retrieve(query, luceneQuery, rlm);
+
+        QueryResult result = retrieve(query, luceneQuery, rlm);
+        return (null == result) ? null : new QueryResult[] {result};
+    }
+
+    /**
+     * Performs the initial retrieval, feedback and re-retrieval (or reranking) for a query.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to be used for this query; not to be shared by concurrent calls
+     * @return The result; null if the query is to be skipped
+     * @throws Exception 
+     */
+    QueryResult retrieve(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        // the initial retrieval is not needed to re-retrieve with a cached expansion model
+        TopDocs topDocs = null;
+        if(null == expansionCache || Boolean.parseBoolean(prop.getProperty("rm3.rerank"))) {
+            rlm.trace.begin();
+            topDocs = initialRetrieval(query, luceneQuery);
+            rlm.trace.end(QueryTracer.FIRST_RETRIEVAL);
+            if(null == topDocs)
+                return null;
+        }
+
+        /**
+         * P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R.
+         */
+        RM3Workspace topM_PwGivenR = expand(query, luceneQuery, topDocs, rlm);
+        if(null == topM_PwGivenR)
+            return null;
+
+        return getResult(query, topM_PwGivenR, topDocs, rlm, runName);
+    } // ends retrieve()
+
+    /**
+     * Returns the expansion model (RM3) of a query: from the expansion cache,
+     * if there, with the same feedback documents as topDocs (if given);
+     * else estimated from the feedback documents, and added to the cache.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param topDocs The initially retrieved documents; null if not retrieved yet
+     * @param rlm The RLM to be used for this query; not to be shared by concurrent calls
+     * @return The expansion model, in the workspace of the rlm; null if the query is to be skipped
+     * @throws Exception 
+     */
+    RM3Workspace expand(TRECQuery query, Query luceneQuery, TopDocs topDocs, RLM rlm) throws Exception {
+
+        String cacheKey = null;
+        ExpansionCache.Entry cached = null;
+        if(null != expansionCache) {
+            cacheKey = getExpansionCacheKey(query, luceneQuery, rlm);
+            cached = expansionCache.get(cacheKey);
+        }
+        boolean pending = (null != cacheKey && null == cached);    // to be put in the cache, or abandoned
+
+        try {
+            if(null != cached && (null == topDocs || Arrays.equals(cached.feedbackDocs, getFeedbackDocs(topDocs, rlm)))) {
+                rlm.workspace.setExpansionTerms(cached.terms, cached.weights);
+                return rlm.workspace;
+            }
+
+            if(null == topDocs) {
+                rlm.trace.begin();
+                topDocs = initialRetrieval(query, luceneQuery);
+                rlm.trace.end(QueryTracer.FIRST_RETRIEVAL);
+                if(null == topDocs)
+                    return null;
+            }
+            rlm.setFeedbackStats(topDocs, luceneQuery.toString(fieldToSearch).split(" "), this);
+            RM3Workspace topM_PwGivenR = rlm.RM3(query, topDocs);
+
+            if(null != cacheKey) {
+                int size = topM_PwGivenR.size();
+                int[] terms = new int[size];
+                float[] weights = new float[size];
+                for (int i = 0; i < size; i++) {
+                    terms[i] = topM_PwGivenR.getTerm(i);
+                    weights[i] = topM_PwGivenR.getWeight(i);
+                }
+                expansionCache.put(cacheKey, new ExpansionCache.Entry(getFeedbackDocs(topDocs, rlm), terms, weights));
+                pending = false;
+            }
+            return topM_PwGivenR;
+        }
+        finally {
+            if(pending)
+                expansionCache.abandon(cacheKey);
+        }
+    }
+
+    /**
+     * Returns the key of a query in the expansion cache: the analyzed query,
+     * with all the parameters the expansion model depends on.
+     */
+    private String getExpansionCacheKey(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        return luceneQuery.toString() + "\t" + query.queryFieldAnalyze(analyzer, query.qtitle).trim()
+            + "\tD=" + rlm.numFeedbackDocs + "\tT=" + rlm.numFeedbackTerms
+            + "\tQMIX=" + rlm.QMIX + "\tlambda=" + rlm.mixingLambda + "\tnumHits=" + numHits
+            + "\t" + indexSearcher.getSimilarity() + "\t" + scoringKernels.kernel + "\trm1=" + rlm.rm1Engine
+            + ((null == rlm.pruning) ? "" : "\tapprox=" + rlm.pruning.docTerms + "/" + rlm.pruning.minDf);
+    }
+
+    /**
+     * Returns the lucene docids of the feedback documents.
+     */
+    private static int[] getFeedbackDocs(TopDocs topDocs, RLM rlm) {
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        int[] docs = new int[Math.min(rlm.numFeedbackDocs, hits.length)];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = hits[i].doc;
+        return docs;
+    }
+
+    /**
+     * Performs the initial retrieval for a query, or takes it from the feedback file.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @return The initially retrieved documents; null if the query is to be skipped
+     * @throws Exception 
+     */
+    TopDocs initialRetrieval(TRECQuery query, Query luceneQuery) throws Exception {
+
+        TopDocs topDocs;
+
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
+
+        if(feedbackFromFile == true) {
+            System.out.println("Feedback from file");
+            if(null == (topDocs = allTopDocsFromFileHashMap.get(query.qid))) {
+                System.err.println("Error: Query id: "+query.qid+
+                    " not present in res file");
+                return null;
+            }
+        }
+        else
+            topDocs = search(luceneQuery, numHits);
+
+        /*
+        // ++ Writing the baseline res
+        baselineRes = new FileWriter(resPath+".baseline", true);
+
+        StringBuffer resBuffer = new StringBuffer();
+        resBuffer = CommonMethods.writeTrecResFileFormat(query.qid, hits, indexSearcher, runName);
+        baselineRes.write(resBuffer.toString());
+        baselineRes.close();
+        // -- baseline res written
+        //*/
+
+        return topDocs;
+    } // ends initialRetrieval()
+
+    /**
+     * Re-retrieves with the expanded query, or reranks the initially retrieved documents.
+     * @param query The query
+     * @param topM_PwGivenR The expansion terms with P(w|R)
+     * @param topDocs The initially retrieved documents
+     * @param rlm The RLM, with the feedback statistics of the query
+     * @param runName Name of the run, for the res file
+     * @return The result
+     * @throws Exception 
+     */
+    QueryResult getResult(TRECQuery query, RM3Workspace topM_PwGivenR,
+        TopDocs topDocs, RLM rlm, String runName) throws Exception {
+
+        ScoreDoc[] hits;
+        BooleanQuery booleanQuery;
+
+        String[] docids;
+        double[] scores;
+        if(Boolean.parseBoolean(prop.getProperty("rm3.rerank"))==false) {
+
+            if(null != rlm.weightedTermsQuery) {
+                rlm.trace.begin();
+                WeightedTermsQuery weightedTermsQuery = rlm.getWeightedTermsQuery(topM_PwGivenR, query);
+                rlm.trace.end(QueryTracer.EXPANDED_QUERY);
+                System.out.println("Re-retrieving with QE");
+                System.out.println(weightedTermsQuery);
+                rlm.trace.begin();
+                topDocs = weightedTermsQuery.search(numHits);
+                rlm.trace.end(QueryTracer.SECOND_RETRIEVAL);
+            }
+            else {
+                rlm.trace.begin();
+                booleanQuery = rlm.getExpandedQuery(topM_PwGivenR, query);
+                rlm.trace.end(QueryTracer.EXPANDED_QUERY);
+                System.out.println("Re-retrieving with QE");
+                System.out.println(booleanQuery.toString(fieldToSearch));
+                rlm.trace.begin();
+                topDocs = search(booleanQuery, numHits);
+                rlm.trace.end(QueryTracer.SECOND_RETRIEVAL);
+            }
+            hits = topDocs.scoreDocs;
+            if(hits == null)
+                System.out.println("Nothing found");
+
+            rlm.trace.begin();
+            int hits_length = hits.length;
+            docids = new String[hits_length];
+            scores = new double[hits_length];
+
+            for (int i = 0; i < hits_length; ++i) {
+                docids[i] = getDocid(hits[i].doc);
+                scores[i] = hits[i].score;
+            }
+            QueryResult result = new QueryResult(query.qid, docids, scores, true, runName);
+            rlm.trace.end(QueryTracer.WRITE);
+            return result;
+        }
+        else {
+
+            System.out.println("Reranking");
+            rlm.trace.begin();
+            List<NewScore> rerankedDocList = rlm.rerankUsingRBLM(topM_PwGivenR, query, topDocs);
+            rlm.trace.end(QueryTracer.RERANK);
+
+            rlm.trace.begin();
+            int rerankedSize = rerankedDocList.size();
+            docids = new String[rerankedSize];
+            scores = new double[rerankedSize];
+            for (int i = 0; i < rerankedSize; ++i) {
+                docids[i] = rerankedDocList.get(i).docid;
+                scores[i] = (-1)*rerankedDocList.get(i).score;
+            }
+            QueryResult result = new QueryResult(query.qid, docids, scores, false, runName);
+            rlm.trace.end(QueryTracer.WRITE);
+            return result;
+        }
+    } // ends getResult()
+
     public static void main(String[] args) throws IOException, Exception {
 
         args = new String[1];
@@ -327,7 +889,33 @@ public class RelevanceBasedLanguageModel {
             + "10. resPath: path of the folder in which the res file will be created\n"
             + "11. similarityFunction: 0.DefaultSimilarity, 1.BM25Similarity, 2.LMJelinekMercerSimilarity, 3.LMDirichletSimilarity\n"
             + "12. param1: \n"
-            + "13. [param2]: optional if using BM25\n";
+            + "13. [param2]: optional if using BM25\n"
+            + "14. [numThreads]: default-1 - number of queries to be processed in parallel\n"
+            + "15. [rm3.rerank.colProbCache]: default-query - none/query/collection; caching of collection probabilities for reranking\n"
+            + "16. [termStats.sidecar]: default-false - read the term statistics from a memory mapped sidecar next to the index; built if missing or stale\n"
+            + "17. [termStats.path]: path of the term statistics sidecar\n"
+            + "18. [docVectorCache.size]: default-0 (disabled) - size in MB of the document vector cache shared across the queries\n"
+            + "19. [docVectorCache.offHeap]: default-false - keep the cached document vectors out of the heap\n"
+            + "20. [sweep.numFeedbackDocs], [sweep.numFeedbackTerms], [sweep.queryMix], [sweep.lambda]: comma separated values; [sweep.incremental]: default-false - RM1 updated with the new documents only as D grows\n"
+            + "    to be run in a single pass, with one res file per configuration\n"
+            + "21. [docidIndex.path]: path of the docid sidecar (docid to lucene docid), used with feedbackFromFile\n"
+            + "22. [res.docidIndex]: default-false - take the docids of the results from the docid sidecar, not from the stored documents\n"
+            + "23. [res.gzip]: default-false - gzip compressed res file(s)\n"
+            + "24. [scoring.kernel]: default-split - scalar/split; kernel for P(Q|d) and the KLD reranking\n"
+            + "25. [scoring.kernel.check]: default-false - compare the scores of the two kernels; [scoring.kernel.tolerance]: default-1e-9\n"
+            + "26. [rm3.rerank.engine]: default-vectors - vectors/postings; read the term vectors of the documents to be reranked, or walk the postings of the expansion terms\n"
+            + "27. [docLength.path]: path of the document length sidecar, used with rm3.rerank.engine=postings\n"
+            + "28. [forwardIndex]: default-false - read the document vectors from the forward sidecar, not from the term vectors\n"
+            + "29. [forwardIndex.path]: path of the forward sidecar; [forwardIndex.buildMemory]: default-256 - MB per batch of its build\n"
+            + "30. [trace.path]: path of the trace file; per query, per stage wall time, CPU time and allocated bytes, with a summary at the end\n"
+            + "31. [rm3.reretrieval.engine]: default-boolean - boolean/maxscore; re-retrieve with the BooleanQuery of the expansion terms, or with MaxScore pruning over cached bounds of the term scores\n"
+            + "32. [expansionCache]: default-false - keep the expansion models of the queries in memory and in a log next to the index, across the runs\n"
+            + "33. [expansionCache.path]: path of the log of the expansion cache; [expansionCache.size]: default-10000 - number of entries in memory\n"
+            + "34. [search.threads]: default-0 (disabled) - threads of a pool shared by the queries, searching the segments of a query in parallel and reading its document vectors per segment\n"
+            + "35. [queryFormat]: default-trec - trec/lines; TREC topics in xml, or one query per line: qid<tab>title\n"
+            + "36. [queries.stream]: default-false - take the queries from the file as they are read, not all at the start; [queries.buffer]: default-1024 - topics parsed ahead\n"
+            + "37. [feedback.readAhead]: default-0 (disabled) - number of upcoming queries whose feedback documents are read into the docVectorCache in the background\n"
+            + "38. [rm3.approx.docTerms]: default-0 (all) - terms kept per feedback document, by tf*idf; [rm3.approx.minDf]: default-0 - minimum number of feedback documents of a candidate term; [rm3.approx.report]: default-false - compare with the exact RM3 (overlap@T, L1)\n";
 
         Properties prop = new Properties();
 
@@ -0,0 +1,150 @@
+package RelevanceFeedback;
+
+/**
+ * Kernels for the scores computed per feedback document and per document
+ * to be reranked, over primitive arrays.<p>
+ * Kernels (property: scoring.kernel):<p>
+ * "scalar" - the smoothed MLE of every term in every document, as in
+ *      {@link RLM#return_Smoothed_MLE(int, common.DocumentVector)};<p>
+ * "split" - the doc-independent parts are computed once per query (default).
+ *      The KL-divergence of a document,
+ *      \sum_w P(w|R) log(P(w|R) / P(w|d)), with
+ *      P(w|d) = mixingLambda*tf(w,d)/|d| + (1-mixingLambda)*cf(w)/col-size = docPart + colPart,
+ *      is split into the per query constant
+ *      \sum_w P(w|R) log P(w|R) - \sum_w P(w|R) log colPart(w),
+ *      and the sum over the expansion terms present in the document
+ *      - \sum_{w in d} P(w|R) log(1 + docPart(w,d) / colPart(w)),
+ *      found by merging the sorted term ids of the document with those of the expansion terms.<p>
+ * With scoring.kernel.check, the scores of the two kernels are compared, and
+ * the largest deviation reported; the scores are not expected to be bitwise
+ * equal, as the sums are made in a different order.
+ * @author dwaipayan
+ */
+class ScoringKernels {
+
+    static final String SCALAR  = "scalar";
+    static final String SPLIT   = "split";
+
+    String  kernel;
+    boolean check;
+    double  tolerance;
+
+    long    numChecked;
+    long    numOutside;
+    double  maxDeviation;
+
+    public ScoringKernels(String kernel, boolean check, double tolerance) {
+
+        this.kernel = kernel;
+        this.check = check;
+        this.tolerance = tolerance;
+        if(!kernel.equals(SCALAR) && !kernel.equals(SPLIT)) {
+            System.err.println("Unknown scoring.kernel: " + kernel + "; using " + SPLIT);
+            this.kernel = SPLIT;
+        }
+    }
+
+    public boolean isSplit() {return kernel.equals(SPLIT);}
+
+    /**
+     * \sum_k p[k] log p[k], over the first n entries.
+     * @param p The probabilities
+     * @param n Number of entries
+     * @return The sum
+     */
+    static double sumPLogP(double[] p, int n) {
+
+        // four accumulators, for the independent multiply-adds to be pipelined
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < n; k += 4) {
+            s0 += p[k] * Math.log(p[k]);
+            s1 += p[k+1] * Math.log(p[k+1]);
+            s2 += p[k+2] * Math.log(p[k+2]);
+            s3 += p[k+3] * Math.log(p[k+3]);
+        }
+        for (; k < n; k++)
+            s0 += p[k] * Math.log(p[k]);
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * \sum_k p[k] log q[k], over the first n entries.
+     * @param p The probabilities
+     * @param q The probabilities whose logs are weighted
+     * @param n Number of entries
+     * @return The sum
+     */
+    static double sumPLogQ(double[] p, double[] q, int n) {
+
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < n; k += 4) {
+            s0 += p[k] * Math.log(q[k]);
+            s1 += p[k+1] * Math.log(q[k+1]);
+            s2 += p[k+2] * Math.log(q[k+2]);
+            s3 += p[k+3] * Math.log(q[k+3]);
+        }
+        for (; k < n; k++)
+            s0 += p[k] * Math.log(q[k]);
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * The document dependent part of the split KL-divergence:
+     * \sum_{w in d} p(w) log(1 + mixingLambda*tf(w,d)/|d| / colPart(w)).
+     * @param docTermIds Sorted term ids of the document
+     * @param docTermFreqs tf of the terms of the document
+     * @param docNumTerms Number of unique terms of the document
+     * @param docLength Length of the document
+     * @param termIds Sorted term ids of the expansion terms
+     * @param p P(w|R) of the expansion terms
+     * @param colPart (1-mixingLambda)*cf(w)/col-size of the expansion terms
+     * @param n Number of expansion terms
+     * @param mixingLambda Weight of the document model
+     * @return The sum
+     */
+    static double documentSum(int[] docTermIds, int[] docTermFreqs, int docNumTerms, int docLength,
+        int[] termIds, double[] p, double[] colPart, int n, float mixingLambda) {
+
+        double sum = 0;
+        double lambdaByLength = (double) mixingLambda / (double) docLength;
+        int i = 0, k = 0;
+        while(i < docNumTerms && k < n) {
+            int docTerm = docTermIds[i];
+            int term = termIds[k];
+            if(docTerm < term)
+                i++;
+            else if(docTerm > term)
+                k++;
+            else {
+                sum += p[k] * Math.log1p(lambdaByLength * docTermFreqs[i] / colPart[k]);
+                i++;
+                k++;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Records the deviation of a score from the reference one.
+     * @param reference The score of the scalar kernel
+     * @param score The score of the split kernel
+     */
+    public synchronized void record(double reference, double score) {
+
+        double deviation = Math.abs(score - reference) / Math.max(Math.abs(reference), Double.MIN_NORMAL);
+        numChecked++;
+        if(deviation > maxDeviation)
+            maxDeviation = deviation;
+        if(deviation > tolerance)
+            numOutside++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Scoring kernel (" + kernel + ") check: scores compared: " + numChecked
+            + " max relative deviation: " + maxDeviation
+            + " beyond tolerance (" + tolerance + "): " + numOutside;
+    }
+}
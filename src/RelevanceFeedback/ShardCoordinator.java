@@ -0,0 +1,558 @@
+package RelevanceFeedback;
+
+import common.DocumentVector;
+import common.EnglishAnalyzerWithSmartStopword;
+import common.ResultWriter;
+import common.ResultWriter.QueryResult;
+import common.TRECQuery;
+import common.TRECQueryParser;
+import common.TermDictionary;
+import static common.CommonVariables.FIELD_BOW;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Coordinator of the sharded mode: RM3 over a collection split into shards,
+ * each owned by a {@link ShardWorker} process. For each query:<p>
+ * 1. the statistics of the query terms are summed over the shards
+ *  (see {@link ShardStatistics}), and the shards are searched with them;
+ *  their top numFeedbackDocs are merged into the feedback documents;<p>
+ * 2. the vectors of the feedback documents are read from their shards, and
+ *  the statistics of their terms summed over the shards, into a dictionary
+ *  of the terms of the query (see {@link TermDictionary#of}), with the ids
+ *  in the order of the dictionary of the whole collection;<p>
+ * 3. RM3 is estimated here (with {@link RLM}), and the shards are searched
+ *  with the expanded query; their top numHits are merged into the result.<p>
+ * The statistics being those of the whole collection, the scores are those of
+ * a single index of the collection; ties are broken by the order of the
+ * shards, then by the docids in the shards. The shards are asked in parallel;
+ * the queries are processed one at a time. The KLD reranking (rm3.rerank)
+ * is not done in this mode.<p>
+ * Properties: those of RelevanceBasedLanguageModel, except indexPath, with
+ * shard.workers - comma separated host:port of the workers, in the order of the shards.
+ * @author dwaipayan
+ */
+public class ShardCoordinator {
+
+    /**
+     * Connection to a worker; reopened at the next request after an error.
+     */
+    static class Shard {
+
+        String              host;
+        int                 port;
+        Socket              socket;
+        DataInputStream     in;
+        DataOutputStream    out;
+
+        Shard(String address) {
+            int colon = address.lastIndexOf(':');
+            host = address.substring(0, colon).trim();
+            port = Integer.parseInt(address.substring(colon + 1).trim());
+        }
+
+        /**
+         * Starts a request.
+         * @param request The type of the request
+         * @return The stream to write its arguments to
+         */
+        DataOutputStream begin(byte request) throws IOException {
+
+            if(null == socket) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            out.writeByte(request);
+            return out;
+        }
+
+        /**
+         * Sends the request, and waits for its answer.
+         * @return The stream to read the result from
+         * @throws IOException With the message of the worker, if it failed there
+         */
+        DataInputStream end() throws IOException {
+
+            out.flush();
+            if(ShardWorker.OK != in.readByte()) {
+                String message = in.readUTF();
+                close();
+                throw new IOException(message);
+            }
+            return in;
+        }
+
+        void close() {
+
+            if(null != socket) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+                socket = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * A request to be sent to each shard.
+     */
+    interface ShardRequest<T> {
+        T send(Shard shard) throws IOException;
+    }
+
+    /**
+     * A document of a shard, with its score.
+     */
+    static class ShardHit {
+
+        int     shard;
+        int     doc;        // lucene docid in the shard
+        float   score;
+        String  docid;
+
+        ShardHit(int shard, int doc, float score, String docid) {
+            this.shard = shard;
+            this.doc = doc;
+            this.score = score;
+            this.docid = docid;
+        }
+    }
+
+    Properties      prop;
+    List<Shard>     shards;
+    ExecutorService shardCalls;
+    Analyzer        analyzer;
+    TRECQueryParser trecQueryparser;
+    String          queryFormat;
+    String          fieldToSearch;
+    ResultWriter    resultWriter;
+    String          runName;
+    RLM             rlm;
+
+    int             numHits;
+    int             numFeedbackDocs;
+    int             numFeedbackTerms;
+
+    public ShardCoordinator(Properties prop) throws Exception {
+
+        this.prop = prop;
+        shards = new ArrayList<>();
+        for (String address : prop.getProperty("shard.workers").split(","))
+            shards.add(new Shard(address));
+        shardCalls = Executors.newFixedThreadPool(shards.size());
+
+        analyzer = new EnglishAnalyzerWithSmartStopword(prop.getProperty("stopFilePath")).setAndGetEnglishAnalyzerWithSmartStopword();
+        fieldToSearch = prop.getProperty("fieldToSearch", FIELD_BOW);
+        String queryPath = prop.getProperty("queryPath");
+        trecQueryparser = new TRECQueryParser(queryPath, analyzer);
+        queryFormat = prop.getProperty("queryFormat", TRECQueryParser.FORMAT_TREC);
+
+        float param1 = Float.parseFloat(prop.getProperty("param1", "0"));
+        float param2 = Float.parseFloat(prop.getProperty("param2", "0"));
+        Similarity similarity = RelevanceBasedLanguageModel.getSimilarity(
+            Integer.parseInt(prop.getProperty("similarityFunction")), param1, param2);
+        numHits = Integer.parseInt(prop.getProperty("numHits","1000"));
+        numFeedbackDocs = Integer.parseInt(prop.getProperty("numFeedbackDocs"));
+        numFeedbackTerms = Integer.parseInt(prop.getProperty("numFeedbackTerms"));
+        float queryMix = Float.parseFloat(prop.getProperty("rm3.queryMix"));
+        if(Boolean.parseBoolean(prop.getProperty("rm3.rerank")))
+            System.err.println("rm3.rerank is not done in the sharded mode; re-retrieving");
+
+        rlm = new RLM(analyzer, new ScoringKernels(prop.getProperty("scoring.kernel", ScoringKernels.SPLIT), false, 0),
+            prop.getProperty("rm1.engine", "matrix"));
+        rlm.numFeedbackDocs = numFeedbackDocs;
+        rlm.numFeedbackTerms = numFeedbackTerms;
+        rlm.QMIX = queryMix;
+        // as in RelevanceBasedLanguageModel
+        rlm.mixingLambda = (param1 > 0.99) ? 0.8f : param1;
+
+        runName = RelevanceBasedLanguageModel.getRunName(similarity, numFeedbackDocs, numFeedbackTerms, queryMix, null, false);
+        String resPath = prop.getProperty("resPath", "/home/dwaipayan/") + new File(queryPath).getName() + "-" + runName + ".res";
+        boolean gzip = Boolean.parseBoolean(prop.getProperty("res.gzip", "false"));
+        if(gzip)
+            resPath += ".gz";
+        System.out.println("Result will be stored in: " + resPath);
+        resultWriter = new ResultWriter(new String[] {resPath}, gzip, 4);
+    }
+
+    /**
+     * Retrieves all the queries, as they are read from the topic file.
+     * @throws Exception
+     */
+    public void retrieveAll() throws Exception {
+
+        try {
+            Iterator<TRECQuery> queries = trecQueryparser.queryFileStream(queryFormat,
+                Integer.parseInt(prop.getProperty("queries.buffer", "1024")));
+            while(queries.hasNext())
+                resultWriter.add(0, process(queries.next()));
+        }
+        finally {
+            resultWriter.close();
+            shardCalls.shutdownNow();
+            for (Shard shard : shards)
+                shard.close();
+        }
+    }
+
+    /**
+     * RM3 of a query over the shards, and the result of the expanded query.
+     * @param query The query
+     * @return The result
+     * @throws Exception
+     */
+    QueryResult process(TRECQuery query) throws Exception {
+
+        Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
+
+        // ++ the initial retrieval, with the statistics of the query terms in the collection
+        Set<Term> extracted = new HashSet<>();
+        luceneQuery.extractTerms(extracted);
+        TreeSet<String> queryTerms = new TreeSet<>();
+        for (Term term : extracted) {
+            if(term.field().equals(fieldToSearch))
+                queryTerms.add(term.text());
+        }
+        for (String term : query.queryFieldAnalyze(analyzer, query.qtitle).split("\\s+")) {
+            if(!term.isEmpty())
+                queryTerms.add(term);
+        }
+        ShardStatistics queryStats = getStatistics(new ArrayList<>(queryTerms));
+        List<ShardHit> feedbackHits = search(query.qtitle, null, null, queryStats, numFeedbackDocs, false);
+        // --
+
+        // ++ the vectors of the feedback documents, and the dictionary of their terms and the query terms
+        List<String[]> vectorTerms = new ArrayList<>();
+        List<int[]> vectorFreqs = new ArrayList<>();
+        int[] vectorSizes = readVectors(feedbackHits, vectorTerms, vectorFreqs);
+
+        TreeSet<String> feedbackTerms = new TreeSet<>();
+        for (String[] terms : vectorTerms) {
+            if(null != terms)
+                feedbackTerms.addAll(Arrays.asList(terms));
+        }
+        feedbackTerms.removeAll(queryTerms);
+        ShardStatistics feedbackStats = getStatistics(new ArrayList<>(feedbackTerms));
+
+        List<BytesRef> dictTerms = new ArrayList<>();
+        final List<Long> dictCF = new ArrayList<>();
+        final List<Long> dictDF = new ArrayList<>();
+        for (ShardStatistics stats : new ShardStatistics[] {queryStats, feedbackStats}) {
+            for (int i = 0; i < stats.size(); i++) {
+                if(stats.getDF(i) == 0)     // not in the collection
+                    continue;
+                dictTerms.add(new BytesRef(stats.getTerm(i)));
+                dictCF.add(stats.getCF(i));
+                dictDF.add(stats.getDF(i));
+            }
+        }
+        TermDictionary termDict = getTermDictionary(queryStats, dictTerms, dictCF, dictDF);
+
+        DocumentVector[] docVectors = new DocumentVector[vectorSizes.length];
+        for (int i = 0; i < docVectors.length; i++) {
+            if(vectorSizes[i] < 0)
+                continue;
+            String[] terms = vectorTerms.get(i);
+            int[] ids = new int[terms.length];
+            for (int k = 0; k < terms.length; k++)
+                ids[k] = termDict.getId(terms[k]);
+            docVectors[i] = new DocumentVector(ids, vectorFreqs.get(i), terms.length, vectorSizes[i], termDict);
+        }
+        // --
+
+        // ++ RM3, as RelevanceBasedLanguageModel.expand()
+        rlm.setTermDictionary(termDict);
+        rlm.setFeedbackDocumentVectors(docVectors, numFeedbackDocs);
+        rlm.setQueryLikelihoods(luceneQuery.toString(fieldToSearch).split(" "));
+        RM3Workspace topM_PwGivenR = rlm.RM3(query, null);
+        // --
+
+        // ++ re-retrieval with the expanded query, as RLM.getExpandedQuery()
+        List<String> expansionTerms = new ArrayList<>();
+        List<Float> expansionWeights = new ArrayList<>();
+        for (int i = 0; i < topM_PwGivenR.size(); i++) {
+            String term = termDict.getTerm(topM_PwGivenR.getTerm(i));
+            if(term.contains(":"))
+                continue;
+            expansionTerms.add(term);
+            expansionWeights.add(topM_PwGivenR.getWeight(i));
+        }
+        ShardStatistics expandedStats = new ShardStatistics(fieldToSearch, queryStats.maxDoc, queryStats.docCount,
+            queryStats.sumTotalTermFreq, queryStats.sumDocFreq, expansionTerms.size());
+        for (int i = 0; i < expansionTerms.size(); i++) {
+            int id = termDict.getId(expansionTerms.get(i));
+            expandedStats.terms[i] = expansionTerms.get(i);
+            expandedStats.df[i] = termDict.getDF(id);
+            expandedStats.cf[i] = termDict.getCF(id);
+        }
+        System.out.println("Re-retrieving with QE");
+        StringBuilder expandedQuery = new StringBuilder();
+        for (int i = 0; i < expansionTerms.size(); i++)
+            expandedQuery.append((i > 0) ? " " : "").append(expansionTerms.get(i)).append("^").append(expansionWeights.get(i));
+        System.out.println(expandedQuery);
+        List<ShardHit> hits = search(null, expansionTerms, expansionWeights, expandedStats, numHits, true);
+        // --
+
+        String[] docids = new String[hits.size()];
+        double[] scores = new double[hits.size()];
+        for (int i = 0; i < docids.length; i++) {
+            docids[i] = hits.get(i).docid;
+            scores[i] = hits.get(i).score;
+        }
+        return new QueryResult(query.qid, docids, scores, true, runName);
+    }
+
+    /**
+     * Returns the dictionary of some terms, with their statistics in the collection.
+     * @param collectionStats Statistics of the field in the collection
+     * @param terms The terms
+     * @param cf cf of the terms, parallel to terms
+     * @param df df of the terms, parallel to terms
+     * @return The dictionary, with the terms sorted as in the index
+     */
+    private TermDictionary getTermDictionary(ShardStatistics collectionStats,
+        final List<BytesRef> terms, List<Long> cf, List<Long> df) {
+
+        Integer[] order = new Integer[terms.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer t, Integer t1) {
+                return terms.get(t).compareTo(terms.get(t1));
+            }
+        });
+        BytesRef[] sortedTerms = new BytesRef[order.length];
+        long[] sortedCF = new long[order.length];
+        int[] sortedDF = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedTerms[i] = terms.get(order[i]);
+            sortedCF[i] = cf.get(order[i]);
+            sortedDF[i] = (int) (long) df.get(order[i]);
+        }
+        return TermDictionary.of(fieldToSearch, collectionStats.getMaxDoc(), collectionStats.getVocSize(),
+            sortedTerms, sortedCF, sortedDF);
+    }
+
+    /**
+     * Returns the statistics of some terms in the collection: summed over the shards.
+     * @param terms The terms
+     * @return The statistics
+     * @throws IOException
+     */
+    private ShardStatistics getStatistics(final List<String> terms) throws IOException {
+
+        List<ShardStatistics> shardStats = onShards(new ShardRequest<ShardStatistics>() {
+            @Override
+            public ShardStatistics send(Shard shard) throws IOException {
+                DataOutputStream out = shard.begin(ShardWorker.STATS);
+                out.writeInt(terms.size());
+                for (String term : terms)
+                    out.writeUTF(term);
+                return ShardStatistics.read(shard.end());
+            }
+        });
+        ShardStatistics stats = shardStats.get(0);
+        for (int i = 1; i < shardStats.size(); i++)
+            stats.add(shardStats.get(i));
+        return stats;
+    }
+
+    /**
+     * Searches the shards, and merges their top documents.
+     * @param title The title of the query; null for the weighted terms
+     * @param terms The weighted terms
+     * @param weights The weights of the terms
+     * @param stats Statistics of the terms in the collection
+     * @param numHits Number of documents to retrieve
+     * @param withDocids To get the docids of the documents
+     * @return The top documents, by score, then by the shard, then by the docid in the shard
+     * @throws IOException
+     */
+    private List<ShardHit> search(final String title, final List<String> terms, final List<Float> weights,
+        final ShardStatistics stats, final int numHits, final boolean withDocids) throws IOException {
+
+        List<List<ShardHit>> shardHits = onShards(new ShardRequest<List<ShardHit>>() {
+            @Override
+            public List<ShardHit> send(Shard shard) throws IOException {
+                DataOutputStream out = shard.begin(ShardWorker.SEARCH);
+                if(null != title) {
+                    out.writeByte(ShardWorker.TITLE);
+                    out.writeUTF(title);
+                }
+                else {
+                    out.writeByte(ShardWorker.WEIGHTED_TERMS);
+                    out.writeInt(terms.size());
+                    for (int i = 0; i < terms.size(); i++) {
+                        out.writeUTF(terms.get(i));
+                        out.writeFloat(weights.get(i));
+                    }
+                }
+                stats.write(out);
+                out.writeInt(numHits);
+                out.writeBoolean(withDocids);
+
+                DataInputStream in = shard.end();
+                in.readInt();   // totalHits
+                int shardIndex = shards.indexOf(shard);
+                List<ShardHit> hits = new ArrayList<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    int doc = in.readInt();
+                    float score = in.readFloat();
+                    hits.add(new ShardHit(shardIndex, doc, score, withDocids ? in.readUTF() : null));
+                }
+                return hits;
+            }
+        });
+
+        List<ShardHit> hits = new ArrayList<>();
+        for (List<ShardHit> list : shardHits)
+            hits.addAll(list);
+        Collections.sort(hits, new Comparator<ShardHit>() {
+            @Override
+            public int compare(ShardHit t, ShardHit t1) {
+                int c = Float.compare(t1.score, t.score);
+                if(c == 0)
+                    c = Integer.compare(t.shard, t1.shard);
+                return (c != 0) ? c : Integer.compare(t.doc, t1.doc);
+            }
+        });
+        return (hits.size() > numHits) ? hits.subList(0, numHits) : hits;
+    }
+
+    /**
+     * Reads the vectors of documents from their shards.
+     * @param hits The documents
+     * @param vectorTerms To be filled with the terms of each vector (sorted as in the index), parallel to hits
+     * @param vectorFreqs To be filled with the tf of the terms, parallel to hits
+     * @return The sizes of the documents, parallel to hits; -1 for a document without term vector
+     * @throws IOException
+     */
+    private int[] readVectors(final List<ShardHit> hits, List<String[]> vectorTerms, List<int[]> vectorFreqs) throws IOException {
+
+        final int[] sizes = new int[hits.size()];
+        final String[][] terms = new String[hits.size()][];
+        final int[][] freqs = new int[hits.size()][];
+
+        onShards(new ShardRequest<Void>() {
+            @Override
+            public Void send(Shard shard) throws IOException {
+                int shardIndex = shards.indexOf(shard);
+                List<Integer> positions = new ArrayList<>();
+                for (int i = 0; i < hits.size(); i++) {
+                    if(hits.get(i).shard == shardIndex)
+                        positions.add(i);
+                }
+                if(positions.isEmpty())
+                    return null;
+
+                DataOutputStream out = shard.begin(ShardWorker.VECTORS);
+                out.writeInt(positions.size());
+                for (int i : positions)
+                    out.writeInt(hits.get(i).doc);
+                DataInputStream in = shard.end();
+                for (int i : positions) {
+                    sizes[i] = in.readInt();
+                    if(sizes[i] < 0)
+                        continue;
+                    terms[i] = new String[in.readInt()];
+                    freqs[i] = new int[terms[i].length];
+                    for (int k = 0; k < terms[i].length; k++) {
+                        terms[i][k] = in.readUTF();
+                        freqs[i][k] = in.readInt();
+                    }
+                }
+                return null;
+            }
+        });
+
+        vectorTerms.addAll(Arrays.asList(terms));
+        vectorFreqs.addAll(Arrays.asList(freqs));
+        return sizes;
+    }
+
+    /**
+     * Sends a request to all the shards in parallel, and waits for their results.
+     * @return The results, in the order of the shards
+     * @throws IOException If a shard failed
+     */
+    private <T> List<T> onShards(final ShardRequest<T> request) throws IOException {
+
+        List<Callable<T>> calls = new ArrayList<>(shards.size());
+        for (final Shard shard : shards) {
+            calls.add(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    try {
+                        return request.send(shard);
+                    } catch (IOException ex) {
+                        shard.close();
+                        throw new IOException("Shard " + shard + ": " + ex.getMessage(), ex);
+                    }
+                }
+            });
+        }
+
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (Future<T> future : shardCalls.invokeAll(calls))
+                results.add(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if(1 != args.length) {
+            System.out.println("Usage: java RelevanceFeedback.ShardCoordinator <properties-file>\n"
+                + "The properties of RelevanceBasedLanguageModel (indexPath not needed), and\n"
+                + "shard.workers: comma separated host:port of the workers (see ShardWorker), in the order of the shards");
+            System.exit(1);
+        }
+        Properties prop = new Properties();
+        prop.load(new FileReader(args[0]));
+        new ShardCoordinator(prop).retrieveAll();
+    }
+}
@@ -0,0 +1,148 @@
+package RelevanceFeedback;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Statistics of a field, and of some of its terms, in a shard of a collection;
+ * merged (summed) over the shards, they are the statistics of the whole
+ * collection, as IndexSearcher would take them from a single index.
+ * @author dwaipayan
+ */
+public class ShardStatistics {
+
+    String          field;
+    long            maxDoc;
+    long            docCount;
+    long            sumTotalTermFreq;   // vocSize
+    long            sumDocFreq;
+
+    String[]        terms;
+    long[]          df;
+    long[]          cf;
+    HashMap<String, Integer> termIndex;
+
+    /**
+     * Statistics of the field, with the terms to be set.
+     */
+    ShardStatistics(String field, long maxDoc, long docCount, long sumTotalTermFreq, long sumDocFreq, int numTerms) {
+
+        this.field = field;
+        this.maxDoc = maxDoc;
+        this.docCount = docCount;
+        this.sumTotalTermFreq = sumTotalTermFreq;
+        this.sumDocFreq = sumDocFreq;
+        terms = new String[numTerms];
+        df = new long[numTerms];
+        cf = new long[numTerms];
+    }
+
+    /**
+     * Returns the statistics of a field, and of some of its terms, in an index.
+     * @param indexReader The index (shard)
+     * @param field The field
+     * @param terms The terms
+     * @return The statistics
+     * @throws IOException
+     */
+    public static ShardStatistics of(IndexReader indexReader, String field, List<String> terms) throws IOException {
+
+        Terms fieldTerms = MultiFields.getTerms(indexReader, field);
+        ShardStatistics stats = (null == fieldTerms) ?
+            new ShardStatistics(field, indexReader.maxDoc(), 0, 0, 0, terms.size()) :
+            new ShardStatistics(field, indexReader.maxDoc(), fieldTerms.getDocCount(),
+                fieldTerms.getSumTotalTermFreq(), fieldTerms.getSumDocFreq(), terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            Term term = new Term(field, terms.get(i));
+            stats.terms[i] = terms.get(i);
+            stats.df[i] = indexReader.docFreq(term);
+            stats.cf[i] = indexReader.totalTermFreq(term);
+        }
+        return stats;
+    }
+
+    /**
+     * Adds the statistics of another shard, with the same terms in the same order.
+     * @param other The statistics of the other shard
+     */
+    public void add(ShardStatistics other) {
+
+        maxDoc += other.maxDoc;
+        docCount += other.docCount;
+        sumTotalTermFreq += other.sumTotalTermFreq;
+        sumDocFreq += other.sumDocFreq;
+        for (int i = 0; i < terms.length; i++) {
+            df[i] += other.df[i];
+            cf[i] += other.cf[i];
+        }
+    }
+
+    public int size() {return terms.length;}
+    public String getTerm(int i) {return terms[i];}
+    public long getDF(int i) {return df[i];}
+    public long getCF(int i) {return cf[i];}
+    public long getMaxDoc() {return maxDoc;}
+    public long getVocSize() {return sumTotalTermFreq;}
+
+    /**
+     * @return The statistics of the field, for IndexSearcher.collectionStatistics()
+     */
+    public CollectionStatistics getCollectionStatistics() {
+        return new CollectionStatistics(field, maxDoc, docCount, sumTotalTermFreq, sumDocFreq);
+    }
+
+    /**
+     * Returns the statistics of a term, for IndexSearcher.termStatistics().
+     * @param term The term
+     * @return The statistics; null if the term is not here
+     */
+    public synchronized TermStatistics getTermStatistics(Term term) {
+
+        if(!field.equals(term.field()))
+            return null;
+        if(null == termIndex) {
+            termIndex = new HashMap<>(2 * terms.length);
+            for (int i = 0; i < terms.length; i++)
+                termIndex.put(terms[i], i);
+        }
+        Integer i = termIndex.get(term.text());
+        return (null == i) ? null : new TermStatistics(new BytesRef(terms[i]), df[i], cf[i]);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+
+        out.writeUTF(field);
+        out.writeLong(maxDoc);
+        out.writeLong(docCount);
+        out.writeLong(sumTotalTermFreq);
+        out.writeLong(sumDocFreq);
+        out.writeInt(terms.length);
+        for (int i = 0; i < terms.length; i++) {
+            out.writeUTF(terms[i]);
+            out.writeLong(df[i]);
+            out.writeLong(cf[i]);
+        }
+    }
+
+    public static ShardStatistics read(DataInputStream in) throws IOException {
+
+        ShardStatistics stats = new ShardStatistics(in.readUTF(), in.readLong(), in.readLong(),
+            in.readLong(), in.readLong(), in.readInt());
+        for (int i = 0; i < stats.terms.length; i++) {
+            stats.terms[i] = in.readUTF();
+            stats.df[i] = in.readLong();
+            stats.cf[i] = in.readLong();
+        }
+        return stats;
+    }
+}
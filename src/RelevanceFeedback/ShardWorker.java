@@ -0,0 +1,298 @@
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Worker of the sharded mode (see {@link ShardCoordinator}): owns one shard
+ * of the collection, and answers the requests of the coordinator over a
+ * socket, one connection per coordinator, one request at a time:<p>
+ * STATS - the statistics of the field, and of some terms, in the shard;<p>
+ * SEARCH - the top documents of the shard for a query (the title, or weighted
+ * terms), scored with the statistics of the whole collection sent with it;<p>
+ * VECTORS - the term vectors of some documents of the shard, with the terms as strings.<p>
+ * Each request is a byte (its type) followed by its arguments; each answer is
+ * OK followed by the result, or ERROR followed by the message, after which
+ * the connection is closed.
+ * Properties (in addition to those of RelevanceBasedLanguageModel; queryPath is not used):
+ * indexPath - the shard; shard.host (default 127.0.0.1), shard.port (default 9090).
+ * @author dwaipayan
+ */
+public class ShardWorker {
+
+    static final byte STATS = 1;
+    static final byte SEARCH = 2;
+    static final byte VECTORS = 3;
+
+    // the query of a SEARCH
+    static final byte TITLE = 0;
+    static final byte WEIGHTED_TERMS = 1;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    RelevanceBasedLanguageModel rblm;
+    ServerSocket    serverSocket;
+    ExecutorService connections;
+
+    public ShardWorker(Properties prop) throws Exception {
+
+        // the queries come from the coordinator; a queryPath of a properties file shared with it is left out
+        Properties shardProp = new Properties();
+        shardProp.putAll(prop);
+        shardProp.remove("queryPath");
+        rblm = new RelevanceBasedLanguageModel(shardProp);
+        serverSocket = new ServerSocket(Integer.parseInt(prop.getProperty("shard.port", "9090")), 50,
+            InetAddress.getByName(prop.getProperty("shard.host", "127.0.0.1")));
+        connections = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Takes the connections of the coordinators, till the process is stopped.
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+
+        System.out.println("Shard: " + rblm.indexPath + " with " + rblm.indexReader.maxDoc()
+            + " documents; listening on: " + serverSocket.getLocalSocketAddress());
+        while(true) {
+            final Socket socket = serverSocket.accept();
+            connections.submit(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers the requests of a connection till it is closed.
+     */
+    private void handle(Socket socket) {
+
+        try (Socket s = socket;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+
+            s.setTcpNoDelay(true);
+            int request;
+            while((request = in.read()) != -1) {
+                ByteArrayOutputStream resultBytes = new ByteArrayOutputStream();
+                DataOutputStream result = new DataOutputStream(resultBytes);
+                try {
+                    switch(request) {
+                        case STATS:
+                            stats(in, result);
+                            break;
+                        case SEARCH:
+                            search(in, result);
+                            break;
+                        case VECTORS:
+                            vectors(in, result);
+                            break;
+                        default:
+                            throw new IOException("Unknown request: " + request);
+                    }
+                } catch (Exception ex) {
+                    System.err.println("Error in the request: " + ex);
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(ex));
+                    out.flush();
+                    return;
+                }
+                result.flush();
+                out.writeByte(OK);
+                resultBytes.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error in the connection: " + ex);
+        }
+    }
+
+    /**
+     * STATS: int n, n terms (UTF) -> {@link ShardStatistics}
+     */
+    private void stats(DataInputStream in, DataOutputStream result) throws IOException {
+
+        List<String> terms = readTerms(in);
+        ShardStatistics.of(rblm.indexReader, rblm.fieldToSearch, terms).write(result);
+    }
+
+    /**
+     * SEARCH: TITLE and the title (UTF), or WEIGHTED_TERMS, int n, n (term (UTF), weight (float));
+     *  {@link ShardStatistics} of the collection; int numHits; boolean withDocids
+     *  -> int totalHits, int n, n (int doc, float score[, docid (UTF)])
+     */
+    private void search(DataInputStream in, DataOutputStream result) throws Exception {
+
+        String title = null;
+        String[] terms = null;
+        float[] weights = null;
+        byte kind = in.readByte();
+        if(kind == TITLE)
+            title = in.readUTF();
+        else {
+            terms = new String[in.readInt()];
+            weights = new float[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = in.readUTF();
+                weights[i] = in.readFloat();
+            }
+        }
+        ShardStatistics stats = ShardStatistics.read(in);
+        int numHits = in.readInt();
+        boolean withDocids = in.readBoolean();
+
+        Query query;
+        if(kind == TITLE) {
+            TRECQuery trecQuery = new TRECQuery();
+            trecQuery.qtitle = title;
+            // the query parser is not thread safe
+            synchronized(rblm.trecQueryparser) {
+                query = rblm.trecQueryparser.getAnalyzedQuery(trecQuery);
+            }
+        }
+        else {
+            // as RLM.getExpandedQuery()
+            BooleanQuery booleanQuery = new BooleanQuery();
+            BooleanQuery.setMaxClauseCount(4096);
+            for (int i = 0; i < terms.length; i++) {
+                Query tq = new TermQuery(new Term(rblm.fieldToSearch, terms[i]));
+                tq.setBoost(weights[i]);
+                booleanQuery.add(tq, BooleanClause.Occur.SHOULD);
+            }
+            query = booleanQuery;
+        }
+
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, true);
+        getSearcher(stats).search(query, collector);
+        TopDocs topDocs = collector.topDocs();
+
+        result.writeInt(topDocs.totalHits);
+        result.writeInt(topDocs.scoreDocs.length);
+        for (ScoreDoc hit : topDocs.scoreDocs) {
+            result.writeInt(hit.doc);
+            result.writeFloat(hit.score);
+            if(withDocids)
+                result.writeUTF(rblm.getDocid(hit.doc));
+        }
+    }
+
+    /**
+     * Returns a searcher of the shard which scores with the statistics of the collection.
+     * @param stats Statistics of the collection, of the field and of the terms of the query
+     */
+    private IndexSearcher getSearcher(final ShardStatistics stats) {
+
+        IndexSearcher searcher = new IndexSearcher(rblm.indexReader) {
+            @Override
+            public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+                TermStatistics termStats = stats.getTermStatistics(term);
+                return (null != termStats) ? termStats : super.termStatistics(term, context);
+            }
+
+            @Override
+            public CollectionStatistics collectionStatistics(String field) throws IOException {
+                return field.equals(stats.field) ? stats.getCollectionStatistics() : super.collectionStatistics(field);
+            }
+        };
+        searcher.setSimilarity(rblm.indexSearcher.getSimilarity());
+        return searcher;
+    }
+
+    /**
+     * VECTORS: int n, n docs (int) -> n (int size (-1 without term vector), int m, m (term (UTF), int tf))
+     */
+    private void vectors(DataInputStream in, DataOutputStream result) throws IOException {
+
+        int[] docs = new int[in.readInt()];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = in.readInt();
+
+        List<String> terms = new ArrayList<>();
+        List<Integer> freqs = new ArrayList<>();
+        for (int doc : docs) {
+            Terms vector = rblm.indexReader.getTermVector(doc, rblm.fieldForFeedback);
+            if(null == vector) {
+                System.err.println("Error: Term vectors not indexed: " + doc);
+                result.writeInt(-1);
+                continue;
+            }
+            terms.clear();
+            freqs.clear();
+            int docSize = 0;
+            TermsEnum iterator = vector.iterator(null);
+            BytesRef byteRef;
+            while((byteRef = iterator.next()) != null) {
+                terms.add(byteRef.utf8ToString());
+                freqs.add((int) iterator.totalTermFreq());
+                docSize += (int) iterator.totalTermFreq();
+            }
+            result.writeInt(docSize);
+            result.writeInt(terms.size());
+            for (int k = 0; k < terms.size(); k++) {
+                result.writeUTF(terms.get(k));
+                result.writeInt(freqs.get(k));
+            }
+        }
+    }
+
+    static List<String> readTerms(DataInputStream in) throws IOException {
+
+        int n = in.readInt();
+        List<String> terms = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            terms.add(in.readUTF());
+        return terms;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if(args.length < 1) {
+            System.out.println("Usage: java RelevanceFeedback.ShardWorker <properties-file> [property=value ...]\n"
+                + "The properties of RelevanceBasedLanguageModel (queryPath and resPath not needed), with\n"
+                + "indexPath: the shard; [shard.host]: default-127.0.0.1; [shard.port]: default-9090\n"
+                + "The properties after the file override those in it (e.g. indexPath and shard.port of each shard).");
+            System.exit(1);
+        }
+        Properties prop = new Properties();
+        prop.load(new FileReader(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if(eq > 0)
+                prop.setProperty(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        new ShardWorker(prop).serve();
+    }
+}
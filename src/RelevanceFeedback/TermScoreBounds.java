@@ -0,0 +1,135 @@
+package RelevanceFeedback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.Similarity.SimScorer;
+
+/**
+ * Upper bounds of the score of a term in the documents of a segment, for the
+ * pruning of {@link WeightedTermsQuery}; cached per term across the queries,
+ * and shared among the threads.<p>
+ * The scores of all the similarities in use are non-decreasing with the tf
+ * and non-increasing with the length of the document (i.e. non-decreasing
+ * with the norm byte, taken unsigned). Hence, for each term, the postings
+ * are walked once to keep the documents on the frontier of (tf, norm): no
+ * other document has both a higher or equal tf and a higher or equal norm.
+ * The bound of the term, for any weight of the term, is the highest of the
+ * scores of these few documents.
+ * @author dwaipayan
+ */
+public class TermScoreBounds {
+
+    static final int[] EMPTY = new int[0];
+
+    String          field;
+    List<AtomicReaderContext> leaves;
+    /**
+     * Per segment: term to its frontier (doc, tf, doc, tf ...), in decreasing tf.
+     */
+    List<ConcurrentHashMap<String, int[]>> frontiers;
+
+    AtomicLong      lookups = new AtomicLong();
+    AtomicLong      computed = new AtomicLong();
+
+    public TermScoreBounds(IndexReader indexReader, String field) {
+
+        this.field = field;
+        this.leaves = indexReader.leaves();
+        frontiers = new ArrayList<>(leaves.size());
+        for (int i = 0; i < leaves.size(); i++)
+            frontiers.add(new ConcurrentHashMap<String, int[]>());
+    }
+
+    /**
+     * Returns the upper bound of the score of a term in a segment.
+     * @param leaf Ordinal of the segment
+     * @param term The term
+     * @param scorer Scorer of the term (with its weight) in the segment
+     * @return The bound; 0 if the term is not in the segment
+     * @throws IOException
+     */
+    public float getBound(int leaf, String term, SimScorer scorer) throws IOException {
+
+        lookups.incrementAndGet();
+        ConcurrentHashMap<String, int[]> leafFrontiers = frontiers.get(leaf);
+        int[] frontier = leafFrontiers.get(term);
+        if(null == frontier) {
+            // two threads may compute the same frontier; both get the same
+            frontier = computeFrontier(leaves.get(leaf).reader(), term);
+            leafFrontiers.put(term, frontier);
+            computed.incrementAndGet();
+        }
+
+        float bound = 0;
+        for (int i = 0; i < frontier.length; i += 2)
+            bound = Math.max(bound, scorer.score(frontier[i], frontier[i+1]));
+        return bound;
+    }
+
+    /**
+     * Walks the postings of a term in a segment, and returns its (tf, norm) frontier.
+     */
+    private int[] computeFrontier(AtomicReader reader, String term) throws IOException {
+
+        DocsEnum de = reader.termDocsEnum(new Term(field, term));
+        if(null == de)
+            return EMPTY;
+        NumericDocValues norms = reader.getNormValues(field);
+
+        // for each tf: the document with the highest norm
+        int[] bestNorm = new int[16];
+        int[] bestDoc = new int[16];
+        Arrays.fill(bestNorm, -1);
+        int maxTf = 0;
+        int doc;
+        while((doc = de.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            int tf = de.freq();
+            int norm = (null == norms) ? 0 : (int) (norms.get(doc) & 0xFF);
+            if(tf >= bestNorm.length) {
+                int oldLength = bestNorm.length;
+                int newLength = Math.max(tf + 1, 2 * oldLength);
+                bestNorm = Arrays.copyOf(bestNorm, newLength);
+                bestDoc = Arrays.copyOf(bestDoc, newLength);
+                Arrays.fill(bestNorm, oldLength, newLength, -1);
+            }
+            if(norm > bestNorm[tf]) {
+                bestNorm[tf] = norm;
+                bestDoc[tf] = doc;
+            }
+            maxTf = Math.max(maxTf, tf);
+        }
+
+        // from the highest tf down, the ones with a higher norm than all with higher tf
+        int[] frontier = new int[16];
+        int size = 0;
+        int highestNorm = -1;
+        for (int tf = maxTf; tf > 0; tf--) {
+            if(bestNorm[tf] > highestNorm) {
+                if(size + 2 > frontier.length)
+                    frontier = Arrays.copyOf(frontier, 2 * frontier.length);
+                frontier[size++] = bestDoc[tf];
+                frontier[size++] = tf;
+                highestNorm = bestNorm[tf];
+            }
+        }
+        return Arrays.copyOf(frontier, size);
+    }
+
+    @Override
+    public String toString() {
+
+        return "Term score bounds: lookups: " + lookups.get()
+            + " computed: " + computed.get();
+    }
+}
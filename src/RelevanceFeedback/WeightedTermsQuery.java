@@ -0,0 +1,391 @@
+package RelevanceFeedback;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.Similarity.SimScorer;
+import org.apache.lucene.search.similarities.Similarity.SimWeight;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * The expanded query as weighted terms, evaluated with MaxScore dynamic
+ * pruning for the top numHits (property: rm3.reretrieval.engine=maxscore).<p>
+ * The scores are those of the BooleanQuery of boosted SHOULD TermQuery
+ * clauses made by {@link RLM#getExpandedQuery}: the same similarity weights,
+ * query norm and coord. The terms of a segment are sorted by the upper
+ * bounds of their scores ({@link TermScoreBounds}); once the top numHits
+ * are full, the terms with the lowest bounds, whose bounds together cannot
+ * get a document past the current numHits-th score, are not iterated over,
+ * but only advanced to the documents of the other terms; a document is left
+ * as soon as its score plus the bounds of its remaining terms cannot get it in.
+ * Hence the top numHits are the same as with the BooleanQuery (with the same
+ * tie break on the docid); the scores may differ in the last bit, as the
+ * scores of the terms are summed in a different order. The totalHits of the
+ * result is the number of documents fully scored, not of the matching ones.<p>
+ * One per RLM; not to be shared among threads.
+ * @author dwaipayan
+ */
+public class WeightedTermsQuery {
+
+    /**
+     * Slack on the bounds, for the summation order.
+     */
+    static final double BOUND_SLACK = 1e-6;
+
+    IndexSearcher   indexSearcher;
+    String          field;
+    TermScoreBounds bounds;
+
+    String[]        terms = new String[0];
+    float[]         weights = new float[0];
+    int             numTerms;
+
+    /**
+     * The terms of a segment, in the increasing order of their bounds.
+     */
+    DocsEnum[]      postings = new DocsEnum[0];
+    SimScorer[]     scorers = new SimScorer[0];
+    double[]        prefixBounds = new double[0];   // sum of the bounds of the terms up to each
+    Integer[]       order = new Integer[0];
+    int[]           essential = new int[0];         // heap of the essential terms, by the current doc
+
+    /**
+     * The top documents: a heap with the lowest on top.
+     */
+    int[]           topDocs = new int[0];
+    float[]         topScores = new float[0];
+    int             numTop;
+    int             numHits;
+    int             numScored;
+
+    public WeightedTermsQuery(IndexSearcher indexSearcher, String field, TermScoreBounds bounds) {
+
+        this.indexSearcher = indexSearcher;
+        this.field = field;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Removes all the terms.
+     */
+    public void clear() {
+        numTerms = 0;
+    }
+
+    /**
+     * Adds a term, as a SHOULD clause with the weight as boost.
+     * @param term The term
+     * @param weight The weight of the term
+     */
+    public void add(String term, float weight) {
+
+        if(numTerms == terms.length) {
+            int capacity = ArrayUtil.oversize(numTerms + 1, 8);
+            terms = Arrays.copyOf(terms, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        terms[numTerms] = term;
+        weights[numTerms] = weight;
+        numTerms++;
+    }
+
+    /**
+     * Returns the top documents of the query.
+     * @param numHits Number of documents to retrieve
+     * @return The top documents, sorted by score (and by docid in ties)
+     * @throws IOException
+     */
+    public TopDocs search(int numHits) throws IOException {
+
+        this.numHits = numHits;
+        numTop = 0;
+        numScored = 0;
+        if(topDocs.length < numHits) {
+            topDocs = new int[numHits];
+            topScores = new float[numHits];
+        }
+        if(numTerms == 0 || numHits <= 0)
+            return new TopDocs(0, new ScoreDoc[0], Float.NaN);
+
+        // ++ the weights of the terms, as by the BooleanQuery and IndexSearcher.createNormalizedWeight()
+        Similarity similarity = indexSearcher.getSimilarity();
+        CollectionStatistics collectionStats = indexSearcher.collectionStatistics(field);
+        SimWeight[] simWeights = new SimWeight[numTerms];
+        float sum = 0.0f;
+        for (int i = 0; i < numTerms; i++) {
+            Term term = new Term(field, terms[i]);
+            TermContext termContext = TermContext.build(indexSearcher.getTopReaderContext(), term);
+            simWeights[i] = similarity.computeWeight(weights[i], collectionStats,
+                indexSearcher.termStatistics(term, termContext));
+            sum += simWeights[i].getValueForNormalization();
+        }
+        float queryNorm = similarity.queryNorm(sum);
+        if(Float.isInfinite(queryNorm) || Float.isNaN(queryNorm))
+            queryNorm = 1.0f;
+        float[] coord = new float[numTerms + 1];
+        for (int i = 0; i < numTerms; i++) {
+            simWeights[i].normalize(queryNorm, 1.0f);
+            coord[i] = similarity.coord(i, numTerms);
+        }
+        coord[numTerms] = similarity.coord(numTerms, numTerms);
+        // --
+
+        if(postings.length < numTerms) {
+            int capacity = ArrayUtil.oversize(numTerms, 8);
+            postings = new DocsEnum[capacity];
+            scorers = new SimScorer[capacity];
+            prefixBounds = new double[capacity];
+            essential = new int[capacity];
+        }
+
+        List<AtomicReaderContext> leaves = indexSearcher.getIndexReader().leaves();
+        for (int leaf = 0; leaf < leaves.size(); leaf++)
+            searchLeaf(leaves.get(leaf), leaf, simWeights, similarity, coord);
+
+        // the heap, sorted by decreasing score
+        ScoreDoc[] hits = new ScoreDoc[numTop];
+        for (int i = numTop - 1; i >= 0; i--) {
+            hits[i] = new ScoreDoc(topDocs[0], topScores[0]);
+            numTop--;
+            topDocs[0] = topDocs[numTop];
+            topScores[0] = topScores[numTop];
+            siftDownTop(0);
+        }
+        return new TopDocs(numScored, hits, (hits.length == 0) ? Float.NaN : hits[0].score);
+    }
+
+    private void searchLeaf(AtomicReaderContext context, int leaf, SimWeight[] simWeights,
+        Similarity similarity, float[] coord) throws IOException {
+
+        // ++ the terms in the segment, in the increasing order of their bounds
+        int n = 0;
+        DocsEnum[] leafPostings = new DocsEnum[numTerms];
+        SimScorer[] leafScorers = new SimScorer[numTerms];
+        final double[] leafBounds = new double[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            DocsEnum de = context.reader().termDocsEnum(new Term(field, terms[i]));
+            if(null == de)
+                continue;
+            leafPostings[n] = de;
+            leafScorers[n] = similarity.simScorer(simWeights[i], context);
+            leafBounds[n] = bounds.getBound(leaf, terms[i], leafScorers[n]) * (1 + BOUND_SLACK);
+            n++;
+        }
+        if(n == 0)
+            return;
+        if(order.length < n)
+            order = new Integer[ArrayUtil.oversize(n, 8)];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, 0, n, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer t, Integer t1) {
+                return Double.compare(leafBounds[t], leafBounds[t1]);
+            }
+        });
+        double prefix = 0;
+        for (int k = 0; k < n; k++) {
+            int i = order[k];
+            postings[k] = leafPostings[i];
+            scorers[k] = leafScorers[i];
+            prefix += leafBounds[i];
+            prefixBounds[k] = prefix;
+        }
+        // --
+
+        int docBase = context.docBase;
+        float threshold = threshold();
+        // terms [firstEssential, n) are essential: a document without any of them cannot get in
+        int firstEssential = firstEssential(0, n, threshold);
+        int numEssential = buildEssentialHeap(firstEssential, n);
+
+        while(numEssential > 0) {
+            int doc = postings[essential[0]].docID();
+
+            // ++ the essential terms on the document
+            double score = 0;
+            int matched = 0;
+            while(numEssential > 0 && postings[essential[0]].docID() == doc) {
+                int t = essential[0];
+                score += scorers[t].score(doc, postings[t].freq());
+                matched++;
+                if(postings[t].nextDoc() == DocIdSetIterator.NO_MORE_DOCS)
+                    essential[0] = essential[--numEssential];
+                siftDownEssential(0, numEssential);
+            }
+            // --
+
+            // ++ the non-essential terms, the highest bound first, while the document can get in
+            boolean candidate = true;
+            for (int t = firstEssential - 1; t >= 0; t--) {
+                if(score + prefixBounds[t] <= threshold) {
+                    candidate = false;
+                    break;
+                }
+                DocsEnum de = postings[t];
+                int current = de.docID();
+                if(current < doc)
+                    current = de.advance(doc);
+                if(current == doc) {
+                    score += scorers[t].score(doc, de.freq());
+                    matched++;
+                }
+            }
+            // --
+
+            if(!candidate)
+                continue;
+            numScored++;
+            float finalScore = (float) score * coord[matched];
+            if(numTop < numHits || finalScore > topScores[0]) {
+                insert(docBase + doc, finalScore);
+                float newThreshold = threshold();
+                if(newThreshold > threshold) {
+                    threshold = newThreshold;
+                    int newFirstEssential = firstEssential(firstEssential, n, threshold);
+                    if(newFirstEssential != firstEssential) {
+                        firstEssential = newFirstEssential;
+                        numEssential = buildEssentialHeap(firstEssential, n);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The score a document has to exceed to get in the top documents.
+     */
+    private float threshold() {
+        return (numTop < numHits) ? Float.NEGATIVE_INFINITY : topScores[0];
+    }
+
+    /**
+     * The first term from which the terms are essential, i.e. the terms before
+     * it cannot together get a document past the threshold.
+     */
+    private int firstEssential(int from, int n, float threshold) {
+
+        int first = from;
+        while(first < n && prefixBounds[first] <= threshold)
+            first++;
+        return first;
+    }
+
+    /**
+     * Makes the heap of the essential terms which are not exhausted.
+     * @return Size of the heap
+     */
+    private int buildEssentialHeap(int firstEssential, int n) throws IOException {
+
+        int size = 0;
+        for (int t = firstEssential; t < n; t++) {
+            DocsEnum de = postings[t];
+            if(de.docID() == -1)
+                de.nextDoc();
+            if(de.docID() != DocIdSetIterator.NO_MORE_DOCS)
+                essential[size++] = t;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--)
+            siftDownEssential(i, size);
+        return size;
+    }
+
+    private void siftDownEssential(int i, int size) {
+
+        int t = essential[i];
+        int doc = postings[t].docID();
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && postings[essential[child + 1]].docID() < postings[essential[child]].docID())
+                child++;
+            if(postings[essential[child]].docID() >= doc)
+                break;
+            essential[i] = essential[child];
+            i = child;
+        }
+        essential[i] = t;
+    }
+
+    /**
+     * Adds a document to the top documents, replacing the lowest if full.
+     */
+    private void insert(int doc, float score) {
+
+        if(numTop < numHits) {
+            // sift up
+            int i = numTop++;
+            while(i > 0) {
+                int parent = (i - 1) / 2;
+                if(!lower(score, doc, topScores[parent], topDocs[parent]))
+                    break;
+                topDocs[i] = topDocs[parent];
+                topScores[i] = topScores[parent];
+                i = parent;
+            }
+            topDocs[i] = doc;
+            topScores[i] = score;
+        }
+        else {
+            topDocs[0] = doc;
+            topScores[0] = score;
+            siftDownTop(0);
+        }
+    }
+
+    /**
+     * A lower score, or the same score with a higher docid, is lower (as by lucene's HitQueue).
+     */
+    private static boolean lower(float score, int doc, float score1, int doc1) {
+        return (score == score1) ? doc > doc1 : score < score1;
+    }
+
+    private void siftDownTop(int i) {
+
+        int doc = topDocs[i];
+        float score = topScores[i];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= numTop)
+                break;
+            if(child + 1 < numTop && lower(topScores[child + 1], topDocs[child + 1], topScores[child], topDocs[child]))
+                child++;
+            if(!lower(topScores[child], topDocs[child], score, doc))
+                break;
+            topDocs[i] = topDocs[child];
+            topScores[i] = topScores[child];
+            i = child;
+        }
+        topDocs[i] = doc;
+        topScores[i] = score;
+    }
+
+    /**
+     * The query, as the toString() of the BooleanQuery of the terms.
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < numTerms; i++) {
+            if(i > 0)
+                buffer.append(' ');
+            buffer.append(terms[i]);
+            if(weights[i] != 1.0f)
+                buffer.append('^').append(Float.toString(weights[i]));
+        }
+        return buffer.toString();
+    }
+}
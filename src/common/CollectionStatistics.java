@@ -4,12 +4,8 @@ package common;
 import static common.CommonVariables.FIELD_BOW;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -54,9 +50,9 @@ public class CollectionStatistics {
     private int         uniqTermCount;
 
     /**
-     * perTerm statistics of all the terms of collection.
+     * Dictionary with the cf, df of all the terms of collection, keyed by the term id.
      */
-    public HashMap<String, PerTermStat> perTermStat;
+    public TermDictionary termDict;
 
     public long getDocCount() {return docCount;}
     public long getVocSize() {return vocSize;}
@@ -71,14 +67,12 @@ public class CollectionStatistics {
     public CollectionStatistics(String indexPath, String field) throws IOException {
         indexReader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
         this.field = field;
-        perTermStat = new HashMap<>();
     }
 
     /**
      * Default constructor.
      */
     public CollectionStatistics() {
-        perTermStat = new HashMap<>();
     }
 
     /**
@@ -90,57 +84,46 @@ public class CollectionStatistics {
      */
     public long getVocabularySize(IndexReader indexReader, String field) throws IOException {
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        long vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-
-        return vocSize;
+        return IndexStatistics.get(indexReader, field).getVocabularySize();
     }
 
     /**
      * Initialize collectionStat:<p>
      * docCount      - total-number-of-docs-in-index<p>
- vocSize       - collection-size<p>
+     * vocSize       - collection-size<p>
      * uniqTermCount - unique terms in collection<p>
-     * perTermStat   - cf, df of each terms in the collection <p>
+     * termDict      - cf, df of each terms in the collection, keyed by term id<p>
      * @throws IOException 
      */
     public void buildCollectionStat() throws IOException {
 
-        docCount = indexReader.maxDoc();      // total number of documents in the index
+        termDict = new TermDictionary(indexReader, field);
+        docCount = termDict.getDocCount();      // total number of documents in the index
+        vocSize = termDict.getVocSize();        // total number of terms in the index in that field
+        uniqTermCount = termDict.size();
 
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-        vocSize = getVocabularySize(indexReader, field);
-        TermsEnum iterator = terms.iterator(null);
-        BytesRef byteRef = null;
+        System.out.println("Collection statistics built");
+    }
 
-        while((byteRef = iterator.next()) != null) {
-        //* for each word in the collection
-            String t = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            int df = iterator.docFreq();           // df of 't'
-            long cf = iterator.totalTermFreq();    // cf of 't'
-            // idf = log(#docCount / (df+1) )
-            double idf = Math.log((float)(docCount)/(float)(df+1));
-            double norm_cf = (double)cf / (double)vocSize;
-            perTermStat.put(t, new PerTermStat(t, cf, df, idf, norm_cf));
-        }
-        uniqTermCount = perTermStat.size();
+    /**
+     * Initialize collectionStat from the term statistics sidecar, 
+     * which is built first if missing or made from a different version of the index.
+     * @param sidecarFile The term statistics sidecar
+     * @throws IOException 
+     * @see TermStatsSidecar
+     */
+    public void buildCollectionStat(File sidecarFile) throws IOException {
 
-        System.out.println("Collection statistics built");
+        termDict = TermStatsSidecar.loadOrBuild(indexReader, field, sidecarFile,
+            Runtime.getRuntime().availableProcessors());
+        docCount = termDict.getDocCount();      // total number of documents in the index
+        vocSize = termDict.getVocSize();        // total number of terms in the index in that field
+        uniqTermCount = termDict.size();
+
+        System.out.println("Collection statistics read");
     }
 
     public double getIdf(String term, IndexReader indexReader, String fieldName) throws IOException {
-        Fields fields = MultiFields.getFields(indexReader);
         Term termInstance = new Term(fieldName, term);
         long df = indexReader.docFreq(termInstance);       // DF: Returns the number of documents containing the term
 
@@ -160,11 +143,9 @@ public class CollectionStatistics {
         System.out.println("NUmber of unique terms in collection: " + uniqTermCount);
 
         ///*
-        for (Map.Entry<String, PerTermStat> entrySet : perTermStat.entrySet()) {
-            String key = entrySet.getKey();
-            PerTermStat value = entrySet.getValue();
-            System.out.println("Term: <"+key + "> " + 
-                "df: "+value.getDF() +" cf: "+value.getCF());
+        for (int termId = 0; termId < termDict.size(); termId++) {
+            System.out.println("Term: <"+termDict.getTerm(termId) + "> " + 
+                "df: "+termDict.getDF(termId) +" cf: "+termDict.getCF(termId));
         }
         //*/
     }
@@ -185,12 +166,12 @@ public class CollectionStatistics {
 
         float totalScore = 0;
         for(String qTerm : qTerms) {
-            PerTermStat perQueryStat = dv.docPerTermStat.get(qTerm);
+            int qTermId = termDict.getId(qTerm);
             //System.out.println(qTerm);
-            if(null != perQueryStat) {
-                long tf = perQueryStat.getCF();
+            if(qTermId >= 0 && 0 != dv.getTf(qTermId)) {
+                long tf = dv.getTf(qTermId);
                 long docSize = dv.getDocSize();
-                long cf = perTermStat.get(qTerm).getCF();
+                long cf = termDict.getCF(qTermId);
                 long collSize = getVocSize();
                 double singleTermScore = Math.log(1+((1-lambda)*tf/docSize)/(lambda * cf/collSize));
                 totalScore += singleTermScore;
@@ -229,9 +210,10 @@ public class CollectionStatistics {
 
         while((byteRef = iterator.next()) != null) {
         //* for each word in the document
-            String term = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            long docFreq = perTermStat.get(term).getDF();            // df of 't'
-            long colFreq = perTermStat.get(term).getCF();            // cf of 't'
+            String term = byteRef.utf8ToString();
+            int termId = termDict.getId(byteRef);
+            long docFreq = termDict.getDF(termId);            // df of 't'
+            long colFreq = termDict.getCF(termId);            // cf of 't'
             long termFreq = iterator.totalTermFreq();    // tf of 't'
             System.out.println(term+": tf: "+termFreq + " df: "+docFreq
                 + " cf: " + colFreq);
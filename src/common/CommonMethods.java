@@ -1,23 +1,18 @@
 
 package common;
 
-import RelevanceFeedback.NewScore;
 import static common.CommonVariables.FIELD_ID;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
 
 /**
  *
@@ -51,6 +46,31 @@ public class CommonMethods {
 
         return resBuffer;
     }
+
+    /**
+     * Returns a string-buffer in the TREC-res format for the passed queryId,
+     * with the docids taken from the docid index, without reading the stored documents.
+     * @param queryId
+     * @param hits
+     * @param docidIndex Docid index of the searched index
+     * @param runName
+     * @return
+     */
+    static final public StringBuffer writeTrecResFileFormat(String queryId, ScoreDoc[] hits, 
+        DocidIndex docidIndex, String runName) {
+
+        StringBuffer resBuffer = new StringBuffer();
+        int hits_length = hits.length;
+        for (int i = 0; i < hits_length; ++i) {
+            resBuffer.append(queryId).append("\tQ0\t").
+                append(docidIndex.getDocid(hits[i].doc)).append("\t").
+                append((i)).append("\t").
+                append(hits[i].score).append("\t").
+                append(runName).append("\n");                
+        }
+
+        return resBuffer;
+    }
     /**
      * Read 6 column TREC-res file to use for Relevance feedback 
      * @param resFile The path of the result file
@@ -60,94 +80,94 @@ public class CommonMethods {
     public static HashMap<String, TopDocs> readTopDocsFromFile(String resFile, List<TRECQuery> queries,
         IndexReader indexReader) throws Exception {
 
+        return readTopDocsFromFile(resFile, queries,
+            DocidIndex.loadOrBuild(indexReader, IndexSidecar.getSidecarFile(indexReader, FIELD_ID + ".docids")));
+    }
+
+    /**
+     * Read 6 column TREC-res file to use for Relevance feedback.<p>
+     * The lines of a query are read into a block, whose docids are resolved
+     * in one batch with the docid index; one block is held at a time.
+     * @param resFile The path of the result file
+     * @param queries The queries, for printing their titles; null if not at hand (e.g. streamed)
+     * @param docidIndex Docid index of the index
+     * @return A hashmap, keyed by the query-id with value, containing the topDocs read from file
+     * @throws Exception 
+     */
+    public static HashMap<String, TopDocs> readTopDocsFromFile(String resFile, List<TRECQuery> queries,
+        DocidIndex docidIndex) throws Exception {
+
         HashMap<String, TRECQuery> hm_Query = new HashMap();
-        for (TRECQuery query : queries) {
-            hm_Query.put(query.qid, query);
+        if(null != queries) {
+            for (TRECQuery query : queries)
+                hm_Query.put(query.qid, query);
         }
 
         HashMap<String, TopDocs> allTopDocsHashMap = new HashMap<>();
 
-        IndexSearcher docidSearcher;
-        docidSearcher = new IndexSearcher(indexReader);
-
-        ScoreDoc[] docidHits = null;
-        TopDocs docidTopDocs = null;
-        Query docidQuery;
-        TopScoreDocCollector collector;
-
-        QueryParser docidSearchParser = new QueryParser(FIELD_ID, new WhitespaceAnalyzer());
-        BufferedReader br = new BufferedReader(new FileReader(resFile));
-
-        String line;
-        String presentQueryId;
-        String presentDocId;
-        float presentScore;
-        int presentLuceneDocId;
-
+        // block of the lines of lastQid
         String lastQid = null;
-
-        String tokens[];
-        List<NewScore> listLuceneDocId;
-        listLuceneDocId = new ArrayList<>();
-
-        do {
-            line = br.readLine();
-
-            if(line == null && listLuceneDocId != null) {  // end of file is reached and there are entires in listLuceneDocId to be put in hashmap
-                
-                ScoreDoc scoreDoc[] = new ScoreDoc[listLuceneDocId.size()];
-                for (int i=0; i<listLuceneDocId.size(); i++) {
-                    scoreDoc[i] = new ScoreDoc(listLuceneDocId.get(i).luceneDocid, (float) listLuceneDocId.get(i).score);
+        String[] docIds = new String[1024];
+        float[] scores = new float[1024];
+        int numDocs = 0;
+
+        try (BufferedReader br = new BufferedReader(new FileReader(resFile))) {
+            String line;
+            String tokens[] = null;
+            do {
+                line = br.readLine();
+                String presentQueryId = null;
+                if(null != line) {
+                    tokens = line.split("\\t");
+                    presentQueryId = tokens[0];
                 }
-                TopDocs topDocs;
-                topDocs = new TopDocs(listLuceneDocId.size(), scoreDoc, (float) listLuceneDocId.get(0).score);
-                TRECQuery trecQuery = hm_Query.get(lastQid);
-                System.out.println(lastQid+": "+trecQuery.qtitle);
-
-                allTopDocsHashMap.put(lastQid, topDocs);
-
-                break;
-            }
-
-            tokens = line.split("\\t");
-            presentQueryId = tokens[0];
-            presentDocId = tokens[2];
-            presentScore = Float.parseFloat(tokens[4]);
-
-            docidQuery = docidSearchParser.parse(presentDocId);
-            collector = TopScoreDocCollector.create(1, true);
-            docidSearcher.search(docidQuery, collector);
-            docidTopDocs = collector.topDocs();
-            docidHits = docidTopDocs.scoreDocs;
-            if(docidHits == null) {
-                System.err.println("Lucene docid not found for: "+tokens[2]);
-                continue;
-            }
-            presentLuceneDocId = docidHits[0].doc;
 
-            if(null != lastQid && !lastQid.equals(presentQueryId)) {
+                // end of file, or of the lines of lastQid: the block is resolved and put in the hashmap
+                if(null != lastQid && !lastQid.equals(presentQueryId)) {
+                    putTopDocs(allTopDocsHashMap, lastQid, hm_Query.get(lastQid), docidIndex, docIds, scores, numDocs);
+                    numDocs = 0;
+                }
+                if(null == line)
+                    break;
 
-                ScoreDoc scoreDoc[] = new ScoreDoc[listLuceneDocId.size()];
-                for (int i=0; i<listLuceneDocId.size(); i++) {
-                    scoreDoc[i] = new ScoreDoc(listLuceneDocId.get(i).luceneDocid, (float) listLuceneDocId.get(i).score);
+                if(numDocs == docIds.length) {
+                    docIds = Arrays.copyOf(docIds, 2 * numDocs);
+                    scores = Arrays.copyOf(scores, 2 * numDocs);
                 }
-                ScoreDoc[] hits;
-                TopDocs topDocs;
-                topDocs = new TopDocs(listLuceneDocId.size(), scoreDoc, (float) listLuceneDocId.get(0).score);
-                TRECQuery trecQuery = hm_Query.get(lastQid);
-                System.out.println(lastQid+": "+trecQuery.qtitle);
+                docIds[numDocs] = tokens[2];
+                scores[numDocs] = Float.parseFloat(tokens[4]);
+                numDocs++;
+                lastQid = presentQueryId;
+            } while(true);
+        }
 
-                allTopDocsHashMap.put(lastQid, topDocs);
+        return allTopDocsHashMap;
+    } // ends readTopDocsFromFile()
 
-                listLuceneDocId = new ArrayList<>();
-            }
+    /**
+     * Resolves the docids of the block of a query and puts its topDocs in the hashmap.
+     */
+    private static void putTopDocs(HashMap<String, TopDocs> allTopDocsHashMap, String qid, TRECQuery trecQuery,
+        DocidIndex docidIndex, String[] docIds, float[] scores, int numDocs) {
 
-            listLuceneDocId.add(new NewScore(presentLuceneDocId, presentScore));
-            lastQid = presentQueryId;
+        int[] luceneDocIds = docidIndex.getLuceneDocids(Arrays.copyOf(docIds, numDocs));
 
-        } while (true);
+        ScoreDoc scoreDoc[] = new ScoreDoc[numDocs];
+        int numFound = 0;
+        for (int k = 0; k < numDocs; k++) {
+            if(luceneDocIds[k] < 0) {
+                System.err.println("Lucene docid not found for: "+docIds[k]);
+                continue;
+            }
+            scoreDoc[numFound++] = new ScoreDoc(luceneDocIds[k], scores[k]);
+        }
+        if(0 == numFound)
+            return;
+        if(numFound < numDocs)
+            scoreDoc = Arrays.copyOf(scoreDoc, numFound);
 
-        return allTopDocsHashMap;
-    } // ends readTopDocsFromFile()
+        System.out.println(qid+": "+((null != trecQuery) ? trecQuery.qtitle : ""));
+        allTopDocsHashMap.put(qid, new TopDocs(numFound, scoreDoc, scoreDoc[0].score));
+    }
 
 }
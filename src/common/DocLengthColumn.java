@@ -0,0 +1,148 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * Length of each document in a field (sum of the tf of its terms; same as
+ * the size of its {@link DocumentVector}), indexed by the lucene docid.<p>
+ * The length sidecar is built once by a pass over the postings of the field
+ * (no term vector is read) and read by memory mapping. The lookups use
+ * absolute gets only, hence can be shared among threads.
+ * @author dwaipayan
+ */
+public class DocLengthColumn {
+
+    static final int MAGIC          = 0x52464c4e;   // "RFLN"
+    static final int FORMAT_VERSION = 1;
+
+    String      field;
+    IntBuffer   lengths;
+
+    DocLengthColumn(String field, IntBuffer lengths) {
+        this.field = field;
+        this.lengths = lengths;
+    }
+
+    public String getField() {return field;}
+
+    /**
+     * @param luceneDocId The lucene docid
+     * @return Length of the document in the field
+     */
+    public int getLength(int luceneDocId) {return lengths.get(luceneDocId);}
+
+    /**
+     * Opens the sidecar if it is valid for the index; else (re)builds it first.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param sidecarFile The sidecar file; if null, a temporary file is used
+     * @return The length column
+     * @throws IOException
+     */
+    public static DocLengthColumn loadOrBuild(IndexReader indexReader, String field, File sidecarFile) throws IOException {
+
+        if(null == sidecarFile) {
+            sidecarFile = File.createTempFile("doclen", ".sidecar");
+            sidecarFile.deleteOnExit();
+            sidecarFile.delete();
+        }
+        else if(sidecarFile.exists()) {
+            DocLengthColumn column = open(indexReader, field, sidecarFile);
+            if(null != column) {
+                System.out.println("Document lengths read from: " + sidecarFile.getPath());
+                return column;
+            }
+            System.err.println("Length sidecar not valid for the index: " + sidecarFile.getPath());
+        }
+
+        System.out.println("Building length sidecar: " + sidecarFile.getPath());
+        build(indexReader, field, sidecarFile);
+
+        return open(indexReader, field, sidecarFile);
+    }
+
+    /**
+     * Opens the sidecar by memory mapping the column.
+     * @param indexReader The index the sidecar is to be used with
+     * @param field The field
+     * @param sidecarFile The sidecar file
+     * @return The length column; null if the sidecar is not valid for the index
+     * @throws IOException
+     */
+    public static DocLengthColumn open(IndexReader indexReader, String field, File sidecarFile) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(sidecarFile, "r");
+            FileChannel channel = file.getChannel()) {
+
+            DataInputStream header = IndexSidecar.readHeader(channel, MAGIC, FORMAT_VERSION, indexReader, field);
+            if(null == header)
+                return null;
+            int maxDoc = header.readInt();
+
+            long offset = channel.position();
+            if(offset + 4L * maxDoc != channel.size())
+                return null;
+            ByteBuffer lengths = IndexSidecar.map(channel, offset, 4L * maxDoc);
+
+            return new DocLengthColumn(field, lengths.asIntBuffer());
+        }
+    }
+
+    /**
+     * Builds the sidecar of the index; the file is replaced atomically.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param sidecarFile The sidecar file
+     * @throws IOException
+     */
+    public static void build(IndexReader indexReader, String field, File sidecarFile) throws IOException {
+
+        int maxDoc = indexReader.maxDoc();
+        int[] lengths = new int[maxDoc];
+
+        Terms terms = MultiFields.getTerms(indexReader, field);
+        if(null == terms) {
+            System.err.println("Field: "+field);
+            System.err.println("Error DocLengthColumn.build(): terms Null found");
+        }
+        else {
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            // deleted documents are counted too, as in their term vectors
+            while(termsEnum.next() != null) {
+                docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_FREQS);
+                int luceneDocId;
+                while((luceneDocId = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                    lengths[luceneDocId] += docsEnum.freq();
+            }
+        }
+
+        ByteBuffer extra = ByteBuffer.allocate(4).putInt(maxDoc);
+
+        File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20))) {
+            IndexSidecar.writeHeader(out, MAGIC, FORMAT_VERSION, indexReader, field, extra.array());
+            for (int luceneDocId = 0; luceneDocId < maxDoc; luceneDocId++)
+                out.writeInt(lengths[luceneDocId]);
+        }
+        Files.move(tempFile.toPath(), sidecarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Length sidecar written: " + maxDoc + " documents");
+    }
+}
@@ -0,0 +1,375 @@
+package common;
+
+import static common.CommonVariables.FIELD_ID;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Resolution of the external docids (FIELD_ID) to the lucene docids, and back,
+ * without a search or a stored field read per document.<p>
+ * The docid sidecar has the docids of the collection in sorted (UTF-8 byte)
+ * order, with the lucene docid of each; and a reverse column, indexed by the
+ * lucene docid, with the position of its docid in the sorted order.
+ * It is built once from the terms of FIELD_ID (or from the stored field,
+ * if FIELD_ID is not indexed) and read by memory mapping.<p>
+ * A docid is found by binary search; a batch of docids is sorted first, so
+ * that each search starts where the previous one ended.
+ * The lookups use absolute gets only, hence can be shared among threads.
+ * @author dwaipayan
+ */
+public class DocidIndex {
+
+    static final int MAGIC          = 0x52464449;   // "RFDI"
+    static final int FORMAT_VERSION = 1;
+
+    int         numKeys;
+    IntBuffer   keyStart;       // start of each docid in keyBytes; keyStart[numKeys] = length
+    ByteBuffer  keyBytes;       // UTF-8 bytes of the sorted docids
+    IntBuffer   luceneDocids;   // lucene docid of each sorted docid
+    IntBuffer   reverse;        // position of the docid of each lucene docid; -1 if none
+
+    DocidIndex(int numKeys, IntBuffer keyStart, ByteBuffer keyBytes, IntBuffer luceneDocids, IntBuffer reverse) {
+        this.numKeys = numKeys;
+        this.keyStart = keyStart;
+        this.keyBytes = keyBytes;
+        this.luceneDocids = luceneDocids;
+        this.reverse = reverse;
+    }
+
+    /**
+     * @return Number of distinct docids
+     */
+    public int size() {return numKeys;}
+
+    /**
+     * Opens the sidecar if it is valid for the index; else (re)builds it first.
+     * @param indexReader The index reader
+     * @param sidecarFile The sidecar file; if null, a temporary file is used
+     * @return The docid index
+     * @throws IOException
+     */
+    public static DocidIndex loadOrBuild(IndexReader indexReader, File sidecarFile) throws IOException {
+
+        if(null == sidecarFile) {
+            sidecarFile = File.createTempFile("docids", ".sidecar");
+            sidecarFile.deleteOnExit();
+            sidecarFile.delete();
+        }
+        else if(sidecarFile.exists()) {
+            DocidIndex docidIndex = open(indexReader, sidecarFile);
+            if(null != docidIndex) {
+                System.out.println("Docid index read from: " + sidecarFile.getPath());
+                return docidIndex;
+            }
+            System.err.println("Docid sidecar not valid for the index: " + sidecarFile.getPath());
+        }
+
+        System.out.println("Building docid sidecar: " + sidecarFile.getPath());
+        build(indexReader, sidecarFile);
+
+        return open(indexReader, sidecarFile);
+    }
+
+    /**
+     * Opens the sidecar by memory mapping its columns.
+     * @param indexReader The index the sidecar is to be used with
+     * @param sidecarFile The sidecar file
+     * @return The docid index; null if the sidecar is not valid for the index
+     * @throws IOException
+     */
+    public static DocidIndex open(IndexReader indexReader, File sidecarFile) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(sidecarFile, "r");
+            FileChannel channel = file.getChannel()) {
+
+            DataInputStream header = IndexSidecar.readHeader(channel, MAGIC, FORMAT_VERSION, indexReader, FIELD_ID);
+            if(null == header)
+                return null;
+            int numKeys = header.readInt();
+            int maxDoc = header.readInt();
+            long keyBytesLength = header.readLong();
+
+            long offset = channel.position();
+            ByteBuffer keyStart = IndexSidecar.map(channel, offset, 4L * (numKeys + 1));
+            offset += 4L * (numKeys + 1);
+            ByteBuffer luceneDocids = IndexSidecar.map(channel, offset, 4L * numKeys);
+            offset += 4L * numKeys;
+            ByteBuffer reverse = IndexSidecar.map(channel, offset, 4L * maxDoc);
+            offset += 4L * maxDoc;
+            ByteBuffer keyBytes = IndexSidecar.map(channel, offset, keyBytesLength);
+            offset += keyBytesLength;
+            if(offset != channel.size())
+                return null;
+
+            return new DocidIndex(numKeys, keyStart.asIntBuffer(), keyBytes,
+                luceneDocids.asIntBuffer(), reverse.asIntBuffer());
+        }
+    }
+
+    /**
+     * Builds the sidecar of the index; the file is replaced atomically.
+     * @param indexReader The index reader
+     * @param sidecarFile The sidecar file
+     * @throws IOException
+     */
+    public static void build(IndexReader indexReader, File sidecarFile) throws IOException {
+
+        int maxDoc = indexReader.maxDoc();
+        int[] reverse = new int[maxDoc];
+        Arrays.fill(reverse, -1);
+
+        int numKeys = 0;
+        int[] keyStart = new int[1024 + 1];
+        int[] luceneDocids = new int[1024];
+        byte[] keyBytes = new byte[16 * 1024];
+
+        BytesRef[] sortedKeys = null;
+        int[] sortedDocids = null;
+        Terms terms = MultiFields.getTerms(indexReader, FIELD_ID);
+        if(null == terms) {
+            // docids are not indexed; read from the stored field, and sorted
+            System.out.println("Docids not indexed; reading the stored " + FIELD_ID);
+            Bits liveDocs = MultiFields.getLiveDocs(indexReader);
+            final BytesRef[] docKeys = new BytesRef[maxDoc];
+            Integer[] order = new Integer[maxDoc];
+            int n = 0;
+            for (int luceneDocId = 0; luceneDocId < maxDoc; luceneDocId++) {
+                if(null != liveDocs && !liveDocs.get(luceneDocId))
+                    continue;
+                Document d = indexReader.document(luceneDocId);
+                if(null == d.get(FIELD_ID))
+                    continue;
+                docKeys[luceneDocId] = new BytesRef(d.get(FIELD_ID));
+                order[n++] = luceneDocId;
+            }
+            order = Arrays.copyOf(order, n);
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer d1, Integer d2) {
+                    int c = docKeys[d1].compareTo(docKeys[d2]);
+                    return (c != 0) ? c : Integer.compare(d1, d2);
+                }
+            });
+            sortedKeys = new BytesRef[n];
+            sortedDocids = new int[n];
+            for (int i = 0; i < n; i++) {
+                sortedKeys[i] = docKeys[order[i]];
+                sortedDocids[i] = order[i];
+            }
+        }
+
+        TermsEnum termsEnum = (null != terms) ? terms.iterator(null) : null;
+        Bits liveDocs = MultiFields.getLiveDocs(indexReader);
+        DocsEnum docsEnum = null;
+        int next = 0;
+        while(true) {
+            BytesRef key;
+            int luceneDocId;
+            if(null != termsEnum) {
+                if(null == (key = termsEnum.next()))
+                    break;
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+                if((luceneDocId = docsEnum.nextDoc()) == DocIdSetIterator.NO_MORE_DOCS)
+                    continue;
+            }
+            else {
+                if(next == sortedKeys.length)
+                    break;
+                key = sortedKeys[next];
+                luceneDocId = sortedDocids[next];
+                next++;
+                if(numKeys > 0 && sameKey(keyBytes, keyStart[numKeys-1], keyStart[numKeys], key)) {
+                    reverse[luceneDocId] = numKeys - 1;
+                    continue;
+                }
+            }
+
+            if(numKeys == luceneDocids.length) {
+                int newLength = ArrayUtil.oversize(numKeys + 1, 4);
+                luceneDocids = Arrays.copyOf(luceneDocids, newLength);
+                keyStart = Arrays.copyOf(keyStart, newLength + 1);
+            }
+            int start = keyStart[numKeys];
+            if(start + key.length > keyBytes.length)
+                keyBytes = ArrayUtil.grow(keyBytes, start + key.length);
+            System.arraycopy(key.bytes, key.offset, keyBytes, start, key.length);
+            keyStart[numKeys+1] = start + key.length;
+            // for a docid shared by several documents, the first one is taken
+            luceneDocids[numKeys] = luceneDocId;
+            reverse[luceneDocId] = numKeys;
+            if(null != termsEnum) {
+                while((luceneDocId = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                    reverse[luceneDocId] = numKeys;
+            }
+            numKeys++;
+        }
+
+        ByteArrayOutputStream extraBytes = new ByteArrayOutputStream();
+        DataOutputStream extra = new DataOutputStream(extraBytes);
+        extra.writeInt(numKeys);
+        extra.writeInt(maxDoc);
+        extra.writeLong(keyStart[numKeys]);
+        extra.close();
+
+        File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20))) {
+            IndexSidecar.writeHeader(out, MAGIC, FORMAT_VERSION, indexReader, FIELD_ID, extraBytes.toByteArray());
+            for (int i = 0; i <= numKeys; i++)
+                out.writeInt(keyStart[i]);
+            for (int i = 0; i < numKeys; i++)
+                out.writeInt(luceneDocids[i]);
+            for (int luceneDocId = 0; luceneDocId < maxDoc; luceneDocId++)
+                out.writeInt(reverse[luceneDocId]);
+            out.write(keyBytes, 0, keyStart[numKeys]);
+        }
+        Files.move(tempFile.toPath(), sidecarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Docid sidecar written: " + numKeys + " docids");
+    }
+
+    private static boolean sameKey(byte[] bytes, int start, int end, BytesRef key) {
+
+        if(end - start != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if(bytes[start+i] != key.bytes[key.offset+i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the docid at a position of the sorted order with a key, in UTF-8 byte order.
+     */
+    private int compare(int position, byte[] key) {
+
+        int start = keyStart.get(position);
+        int length = keyStart.get(position+1) - start;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (keyBytes.get(start+i) & 0xff) - (key[i] & 0xff);
+            if(diff != 0)
+                return diff;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Binary search of a key in the sorted docids, from a position onwards.
+     * @return The position of the key; -(insertion point)-1 if absent
+     */
+    private int search(byte[] key, int from) {
+
+        int low = from, high = numKeys - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(mid, key);
+            if(c < 0)
+                low = mid + 1;
+            else if(c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Returns the lucene docid of a docid.
+     * @param docid The docid (FIELD_ID)
+     * @return The lucene docid; -1 if not in the index
+     */
+    public int getLuceneDocid(String docid) {
+
+        int position = search(docid.getBytes(StandardCharsets.UTF_8), 0);
+        return (position >= 0) ? luceneDocids.get(position) : -1;
+    }
+
+    /**
+     * Returns the lucene docids of a batch of docids. The batch is searched in
+     * sorted order, each search starting from where the previous one ended.
+     * @param docids The docids (FIELD_ID)
+     * @return The lucene docids, parallel to docids; -1 for a docid not in the index
+     */
+    public int[] getLuceneDocids(String[] docids) {
+
+        final byte[][] keys = new byte[docids.length][];
+        Integer[] order = new Integer[docids.length];
+        for (int i = 0; i < docids.length; i++) {
+            keys[i] = docids[i].getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return compareBytes(keys[i1], keys[i2]);
+            }
+        });
+
+        int[] result = new int[docids.length];
+        int from = 0;
+        for (int i : order) {
+            int position = search(keys[i], from);
+            if(position >= 0) {
+                result[i] = luceneDocids.get(position);
+                from = position;
+            }
+            else {
+                result[i] = -1;
+                from = -position - 1;
+            }
+        }
+        return result;
+    }
+
+    private static int compareBytes(byte[] b1, byte[] b2) {
+
+        int n = Math.min(b1.length, b2.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (b1[i] & 0xff) - (b2[i] & 0xff);
+            if(diff != 0)
+                return diff;
+        }
+        return b1.length - b2.length;
+    }
+
+    /**
+     * Returns the docid of a document, without reading its stored fields.
+     * @param luceneDocId The lucene docid
+     * @return The docid (FIELD_ID); null if the document has none
+     */
+    public String getDocid(int luceneDocId) {
+
+        int position = reverse.get(luceneDocId);
+        if(position < 0)
+            return null;
+        int start = keyStart.get(position);
+        byte[] bytes = new byte[keyStart.get(position+1) - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = keyBytes.get(start+i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -3,14 +3,13 @@ package common;
 
 import static common.CommonVariables.FIELD_BOW;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 /**
@@ -23,6 +22,22 @@ public class DocumentVector {
      * PerTermStat of the Document.
      */
     public HashMap<String, PerTermStat>     docPerTermStat;
+    /**
+     * Ids (in {@link TermDictionary}) of the unique terms of the Document, in increasing order.
+     */
+    public int[]                            termIds;
+    /**
+     * Term frequencies of the unique terms, parallel to {@link #termIds}.
+     */
+    public int[]                            termFreqs;
+    /**
+     * Number of unique terms of the Document; valid length of termIds and termFreqs.
+     */
+    public int                              numUniqueTerms;
+    /**
+     * The dictionary from which the termIds are taken.
+     */
+    TermDictionary                          termDict;
     /**
      * Size of the Document.
      */
@@ -47,15 +62,41 @@ public class DocumentVector {
         this.docScore = docScore;
     }
 
+    /**
+     * Document vector in the id form; no PerTermStat map is made.
+     * @param termIds Ids of the unique terms, in increasing order
+     * @param termFreqs tf of the terms, parallel to termIds
+     * @param numUniqueTerms Valid length of termIds and termFreqs
+     * @param size Size of the document
+     * @param termDict The dictionary from which the ids are taken
+     */
+    public DocumentVector(int[] termIds, int[] termFreqs, int numUniqueTerms, int size, TermDictionary termDict) {
+        this.termIds = termIds;
+        this.termFreqs = termFreqs;
+        this.numUniqueTerms = numUniqueTerms;
+        this.size = size;
+        this.termDict = termDict;
+    }
+
     public HashMap getDocPerTermStat() {return docPerTermStat;}
     public int getDocSize() {return size;}
     public float getDocScore() {return docScore;}
+    public int getNumUniqueTerms() {return numUniqueTerms;}
 
     /**
-     * Returns the document vector for a document with lucene-docid=luceneDocId
-       Returns dv containing 
-      1) docPerTermStat: a HashMap of (t,PerTermStat) type
-      2) size : size of the document
+     * Returns the document vector for a document with lucene-docid=luceneDocId,
+     * read from the forward index, without the term vector.
+     * @param luceneDocId
+     * @param forwardIndex The forward index of the field
+     * @return document vector
+     */
+    public DocumentVector getDocumentVector(int luceneDocId, ForwardIndex forwardIndex) {
+        return forwardIndex.getDocumentVector(luceneDocId);
+    }
+
+    /**
+     * Returns the document vector for a document with lucene-docid=luceneDocId,
+     * with the term ids taken from the dictionary of the CollectionStatistics.
      * @param luceneDocId
      * @param cs
      * @return document vector
@@ -63,42 +104,77 @@ public class DocumentVector {
      */
     public DocumentVector getDocumentVector(int luceneDocId, CollectionStatistics cs) throws IOException {
 
-        DocumentVector dv = new DocumentVector();
-        int docSize = 0;
-
         if(cs.indexReader==null) {
             System.out.println("Error: null == indexReader in showDocumentVector(int,IndexReader)");
             System.exit(1);
         }
 
+        return getDocumentVector(luceneDocId, cs.indexReader, cs.termDict);
+    }
+
+    /**
+     * Returns the document vector for a document with lucene-docid=luceneDocId
+       Returns dv containing 
+      1) termIds and termFreqs: ids of the terms in termDict with their tf
+      2) size : size of the document
+     * No String or PerTermStat is made for the terms.
+     * @param luceneDocId
+     * @param indexReader
+     * @param termDict The dictionary of the field to be read
+     * @return document vector; null if term vectors were not indexed
+     * @throws IOException 
+     */
+    public DocumentVector getDocumentVector(int luceneDocId, IndexReader indexReader, TermDictionary termDict) throws IOException {
+
+        int docSize = 0;
+
         // t vector for this document and field, or null if t vectors were not indexed
-        Terms terms = cs.indexReader.getTermVector(luceneDocId, FIELD_BOW);
+        Terms terms = indexReader.getTermVector(luceneDocId, termDict.getField());
         if(null == terms) {
             System.err.println("Error getDocumentVector(): Term vectors not indexed: "+luceneDocId);
             return null;
         }
 
+        int capacity = (terms.size() > 0) ? (int) terms.size() : 16;
+        int[] ids = new int[capacity];
+        int[] freqs = new int[capacity];
+        int n = 0;
+
         TermsEnum iterator = terms.iterator(null);
         BytesRef byteRef = null;
 
         //* for each word in the document
         while((byteRef = iterator.next()) != null) {
-            String term = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            //int docFreq = iterator.docFreq();            // df of 't'
-            long termFreq = iterator.totalTermFreq();    // tf of 't'
-            //System.out.println(t+": tf: "+termFreq);
+            int termId = termDict.getId(byteRef);
+            int termFreq = (int) iterator.totalTermFreq();    // tf of 't'
             docSize += termFreq;
-
-            //* termFreq = cf, in a document; df = 1, in a document
-            //dv.docPerTermStat.put(t, new PerTermStat(t, termFreq, 1));
-            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, cs.perTermStat.get(term).getIDF(), (double)termFreq/(double)cs.getVocSize()));
+            if(termId < 0)
+                continue;
+            if(n == ids.length) {
+                ids = ArrayUtil.grow(ids, n + 1);
+                freqs = ArrayUtil.grow(freqs, n + 1);
+            }
+            ids[n] = termId;
+            freqs[n] = termFreq;
+            n++;
         }
-        dv.size = docSize;
-        //System.out.println("DocSize: "+docSize);
-
-        return dv;
+        //* the term vector is sorted in the same order as the dictionary, hence the ids are increasing
+        return new DocumentVector(ids, freqs, n, docSize, termDict);
     }
 
+    /**
+     * Returns the document vector for a document with lucene-docid=luceneDocId
+       Returns dv containing 
+      1) docPerTermStat: PerTermStat of the terms with their tf
+      2) size : size of the document
+     * Only the term bytes and the tf are read from the term vector; the idf and
+     * the collection probability of a term are looked up in the
+     * {@link IndexStatistics} of the index when first asked for.
+     * @param luceneDocId
+     * @param indexReader
+     * @return document vector; null if term vectors were not indexed
+     * @throws IOException 
+     */
     public DocumentVector getDocumentVector(int luceneDocId, IndexReader indexReader) throws IOException {
 
         DocumentVector dv = new DocumentVector();
@@ -116,59 +192,38 @@ public class DocumentVector {
             System.err.println("Error getDocumentVector(): Term vectors not indexed: "+luceneDocId);
             return null;
         }
+        IndexStatistics stats = IndexStatistics.get(indexReader, fieldName);
 
         TermsEnum iterator = terms.iterator(null);
         BytesRef byteRef = null;
 
         //* for each word in the document
         while((byteRef = iterator.next()) != null) {
-            String term = new String(byteRef.bytes, byteRef.offset, byteRef.length);
-            //int docFreq = iterator.docFreq();            // df of 't'
+            String term = byteRef.utf8ToString();
             long termFreq = iterator.totalTermFreq();    // tf of 't'
-            //System.out.println(t+": tf: "+termFreq);
             docSize += termFreq;
 
             //* termFreq = cf, in a document; df = 1, in a document
-            //dv.docPerTermStat.put(t, new PerTermStat(t, termFreq, 1));
-            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, getIdf(term, indexReader, fieldName), getCollectionProbability(term, indexReader, fieldName)));
+            dv.docPerTermStat.put(term, new LazyPerTermStat(term, termFreq, stats));
         }
         dv.size = docSize;
-        //System.out.println("DocSize: "+docSize);
 
         return dv;
     }
 
     public double getIdf(String term, IndexReader indexReader, String fieldName) throws IOException {
-        int docCount = indexReader.maxDoc();      // total number of documents in the index
-        Fields fields = MultiFields.getFields(indexReader);
-        Term termInstance = new Term(fieldName, term);
-        long df = indexReader.docFreq(termInstance);       // DF: Returns the number of documents containing the term
 
-        double idf;
-        idf = Math.log((float)(docCount)/(float)(df+1));
-
-        return idf;
+        return IndexStatistics.get(indexReader, fieldName).getIdf(term);
     }
 
     public long getVocabularySize(IndexReader indexReader, String field) throws IOException {
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(field);
-        if(null == terms) {
-            System.err.println("Field: "+field);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        long vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
 
-        return vocSize;
+        return IndexStatistics.get(indexReader, field).getVocabularySize();
     }
 
-
     public float getCollectionProbability(String term, IndexReader reader, String fieldName) throws IOException {
 
-        Term termInstance = new Term(fieldName, term);
-        long termFreq = reader.totalTermFreq(termInstance); // CF: Returns the total number of occurrences of term across all documents (the sum of the freq() for each doc that has this term).
-
-        return (float) termFreq / (float) getVocabularySize(reader, fieldName);
+        return IndexStatistics.get(reader, fieldName).getCollectionProbability(term);
     }
 
     /**
@@ -181,6 +236,15 @@ public class DocumentVector {
             System.err.println("Error: printing document vector. Calling docVec null");
             System.exit(1);
         }
+        if(null != termIds) {
+            if(0 == numUniqueTerms) {
+                System.out.println("Error: printing document vector. Calling docVec zero");
+                return false;
+            }
+            for (int i = 0; i < numUniqueTerms; i++)
+                System.out.println(termDict.getTerm(termIds[i]) + " : " + termFreqs[i]);
+            return true;
+        }
         if(0 == this.docPerTermStat.size()) {
             System.out.println("Error: printing document vector. Calling docVec zero");
             return false;
@@ -200,10 +264,23 @@ public class DocumentVector {
      * @return Returns the TF of 'term' in 'dv'
      */
     public long getTf(String term, DocumentVector dv) {
+        if(null != dv.termIds)
+            return dv.getTf(dv.termDict.getId(term));
+
         PerTermStat t = dv.docPerTermStat.get(term);
         if(null != t)
             return t.getCF();
         else
             return 0;
     }
+
+    /** 
+     * Returns the TF of the term with id 'termId' in this document.
+     * @param termId Id of the term in the {@link TermDictionary}
+     * @return Returns the TF of the term; 0 if the term is not in the document
+     */
+    public int getTf(int termId) {
+        int pos = Arrays.binarySearch(termIds, 0, numUniqueTerms, termId);
+        return (pos >= 0) ? termFreqs[pos] : 0;
+    }
 }
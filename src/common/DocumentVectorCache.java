@@ -0,0 +1,351 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Cache of the document vectors (id form, see {@link DocumentVector}) of an
+ * index, keyed by the lucene docid; shared across the queries and the threads.<p>
+ * The cache is bounded by an (approximate) byte budget. It is split into
+ * segments, each with its own lock, LRU order and share of the budget.
+ * A new vector is admitted into a full segment only if it has been asked
+ * for more often than the LRU victim(s) it would replace (TinyLFU admission):
+ * the frequencies are kept in a small count-min sketch per segment, which is
+ * halved periodically to forget the old history.
+ * Thus the documents retrieved for many queries stay, while the one-off
+ * documents of a deep ranking do not flush them out.<p>
+ * With offHeap, the term ids and tf are kept in direct buffers, out of the
+ * garbage collected heap; -XX:MaxDirectMemorySize must then allow the budget.
+ * @author dwaipayan
+ */
+public class DocumentVectorCache {
+
+    /**
+     * Approximate heap cost of an entry, other than the ids and tf:
+     * map entry, key, Entry object and the array headers (or the buffer object).
+     */
+    static final int    ENTRY_OVERHEAD = 128;
+
+    TermDictionary      termDict;
+    boolean             offHeap;
+    long                maxBytes;
+    Segment[]           segments;
+    int                 segmentMask;
+
+    AtomicLong          hits;
+    AtomicLong          misses;
+    AtomicLong          evictions;
+    AtomicLong          rejections;
+
+    /**
+     * @param termDict Dictionary of the field of the vectors
+     * @param maxBytes Byte budget of the cache
+     * @param offHeap Keep the vectors in direct buffers
+     * @param numSegments Number of segments; rounded up to a power of 2
+     */
+    public DocumentVectorCache(TermDictionary termDict, long maxBytes, boolean offHeap, int numSegments) {
+
+        this.termDict = termDict;
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+
+        int n = 1;
+        while(n < numSegments)
+            n <<= 1;
+        segments = new Segment[n];
+        segmentMask = n - 1;
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(maxBytes / n);
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        rejections = new AtomicLong();
+    }
+
+    static int mix(int key) {
+        // murmurhash3 finalizer
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+    private Segment segmentFor(int luceneDocId) {
+        return segments[(mix(luceneDocId) >>> 24) & segmentMask];
+    }
+
+    /**
+     * Returns the cached vector of a document.
+     * @param luceneDocId The lucene docid
+     * @return The document vector; null if not in the cache
+     */
+    public DocumentVector get(int luceneDocId) {
+
+        Segment segment = segmentFor(luceneDocId);
+        Entry entry;
+        synchronized(segment) {
+            segment.sketch.increment(luceneDocId);
+            entry = segment.map.get(luceneDocId);
+        }
+        if(null == entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        return entry.toDocumentVector(termDict);
+    }
+
+    /**
+     * Offers the vector of a document to the cache; it may not be admitted.
+     * @param luceneDocId The lucene docid
+     * @param dv The document vector, in the id form
+     */
+    public void put(int luceneDocId, DocumentVector dv) {
+
+        long bytes = Entry.bytesOf(dv);
+        Segment segment = segmentFor(luceneDocId);
+
+        synchronized(segment) {
+            if(segment.map.containsKey(luceneDocId))
+                return;
+            if(bytes > segment.maxBytes) {
+                rejections.incrementAndGet();
+                return;
+            }
+
+            // ++ the LRU victims to make room for it, all to be less frequent than the candidate
+            int candidateFreq = segment.sketch.frequency(luceneDocId);
+            int numVictims = 0;
+            long freed = 0;
+            Iterator<Map.Entry<Integer, Entry>> lru = segment.map.entrySet().iterator();
+            while(segment.bytes - freed + bytes > segment.maxBytes) {
+                Map.Entry<Integer, Entry> victim = lru.next();
+                if(candidateFreq <= segment.sketch.frequency(victim.getKey())) {
+                    rejections.incrementAndGet();
+                    return;
+                }
+                freed += victim.getValue().bytes;
+                numVictims++;
+            }
+            // --
+
+            // admitted
+            lru = segment.map.entrySet().iterator();
+            for (int i = 0; i < numVictims; i++) {
+                lru.next();
+                lru.remove();
+            }
+            segment.bytes -= freed;
+            evictions.addAndGet(numVictims);
+
+            Entry entry = new Entry(dv, offHeap);
+            segment.map.put(luceneDocId, entry);
+            segment.bytes += entry.bytes;
+        }
+    }
+
+    /**
+     * Returns the vector of a document, from the cache or else read from the
+     * term vector of the index, and offered to the cache.
+     * @param luceneDocId The lucene docid
+     * @param indexReader The index of the cache
+     * @return The document vector; null if term vectors were not indexed
+     * @throws IOException
+     */
+    public DocumentVector getDocumentVector(int luceneDocId, IndexReader indexReader) throws IOException {
+
+        DocumentVector dv = get(luceneDocId);
+        if(null != dv)
+            return dv;
+
+        dv = new DocumentVector().getDocumentVector(luceneDocId, indexReader, termDict);
+        if(null != dv)
+            put(luceneDocId, dv);
+        return dv;
+    }
+
+    public long getHits() {return hits.get();}
+    public long getMisses() {return misses.get();}
+    public long getEvictions() {return evictions.get();}
+    public long getRejections() {return rejections.get();}
+
+    /**
+     * @return Number of the cached vectors
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized(segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Approximate bytes used by the cached vectors
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized(segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.get();
+        long m = misses.get();
+        return "Document vector cache (" + (offHeap?"off-heap":"heap") + "): entries: " + size()
+            + " bytes: " + getBytes() + "/" + maxBytes
+            + " hits: " + h + " misses: " + m
+            + " hit rate: " + ((h + m == 0) ? 0 : (100.0 * h / (h + m))) + "%"
+            + " evictions: " + evictions.get() + " rejections: " + rejections.get();
+    }
+
+    /**
+     * A cached vector; immutable.
+     */
+    static class Entry {
+
+        int[]       termIds;
+        int[]       termFreqs;
+        /**
+         * termIds followed by termFreqs, in offHeap mode.
+         */
+        ByteBuffer  data;
+        int         numUniqueTerms;
+        int         size;
+        long        bytes;
+
+        Entry(DocumentVector dv, boolean offHeap) {
+
+            numUniqueTerms = dv.numUniqueTerms;
+            size = dv.getDocSize();
+            bytes = bytesOf(dv);
+            if(offHeap) {
+                data = ByteBuffer.allocateDirect(8 * numUniqueTerms).order(ByteOrder.nativeOrder());
+                IntBuffer ints = data.asIntBuffer();
+                ints.put(dv.termIds, 0, numUniqueTerms);
+                ints.put(dv.termFreqs, 0, numUniqueTerms);
+            }
+            else if(dv.termIds.length == numUniqueTerms) {
+                // the vectors are not modified once made; shared as they are
+                termIds = dv.termIds;
+                termFreqs = dv.termFreqs;
+            }
+            else {
+                termIds = Arrays.copyOf(dv.termIds, numUniqueTerms);
+                termFreqs = Arrays.copyOf(dv.termFreqs, numUniqueTerms);
+            }
+        }
+
+        /**
+         * @param dv A document vector
+         * @return The bytes of its entry
+         */
+        static long bytesOf(DocumentVector dv) {
+            return ENTRY_OVERHEAD + 8L * dv.numUniqueTerms;
+        }
+
+        DocumentVector toDocumentVector(TermDictionary termDict) {
+
+            if(null == data)
+                return new DocumentVector(termIds, termFreqs, numUniqueTerms, size, termDict);
+
+            int[] ids = new int[numUniqueTerms];
+            int[] freqs = new int[numUniqueTerms];
+            // a view of its own, hence safe with concurrent readers
+            IntBuffer ints = data.asIntBuffer();
+            ints.get(ids);
+            ints.get(freqs);
+            return new DocumentVector(ids, freqs, numUniqueTerms, size, termDict);
+        }
+    }
+
+    /**
+     * A segment of the cache: LRU ordered map with the frequency sketch;
+     * guarded by its own monitor.
+     */
+    static class Segment {
+
+        LinkedHashMap<Integer, Entry>   map;
+        FrequencySketch                 sketch;
+        long                            maxBytes;
+        long                            bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            map = new LinkedHashMap<>(16, 0.75f, true);   // access ordered
+            // sized for the number of vectors of ~1KB the segment can hold
+            sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, maxBytes / 1024)));
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 rows of 4-bit counters (kept in bytes), with aging:
+     * all the counters are halved after 10 increments per cell of a row.
+     */
+    static class FrequencySketch {
+
+        static final int[]  SEEDS = {0x97cb3127, 0x3c6ef372, 0xa54ff53a, 0x510e527f};
+        static final int    MAX_COUNT = 15;
+
+        byte[]  table;
+        int     width;
+        int     mask;
+        int     additions;
+        int     sampleSize;
+
+        FrequencySketch(int expectedEntries) {
+            width = 1;
+            while(width < expectedEntries)
+                width <<= 1;
+            mask = width - 1;
+            table = new byte[4 * width];
+            sampleSize = 10 * width;
+        }
+
+        private int index(int key, int row) {
+            return row * width + (mix(key * SEEDS[row]) & mask);
+        }
+
+        int frequency(int key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < 4; row++)
+                min = Math.min(min, table[index(key, row)]);
+            return min;
+        }
+
+        void increment(int key) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int i = index(key, row);
+                if(table[i] < MAX_COUNT) {
+                    table[i]++;
+                    added = true;
+                }
+            }
+            if(added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] >>= 1;
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Forward index of a field: the terms of each document with their tf, for
+ * making the {@link DocumentVector}s without the term vectors of the index.<p>
+ * The forward sidecar has a column with the length of each document, a column
+ * with the offset of each document in the data section, and the data section
+ * with a block per document: the number of its unique terms, followed by its
+ * (term id, tf) pairs in increasing order of the term id, the term ids delta
+ * coded; all as variable length ints. The term ids are those of the
+ * {@link TermDictionary} of the field (ordinals in the sorted TermsEnum).<p>
+ * It is built from the postings of the field, hence works on indexes without
+ * term vectors, in batches of documents to stay within a memory budget; and
+ * read by memory mapping: a vector is a lookup of its offset and a sequential
+ * decode of its block. The reads use absolute gets only, hence can be shared
+ * among threads.<p>
+ * Offline build: java common.ForwardIndex index-path field [sidecar-path] [memory-MB]
+ * @author dwaipayan
+ */
+public class ForwardIndex {
+
+    static final int MAGIC          = 0x52464657;   // "RFFW"
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * The data section is mapped in chunks of this size, each mapped with
+     * the largest block in excess so that a block is never split across chunks.
+     */
+    static final int CHUNK_SHIFT    = 30;
+    static final long CHUNK_MASK    = (1L << CHUNK_SHIFT) - 1;
+
+    TermDictionary  termDict;
+    int             maxDoc;
+    IntBuffer       lengths;
+    LongBuffer      offsets;        // offsets[maxDoc] is the end of the data
+    ByteBuffer[]    chunks;
+
+    ForwardIndex(TermDictionary termDict, int maxDoc, IntBuffer lengths, LongBuffer offsets, ByteBuffer[] chunks) {
+        this.termDict = termDict;
+        this.maxDoc = maxDoc;
+        this.lengths = lengths;
+        this.offsets = offsets;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @param luceneDocId The lucene docid
+     * @return Length of the document in the field
+     */
+    public int getLength(int luceneDocId) {return lengths.get(luceneDocId);}
+
+    /**
+     * Returns the document vector of a document.
+     * @param luceneDocId The lucene docid
+     * @return The document vector, with the term ids of the dictionary
+     */
+    public DocumentVector getDocumentVector(int luceneDocId) {
+
+        long start = offsets.get(luceneDocId);
+        ByteBuffer chunk = chunks[(int) (start >>> CHUNK_SHIFT)];
+        int[] position = {(int) (start & CHUNK_MASK)};
+
+        int n = readVInt(chunk, position);
+        int[] ids = new int[n];
+        int[] freqs = new int[n];
+        int termId = 0;
+        for (int i = 0; i < n; i++) {
+            termId += readVInt(chunk, position);
+            ids[i] = termId;
+            freqs[i] = readVInt(chunk, position);
+        }
+
+        return new DocumentVector(ids, freqs, n, lengths.get(luceneDocId), termDict);
+    }
+
+    private static int readVInt(ByteBuffer buffer, int[] position) {
+
+        int p = position[0];
+        byte b = buffer.get(p++);
+        int value = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = buffer.get(p++);
+            value |= (b & 0x7f) << shift;
+        }
+        position[0] = p;
+        return value;
+    }
+
+    private static int writeVInt(byte[] bytes, int p, int value) {
+
+        while((value & ~0x7f) != 0) {
+            bytes[p++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[p++] = (byte) value;
+        return p;
+    }
+
+    /**
+     * Opens the sidecar if it is valid for the index; else (re)builds it first.
+     * @param indexReader The index reader
+     * @param termDict The dictionary of the field
+     * @param sidecarFile The sidecar file; if null, a temporary file is used
+     * @param buildMemory Memory budget in bytes for a batch of the build
+     * @return The forward index
+     * @throws IOException
+     */
+    public static ForwardIndex loadOrBuild(IndexReader indexReader, TermDictionary termDict,
+        File sidecarFile, long buildMemory) throws IOException {
+
+        if(null == sidecarFile) {
+            sidecarFile = File.createTempFile("forward", ".sidecar");
+            sidecarFile.deleteOnExit();
+            sidecarFile.delete();
+        }
+        else if(sidecarFile.exists()) {
+            ForwardIndex forwardIndex = open(indexReader, termDict, sidecarFile);
+            if(null != forwardIndex) {
+                System.out.println("Forward index read from: " + sidecarFile.getPath());
+                return forwardIndex;
+            }
+            System.err.println("Forward sidecar not valid for the index: " + sidecarFile.getPath());
+        }
+
+        System.out.println("Building forward sidecar: " + sidecarFile.getPath());
+        build(indexReader, termDict.getField(), sidecarFile, buildMemory);
+
+        return open(indexReader, termDict, sidecarFile);
+    }
+
+    /**
+     * Opens the sidecar by memory mapping its sections.
+     * @param indexReader The index the sidecar is to be used with
+     * @param termDict The dictionary of the field
+     * @param sidecarFile The sidecar file
+     * @return The forward index; null if the sidecar is not valid for the index
+     * @throws IOException
+     */
+    public static ForwardIndex open(IndexReader indexReader, TermDictionary termDict, File sidecarFile) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(sidecarFile, "r");
+            FileChannel channel = file.getChannel()) {
+
+            DataInputStream header = IndexSidecar.readHeader(channel, MAGIC, FORMAT_VERSION, indexReader, termDict.getField());
+            if(null == header)
+                return null;
+            int maxDoc = header.readInt();
+            int numTerms = header.readInt();
+            long dataLength = header.readLong();
+            int maxBlockLength = header.readInt();
+            if(numTerms != termDict.size()) {
+                System.err.println("Forward sidecar made with "+numTerms+" terms; dictionary has "+termDict.size());
+                return null;
+            }
+
+            long offset = channel.position();
+            ByteBuffer lengths = IndexSidecar.map(channel, offset, 4L * maxDoc);
+            offset += 4L * maxDoc;
+            ByteBuffer offsets = IndexSidecar.map(channel, offset, 8L * (maxDoc + 1));
+            offset += 8L * (maxDoc + 1);
+            if(offset + dataLength != channel.size())
+                return null;
+
+            int numChunks = (int) ((dataLength + CHUNK_MASK) >>> CHUNK_SHIFT);
+            ByteBuffer[] chunks = new ByteBuffer[Math.max(1, numChunks)];
+            chunks[0] = ByteBuffer.allocate(0);
+            for (int i = 0; i < numChunks; i++) {
+                long chunkStart = (long) i << CHUNK_SHIFT;
+                chunks[i] = IndexSidecar.map(channel, offset + chunkStart,
+                    Math.min(dataLength - chunkStart, (1L << CHUNK_SHIFT) + maxBlockLength));
+            }
+
+            return new ForwardIndex(termDict, maxDoc, lengths.asIntBuffer(), offsets.asLongBuffer(), chunks);
+        }
+    }
+
+    /**
+     * Builds the sidecar of the index from the postings of the field; the file is replaced atomically.<p>
+     * A first pass over the postings counts the unique terms and the length of
+     * each document; then the documents are taken in batches whose (term id, tf)
+     * pairs fit in the memory budget, with a pass over the postings per batch.
+     * @param indexReader The index reader
+     * @param field The field
+     * @param sidecarFile The sidecar file
+     * @param buildMemory Memory budget in bytes for a batch
+     * @throws IOException
+     */
+    public static void build(IndexReader indexReader, String field, File sidecarFile, long buildMemory) throws IOException {
+
+        int maxDoc = indexReader.maxDoc();
+        int[] numUniqueTerms = new int[maxDoc];
+        int[] lengths = new int[maxDoc];
+        int numTerms = 0;
+
+        Terms terms = MultiFields.getTerms(indexReader, field);
+        if(null == terms) {
+            System.err.println("Field: "+field);
+            System.err.println("Error ForwardIndex.build(): terms Null found");
+        }
+        else {
+            // ++ first pass: unique terms and length of each document
+            // (deleted documents are counted too, as in their term vectors)
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            while(termsEnum.next() != null) {
+                docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_FREQS);
+                int luceneDocId;
+                while((luceneDocId = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    numUniqueTerms[luceneDocId]++;
+                    lengths[luceneDocId] += docsEnum.freq();
+                }
+                numTerms++;
+            }
+            // --
+        }
+
+        long maxPairs = Math.max(1, buildMemory / 8);
+        long[] offsets = new long[maxDoc + 1];
+        int maxBlockLength = 0;
+        int numBatches = 0;
+
+        File dataFile = new File(sidecarFile.getPath() + ".data.tmp");
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 20))) {
+            long dataLength = 0;
+            byte[] block = new byte[64];
+            int lo = 0;
+            while(lo < maxDoc) {
+                // ++ the batch: documents lo to hi-1
+                int hi = lo;
+                long numPairs = 0;
+                while(hi < maxDoc && (hi == lo || numPairs + numUniqueTerms[hi] <= maxPairs))
+                    numPairs += numUniqueTerms[hi++];
+                int[] start = new int[hi - lo + 1];
+                for (int d = lo; d < hi; d++)
+                    start[d - lo + 1] = start[d - lo] + numUniqueTerms[d];
+                int[] fill = new int[hi - lo];
+                int[] ids = new int[(int) numPairs];
+                int[] freqs = new int[(int) numPairs];
+                // --
+
+                if(null != terms) {
+                    TermsEnum termsEnum = terms.iterator(null);
+                    DocsEnum docsEnum = null;
+                    int termId = 0;
+                    while(termsEnum.next() != null) {
+                        docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_FREQS);
+                        int luceneDocId = docsEnum.advance(lo);
+                        for (; luceneDocId < hi; luceneDocId = docsEnum.nextDoc()) {
+                            int p = start[luceneDocId - lo] + fill[luceneDocId - lo]++;
+                            ids[p] = termId;
+                            freqs[p] = docsEnum.freq();
+                        }
+                        termId++;
+                    }
+                }
+
+                // ++ the blocks of the batch
+                for (int d = lo; d < hi; d++) {
+                    int n = numUniqueTerms[d];
+                    if(block.length < 5 * (2 * n + 1))
+                        block = new byte[5 * (2 * n + 1)];
+                    int p = writeVInt(block, 0, n);
+                    int previous = 0;
+                    for (int k = start[d - lo]; k < start[d - lo + 1]; k++) {
+                        p = writeVInt(block, p, ids[k] - previous);
+                        p = writeVInt(block, p, freqs[k]);
+                        previous = ids[k];
+                    }
+                    data.write(block, 0, p);
+                    offsets[d] = dataLength;
+                    dataLength += p;
+                    maxBlockLength = Math.max(maxBlockLength, p);
+                }
+                // --
+                numBatches++;
+                lo = hi;
+            }
+            offsets[maxDoc] = dataLength;
+        }
+
+        ByteBuffer extra = ByteBuffer.allocate(4 + 4 + 8 + 4)
+            .putInt(maxDoc).putInt(numTerms).putLong(offsets[maxDoc]).putInt(maxBlockLength);
+
+        File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 20));
+            IndexSidecar.writeHeader(out, MAGIC, FORMAT_VERSION, indexReader, field, extra.array());
+            for (int luceneDocId = 0; luceneDocId < maxDoc; luceneDocId++)
+                out.writeInt(lengths[luceneDocId]);
+            for (int luceneDocId = 0; luceneDocId <= maxDoc; luceneDocId++)
+                out.writeLong(offsets[luceneDocId]);
+            out.flush();
+            try (FileChannel dataChannel = new FileInputStream(dataFile).getChannel()) {
+                FileChannel channel = fileOut.getChannel();
+                long position = 0, size = dataChannel.size();
+                while(position < size)
+                    position += dataChannel.transferTo(position, size - position, channel);
+            }
+        }
+        Files.delete(dataFile.toPath());
+        Files.move(tempFile.toPath(), sidecarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Forward sidecar written: " + maxDoc + " documents, " + numTerms + " terms, "
+            + offsets[maxDoc] + " bytes of data, in " + numBatches + " batch(es)");
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length < 2) {
+            System.out.println("Usage: java common.ForwardIndex <index-path> <field> [sidecar-path] [memory-MB]");
+            System.exit(1);
+        }
+        String indexPath = args[0];
+        String field = args[1];
+        File sidecarFile = (args.length > 2) ? new File(args[2]) :
+            IndexSidecar.getSidecarFile(indexPath, field + ".forward");
+        long buildMemory = ((args.length > 3) ? Long.parseLong(args[3]) : 256) << 20;
+
+        try (IndexReader indexReader = DirectoryReader.open(FSDirectory.open(new File(indexPath)))) {
+            build(indexReader, field, sidecarFile, buildMemory);
+        }
+    }
+}
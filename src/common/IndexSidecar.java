@@ -0,0 +1,161 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Common methods for the sidecar files: files kept next to the index,
+ * holding data precomputed from the index.<p>
+ * A sidecar starts with a header (magic, format version, fingerprint of the
+ * index, field), followed by the sidecar specific sections. A sidecar is
+ * rejected if the fingerprint does not match the index being read.
+ * @author dwaipayan
+ */
+public class IndexSidecar {
+
+    /**
+     * Returns the default path of a sidecar: next to the index directory,
+     * named after it, e.g. /store/trec678.content.termstats for the index /store/trec678/.
+     * @param indexPath Path of the index
+     * @param name Name of the sidecar, e.g. "content.termstats"
+     * @return The sidecar file
+     */
+    public static File getSidecarFile(String indexPath, String name) {
+
+        File indexFile = new File(indexPath).getAbsoluteFile();
+        return new File(indexFile.getParentFile(), indexFile.getName() + "." + name);
+    }
+
+    /**
+     * Returns the default path of a sidecar of the index of a reader.
+     * @param indexReader The index reader
+     * @param name Name of the sidecar, e.g. "docid.docids"
+     * @return The sidecar file; null if the index is not in a file system directory
+     */
+    public static File getSidecarFile(IndexReader indexReader, String name) {
+
+        if(indexReader instanceof DirectoryReader) {
+            Directory directory = ((DirectoryReader) indexReader).directory();
+            if(directory instanceof FSDirectory)
+                return getSidecarFile(((FSDirectory) directory).getDirectory().getPath(), name);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a fingerprint of the index, which changes whenever the index is changed.
+     * @param indexReader The index reader
+     * @return The fingerprint
+     * @throws IOException
+     */
+    public static String getIndexFingerprint(IndexReader indexReader) throws IOException {
+
+        StringBuilder fingerprint = new StringBuilder();
+        if(indexReader instanceof DirectoryReader) {
+            DirectoryReader directoryReader = (DirectoryReader) indexReader;
+            fingerprint.append(directoryReader.getIndexCommit().getSegmentsFileName()).append(":")
+                .append(directoryReader.getVersion()).append(":");
+        }
+        fingerprint.append(indexReader.maxDoc()).append(":").append(indexReader.numDocs());
+
+        return fingerprint.toString();
+    }
+
+    /**
+     * Writes the header of a sidecar.
+     * @param out The output at the start of the sidecar file
+     * @param magic Magic number of the sidecar type
+     * @param formatVersion Format version of the sidecar type
+     * @param indexReader The index from which the sidecar is made
+     * @param field The field of the index
+     * @param extra Sidecar specific header; may be null
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutputStream out, int magic, int formatVersion,
+        IndexReader indexReader, String field, byte[] extra) throws IOException {
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(magic);
+        header.writeInt(formatVersion);
+        header.writeUTF(getIndexFingerprint(indexReader));
+        header.writeUTF(field);
+        if(null != extra) {
+            header.writeInt(extra.length);
+            header.write(extra);
+        }
+        else
+            header.writeInt(0);
+        header.close();
+
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+    }
+
+    /**
+     * Reads and validates the header of a sidecar.
+     * @param channel Channel of the sidecar file
+     * @param magic Expected magic number
+     * @param formatVersion Expected format version
+     * @param indexReader The index being read
+     * @param field Expected field
+     * @return The sidecar specific header, with the channel positioned at
+     *  the first section; null if the sidecar is not valid for the index
+     * @throws IOException
+     */
+    public static DataInputStream readHeader(FileChannel channel, int magic, int formatVersion,
+        IndexReader indexReader, String field) throws IOException {
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        channel.position(0);
+        if(channel.read(lengthBuffer) != 4)
+            return null;
+        lengthBuffer.flip();
+        int headerLength = lengthBuffer.getInt();
+        if(headerLength < 0 || headerLength > channel.size() - 4)
+            return null;
+
+        ByteBuffer headerBuffer = ByteBuffer.allocate(headerLength);
+        while(headerBuffer.hasRemaining() && channel.read(headerBuffer) >= 0);
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBuffer.array()));
+
+        if(header.readInt() != magic || header.readInt() != formatVersion)
+            return null;
+        String fingerprint = header.readUTF();
+        if(!fingerprint.equals(getIndexFingerprint(indexReader))) {
+            System.err.println("Sidecar made from a different version of the index: "+fingerprint);
+            return null;
+        }
+        if(!header.readUTF().equals(field))
+            return null;
+        byte[] extra = new byte[header.readInt()];
+        header.readFully(extra);
+
+        return new DataInputStream(new ByteArrayInputStream(extra));
+    }
+
+    /**
+     * Memory maps a section of a sidecar.
+     * @param channel Channel of the sidecar file
+     * @param offset Start of the section
+     * @param length Length of the section in bytes
+     * @return The read-only mapped section
+     * @throws IOException
+     */
+    public static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+
+        if(length > Integer.MAX_VALUE)
+            throw new IOException("Sidecar section of "+length+" bytes is too large to be mapped");
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+}
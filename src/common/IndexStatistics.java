@@ -0,0 +1,98 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+
+/**
+ * Collection statistics of a field of an index, looked up term by term,
+ * for the vectors made by {@link DocumentVector#getDocumentVector(int, IndexReader)}.<p>
+ * The merged view of the field, the number of documents and the collection
+ * size are resolved once per reader; df and cf of a term are looked up only
+ * when asked for. One instance per (reader, field), shared among threads.
+ * @author dwaipayan
+ */
+public class IndexStatistics {
+
+    static final Map<IndexReader, Map<String, IndexStatistics>> providers = new WeakHashMap<>();
+
+    IndexReader     indexReader;
+    String          field;
+    int             docCount;       // total number of documents in the index
+    long            vocSize;        // total number of terms in the index in that field
+
+    /**
+     * Returns the statistics of a field of an index; made at the first call for the (reader, field).
+     * @param indexReader The index reader
+     * @param field The field
+     * @return The statistics
+     * @throws IOException
+     */
+    public static IndexStatistics get(IndexReader indexReader, String field) throws IOException {
+
+        synchronized(providers) {
+            Map<String, IndexStatistics> fieldStats = providers.get(indexReader);
+            if(null == fieldStats) {
+                fieldStats = new HashMap<>();
+                providers.put(indexReader, fieldStats);
+            }
+            IndexStatistics stats = fieldStats.get(field);
+            if(null == stats) {
+                stats = new IndexStatistics(indexReader, field);
+                fieldStats.put(field, stats);
+            }
+            return stats;
+        }
+    }
+
+    IndexStatistics(IndexReader indexReader, String field) throws IOException {
+
+        this.indexReader = indexReader;
+        this.field = field;
+        docCount = indexReader.maxDoc();
+        Terms terms = MultiFields.getTerms(indexReader, field);
+        if(null == terms) {
+            System.err.println("Field: "+field);
+            System.err.println("Error IndexStatistics(): terms Null found");
+        }
+        else
+            vocSize = terms.getSumTotalTermFreq();
+    }
+
+    public String getField() {return field;}
+    public int getDocCount() {return docCount;}
+    public long getVocabularySize() {return vocSize;}
+
+    public long getDF(String term) throws IOException {
+        return indexReader.docFreq(new Term(field, term));
+    }
+
+    public long getCF(String term) throws IOException {
+        return indexReader.totalTermFreq(new Term(field, term));
+    }
+
+    /**
+     * idf = log(#-of-Document-in-collection / (df+1) )
+     * @param term The term
+     * @return idf of the term
+     * @throws IOException
+     */
+    public double getIdf(String term) throws IOException {
+        return Math.log((float)(docCount)/(float)(getDF(term)+1));
+    }
+
+    /**
+     * cf(t) / col-size
+     * @param term The term
+     * @return Collection probability of the term
+     * @throws IOException
+     */
+    public float getCollectionProbability(String term) throws IOException {
+        return (float) getCF(term) / (float) vocSize;
+    }
+}
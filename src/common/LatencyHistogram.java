@@ -0,0 +1,99 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed memory, for long running processes;
+ * safe to be recorded into by several threads.<p>
+ * The latencies are kept in microseconds, in buckets on a log scale with
+ * 8 buckets per power of 2; hence the percentiles are the upper ends of
+ * their buckets, within 12.5% of the latencies.
+ * @author dwaipayan
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    AtomicLong      count = new AtomicLong();
+    AtomicLong      sum = new AtomicLong();     // in microseconds
+    AtomicLong      max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+
+        long micros = Math.max(1, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while(micros > (current = max.get()) && !max.compareAndSet(current, micros))
+            ;
+    }
+
+    /**
+     * The bucket of a latency: the power of 2, and the next bits after the highest one.
+     */
+    static int bucket(long micros) {
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (((micros << SUB_BUCKET_BITS) >>> exponent) & (SUB_BUCKETS - 1));
+        return exponent * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The highest latency of a bucket.
+     */
+    static long upperEnd(int bucket) {
+
+        int exponent = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+        // the lower end of the next bucket (rounded up), less one
+        return (((((long) SUB_BUCKETS + subBucket + 1) << exponent) + SUB_BUCKETS - 1) >>> SUB_BUCKET_BITS) - 1;
+    }
+
+    /**
+     * @return Number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns a percentile of the latencies recorded.
+     * @param p The percentile (0-100)
+     * @return The percentile, in microseconds; 0 if none recorded
+     */
+    public long getPercentile(double p) {
+
+        long total = count.get();
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int b = 0; b < counts.length(); b++) {
+            seen += counts.get(b);
+            if(seen >= rank)
+                return Math.min(upperEnd(b), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * The count, mean, percentiles and max of the latencies, in ms.
+     */
+    @Override
+    public String toString() {
+
+        long total = count.get();
+        return String.format("count: %d mean: %.3f p50: %.3f p90: %.3f p99: %.3f p99.9: %.3f max: %.3f (ms)",
+            total, (total == 0) ? 0 : sum.get() / 1000.0 / total,
+            getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+            getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, max.get() / 1000.0);
+    }
+}
@@ -0,0 +1,56 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * PerTermStat of a term in a document, with the idf and the collection
+ * probability of the term looked up in the {@link IndexStatistics} at first use.
+ * @author dwaipayan
+ */
+class LazyPerTermStat extends PerTermStat {
+
+    IndexStatistics stats;
+    boolean         idfSet;
+    boolean         normCFSet;
+
+    LazyPerTermStat(String term, long tf, IndexStatistics stats) {
+        super(term, tf, 1);
+        this.stats = stats;
+    }
+
+    @Override
+    public double getIDF() {
+        if(!idfSet) {
+            try {
+                setIDF(stats.getIdf(t));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return super.getIDF();
+    }
+
+    @Override
+    public double getNormalizedCF() {
+        if(!normCFSet) {
+            try {
+                setNormalizedCF(stats.getCollectionProbability(t));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return super.getNormalizedCF();
+    }
+
+    @Override
+    public void setIDF(double idf) {
+        super.setIDF(idf);
+        idfSet = true;
+    }
+
+    @Override
+    public void setNormalizedCF(double norm_cf) {
+        super.setNormalizedCF(norm_cf);
+        normCFSet = true;
+    }
+}
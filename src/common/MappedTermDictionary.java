@@ -0,0 +1,93 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * {@link TermDictionary} over the memory mapped columns of a term statistics
+ * sidecar (see {@link TermStatsSidecar}).<p>
+ * Nothing is copied on the heap; the lookups read the mapped buffers with
+ * absolute gets only, hence can be shared among threads.
+ * @author dwaipayan
+ */
+public class MappedTermDictionary extends TermDictionary {
+
+    ByteBuffer      termBytesBuffer;
+    IntBuffer       termStartBuffer;
+    LongBuffer      cfBuffer;
+    IntBuffer       dfBuffer;
+    DoubleBuffer    idfBuffer;
+    DoubleBuffer    normCFBuffer;
+    IntBuffer       hashTableBuffer;
+
+    MappedTermDictionary(String field, long docCount, long vocSize, int size,
+        ByteBuffer termBytes, IntBuffer termStart, LongBuffer cf, IntBuffer df,
+        DoubleBuffer idf, DoubleBuffer normCF, IntBuffer hashTable) {
+
+        this.field = field;
+        this.docCount = docCount;
+        this.vocSize = vocSize;
+        this.size = size;
+        this.termBytesBuffer = termBytes;
+        this.termStartBuffer = termStart;
+        this.cfBuffer = cf;
+        this.dfBuffer = df;
+        this.idfBuffer = idf;
+        this.normCFBuffer = normCF;
+        this.hashTableBuffer = hashTable;
+        this.hashMask = hashTable.capacity() - 1;
+    }
+
+    @Override
+    public int getId(BytesRef term) {
+
+        int slot = hash(term.bytes, term.offset, term.length) & hashMask;
+        int id;
+        while((id = hashTableBuffer.get(slot)) != -1) {
+            if(termEquals(id, term))
+                return id;
+            slot = (slot + 1) & hashMask;
+        }
+        return -1;
+    }
+
+    private boolean termEquals(int id, BytesRef term) {
+
+        int start = termStartBuffer.get(id);
+        if(termStartBuffer.get(id+1) - start != term.length)
+            return false;
+        for (int i = 0; i < term.length; i++) {
+            if(termBytesBuffer.get(start+i) != term.bytes[term.offset+i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String getTerm(int id) {
+
+        int start = termStartBuffer.get(id);
+        byte[] bytes = new byte[termStartBuffer.get(id+1) - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = termBytesBuffer.get(start+i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getCF(int id) {return cfBuffer.get(id);}
+    @Override
+    public int getDF(int id) {return dfBuffer.get(id);}
+    @Override
+    public double getIDF(int id) {return idfBuffer.get(id);}
+
+    /**
+     * Normalized collection frequency: cf(t) / |colSize|
+     * @param id The term id
+     * @return The normalized cf, as stored in the sidecar
+     */
+    public double getNormalizedCF(int id) {return normCFBuffer.get(id);}
+}
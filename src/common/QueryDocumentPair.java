@@ -18,9 +18,6 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -51,10 +48,10 @@ public class QueryDocumentPair {
     FileWriter      resFileWriter;  // the res file writer
     List<TRECQuery> queries;
     TRECQueryParser trecQueryparser;
-    TRECQueryParser doidParser;
     int             simFuncChoice;
     float           param1, param2;
     CollectionStatistics cs;
+    DocidIndex      docidIndex;     // docid to lucene docid resolution
     HashMap<String, TRECQuery> queryHashMap;
 
     public QueryDocumentPair(String propPath) throws IOException, Exception {
@@ -95,7 +92,6 @@ public class QueryDocumentPair {
 
         /* constructing the query */
         trecQueryparser = new TRECQueryParser(queryPath, analyzer);
-        doidParser = new TRECQueryParser(queryPath, null, FIELD_ID);
         queries = constructQueries();
         /* constructed the query */
 
@@ -121,7 +117,15 @@ public class QueryDocumentPair {
 
         lambda = Float.parseFloat(prop.getProperty("LM_Lambda", "0.6"));
         cs = new CollectionStatistics(indexPath, "content");
-        cs.buildCollectionStat();
+        if(Boolean.parseBoolean(prop.getProperty("termStats.sidecar", "false")))
+            cs.buildCollectionStat((null != prop.getProperty("termStats.path")) ?
+                new File(prop.getProperty("termStats.path")) :
+                IndexSidecar.getSidecarFile(indexPath, "content.termstats"));
+        else
+            cs.buildCollectionStat();
+        docidIndex = DocidIndex.loadOrBuild(reader, (null != prop.getProperty("docidIndex.path")) ?
+            new File(prop.getProperty("docidIndex.path")) :
+            IndexSidecar.getSidecarFile(indexPath, FIELD_ID + ".docids"));
         queryHashMap = new HashMap<>();
     }
 
@@ -151,24 +155,18 @@ public class QueryDocumentPair {
         }
     }
 
+    /**
+     * Returns the lucene docid of a docid, from the docid index.
+     * @param docid The docid
+     * @return The lucene docid; -1 if not found
+     * @throws Exception 
+     */
     public int getLuceneDocid(String docid) throws Exception {
 
-        ScoreDoc[] hits = null;
-        TopDocs topDocs = null;
-
-        TopScoreDocCollector collector = TopScoreDocCollector.create(5, true);
-        Query luceneQuery = doidParser.getAnalyzedQuery(docid);
-        //System.out.println(luceneQuery.toString("content"));
-        searcher.search(luceneQuery, collector);
-        topDocs = collector.topDocs();
-        hits = topDocs.scoreDocs;
-        if(hits == null) {
+        int luceneDocid = docidIndex.getLuceneDocid(docid);
+        if(luceneDocid < 0)
             System.out.println("Nothing found");
-            return -1;
-        }
-        else {
-            return hits[0].doc;
-        }
+        return luceneDocid;
     }
 
     public static void main(String[] args) throws IOException, Exception {
@@ -0,0 +1,176 @@
+package common;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the results of the queries in TREC-res format, in a thread of its own.<p>
+ * The query threads only hand over the ranked docids with the scores;
+ * formatting and writing are done by the writer thread, in the order in which
+ * the results are added. The res files are written through large buffers
+ * over file channels, optionally gzip compressed.
+ * @author dwaipayan
+ */
+public class ResultWriter {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Result of a query, for one res file.
+     */
+    public static class QueryResult {
+
+        String      qid;
+        String[]    docids;
+        double[]    scores;
+        /**
+         * The scores are floats, to be written as such.
+         */
+        boolean     floatScores;
+        String      runName;
+
+        public QueryResult(String qid, String[] docids, double[] scores, boolean floatScores, String runName) {
+            this.qid = qid;
+            this.docids = docids;
+            this.scores = scores;
+            this.floatScores = floatScores;
+            this.runName = runName;
+        }
+
+        /**
+         * Appends the result in TREC-res format.
+         * @param resBuffer The buffer
+         * @return The buffer
+         */
+        public StringBuilder format(StringBuilder resBuffer) {
+
+            for (int i = 0; i < docids.length; ++i) {
+                resBuffer.append(qid).append("\tQ0\t").
+                    append(docids[i]).append("\t").
+                    append((i)).append("\t");
+                if(floatScores)
+                    resBuffer.append((float)scores[i]);
+                else
+                    resBuffer.append(scores[i]);
+                resBuffer.append("\t").
+                    append(runName).append("\n");
+            }
+            return resBuffer;
+        }
+    }
+
+    /**
+     * An entry of the queue: the result and the index of its res file.
+     */
+    static class Entry {
+        int         file;
+        QueryResult result;
+
+        Entry(int file, QueryResult result) {
+            this.file = file;
+            this.result = result;
+        }
+    }
+
+    static final Entry END = new Entry(-1, null);
+
+    Writer[]                resWriters;
+    BlockingQueue<Entry>    queue;
+    Thread                  writerThread;
+    /**
+     * Error of the writer thread, reported to the query threads.
+     */
+    volatile IOException    error;
+
+    /**
+     * Opens the res files and starts the writer thread.
+     * @param resPaths Paths of the res files
+     * @param gzip Compress the res files
+     * @param queueCapacity Maximum number of results waiting to be written
+     * @throws IOException
+     */
+    public ResultWriter(String[] resPaths, boolean gzip, int queueCapacity) throws IOException {
+
+        resWriters = new Writer[resPaths.length];
+        for (int i = 0; i < resPaths.length; i++) {
+            OutputStream out = Channels.newOutputStream(FileChannel.open(Paths.get(resPaths[i]),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            if(gzip)
+                out = new GZIPOutputStream(out, 1 << 16);
+            resWriters[i] = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder resBuffer = new StringBuilder();
+                try {
+                    Entry entry;
+                    while((entry = queue.take()) != END) {
+                        if(null != error)
+                            continue;   // after an error, only draining, not to block the query threads
+                        resBuffer.setLength(0);
+                        try {
+                            resWriters[entry.file].append(entry.result.format(resBuffer));
+                        } catch (IOException ex) {
+                            error = ex;
+                        } catch (RuntimeException | Error ex) {
+                            // a failure of formatting too has to reach the query threads
+                            error = new IOException("Writing a result failed", ex);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    error = new IOException(ex);
+                }
+            }
+        }, "result-writer");
+        writerThread.start();
+    }
+
+    /**
+     * Adds the result of a query to be written; blocks while the queue is full.
+     * @param file Index of the res file
+     * @param result The result
+     * @throws IOException If the writer thread has failed
+     */
+    public void add(int file, QueryResult result) throws IOException {
+
+        if(null != error)
+            throw error;
+        try {
+            queue.put(new Entry(file, result));
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Writes the results waiting in the queue, stops the writer thread and closes the res files.
+     * @throws IOException If the writing has failed
+     */
+    public void close() throws IOException {
+
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+        for (Writer resWriter : resWriters)
+            resWriter.close();
+        if(null != error)
+            throw error;
+    }
+}
@@ -0,0 +1,145 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searches the segments of an index in parallel, on a pool shared by all
+ * the queries (property: search.threads).<p>
+ * Each segment is scored as IndexSearcher.search(query, collector) does
+ * with an in-order TopScoreDocCollector: the same weight, the same scorers,
+ * hence the same scores; and the top documents of the segments are merged
+ * with the same tie break (the lower docid first). Hence the result is the
+ * same as that of the sequential search.<p>
+ * The pool can also be used for other per segment work (see {@link #invokeAll}).
+ * @author dwaipayan
+ */
+public class SegmentParallelSearcher {
+
+    IndexSearcher   indexSearcher;
+    List<AtomicReaderContext> leaves;
+    ExecutorService executor;
+
+    /**
+     * @param indexSearcher The searcher, with the similarity set
+     * @param numThreads Number of threads of the pool
+     */
+    public SegmentParallelSearcher(IndexSearcher indexSearcher, int numThreads) {
+
+        this.indexSearcher = indexSearcher;
+        this.leaves = indexSearcher.getIndexReader().leaves();
+        // daemon threads: the pool does not keep the JVM alive
+        executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "segment-search-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        System.out.println("Segment parallel search: " + leaves.size() + " segments; " + numThreads + " threads");
+    }
+
+    /**
+     * Returns the top documents of a query.
+     * @param query The query
+     * @param numHits Number of documents to retrieve
+     * @return The top documents, sorted by score (and by docid in ties)
+     * @throws IOException
+     */
+    public TopDocs search(Query query, final int numHits) throws IOException {
+
+        final Weight weight = indexSearcher.createNormalizedWeight(query);
+        List<Callable<TopDocs>> tasks = new ArrayList<>(leaves.size());
+        for (final AtomicReaderContext leaf : leaves) {
+            tasks.add(new Callable<TopDocs>() {
+                @Override
+                public TopDocs call() throws IOException {
+                    TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, true);
+                    collector.setNextReader(leaf);
+                    BulkScorer scorer = weight.bulkScorer(leaf, !collector.acceptsDocsOutOfOrder(), leaf.reader().getLiveDocs());
+                    if(null != scorer)
+                        scorer.score(collector);
+                    return collector.topDocs();
+                }
+            });
+        }
+
+        // ++ merging: the top numHits of all, by decreasing score, then increasing docid
+        int totalHits = 0;
+        List<ScoreDoc> all = new ArrayList<>();
+        for (TopDocs leafTopDocs : invokeAll(tasks)) {
+            totalHits += leafTopDocs.totalHits;
+            all.addAll(Arrays.asList(leafTopDocs.scoreDocs));
+        }
+        ScoreDoc[] hits = all.toArray(new ScoreDoc[all.size()]);
+        Arrays.sort(hits, new Comparator<ScoreDoc>() {
+            @Override
+            public int compare(ScoreDoc t, ScoreDoc t1) {
+                int c = Float.compare(t1.score, t.score);
+                return (c != 0) ? c : Integer.compare(t.doc, t1.doc);
+            }
+        });
+        if(hits.length > numHits)
+            hits = Arrays.copyOf(hits, numHits);
+        // --
+
+        return new TopDocs(totalHits, hits, (hits.length == 0) ? Float.NaN : hits[0].score);
+    }
+
+    /**
+     * Runs tasks on the pool, and waits for all of them.
+     * @param tasks The tasks
+     * @return The results, in the order of the tasks
+     * @throws IOException If a task failed with it
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : executor.invokeAll(tasks))
+                results.add(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        return results;
+    }
+
+    /**
+     * @return The segments of the index
+     */
+    public List<AtomicReaderContext> getLeaves() {
+        return leaves;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -9,7 +9,14 @@ import static common.CommonVariables.FIELD_BOW;
 import org.xml.sax.*;
 import org.xml.sax.helpers.*;
 import javax.xml.parsers.*;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.index.Term;
@@ -29,6 +36,23 @@ public class TRECQueryParser extends DefaultHandler {
     public List<TRECQuery>  queries;
     final static String[] tags = {"num", "title", "desc", "narr"};
 
+    /**
+     * Formats of the query file: TREC topics in xml; or one query per line, 
+     * the qid and the title separated by a tab (or the first white space).
+     */
+    public static final String FORMAT_TREC = "trec";
+    public static final String FORMAT_LINES = "lines";
+
+    /**
+     * Queue of the topics parsed, in the streaming mode; null otherwise.
+     */
+    BlockingQueue<TRECQuery> stream;
+    /**
+     * Marks the end of the stream, or the error in parsing.
+     */
+    static final TRECQuery END = new TRECQuery();
+    volatile Exception streamError;
+
     /**
      * Constructor: 
      *      fieldToSearch is initialized with 'content';
@@ -88,6 +112,151 @@ public class TRECQueryParser extends DefaultHandler {
         saxParser.parse(queryFilePath, this);
     }
 
+    /**
+     * Returns the queries of the file one at a time, as they are read, without
+     * keeping all of them: the topics in xml are parsed in a thread of their
+     * own, at most bufferSize ahead of the caller; the lines are read as they
+     * are taken. An error in reading is thrown by the iterator as a RuntimeException.
+     * @param format {@link #FORMAT_TREC} or {@link #FORMAT_LINES}
+     * @param bufferSize Number of topics in xml parsed ahead of the caller
+     * @return The queries, in the order of the file
+     * @throws IOException 
+     * @throws SAXException 
+     */
+    public Iterator<TRECQuery> queryFileStream(String format, int bufferSize) throws IOException, SAXException {
+
+        if(FORMAT_LINES.equals(format))
+            return new LineQueryStream(new BufferedReader(new InputStreamReader(
+                new FileInputStream(queryFilePath), StandardCharsets.UTF_8)));
+        if(!FORMAT_TREC.equals(format))
+            System.err.println("Unknown query format: " + format + "; using " + FORMAT_TREC);
+
+        // the handler of the parsing thread has its own buffers
+        final TRECQueryParser reader = new TRECQueryParser(queryFilePath, analyzer, fieldToSearch);
+        reader.stream = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        Thread parsing = new Thread("topic-reader") {
+            @Override
+            public void run() {
+                try {
+                    reader.queryFileParse();
+                } catch (Exception ex) {
+                    reader.streamError = ex;
+                } finally {
+                    try {
+                        reader.stream.put(END);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            }
+        };
+        parsing.setDaemon(true);
+        parsing.start();
+        return reader.new XmlQueryStream();
+    }
+
+    /**
+     * The topics of the parsing thread.
+     */
+    private class XmlQueryStream implements Iterator<TRECQuery> {
+
+        TRECQuery   next;
+        boolean     done;
+
+        @Override
+        public boolean hasNext() {
+
+            if(null == next && !done) {
+                try {
+                    next = stream.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+                if(END == next) {
+                    next = null;
+                    done = true;
+                    if(null != streamError)
+                        throw new RuntimeException("Error in parsing the queries: " + queryFilePath, streamError);
+                }
+            }
+            return null != next;
+        }
+
+        @Override
+        public TRECQuery next() {
+
+            if(!hasNext())
+                throw new NoSuchElementException();
+            TRECQuery query = next;
+            next = null;
+            return query;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The queries of a file of one query per line; the empty lines, and those
+     * starting with '#', are skipped.
+     */
+    private static class LineQueryStream implements Iterator<TRECQuery> {
+
+        BufferedReader  reader;
+        TRECQuery       next;
+
+        LineQueryStream(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            try {
+                String line;
+                while(null == next && null != reader && null != (line = reader.readLine())) {
+                    line = line.trim();
+                    if(line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    int split = line.indexOf('\t');
+                    if(split < 0)
+                        split = line.indexOf(' ');
+                    if(split < 0) {
+                        System.err.println("Query without title: " + line);
+                        continue;
+                    }
+                    next = new TRECQuery();
+                    next.qid = line.substring(0, split).trim();
+                    next.qtitle = line.substring(split + 1).trim();
+                }
+                if(null == next && null != reader) {
+                    reader.close();
+                    reader = null;
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Error in reading the queries", ex);
+            }
+            return null != next;
+        }
+
+        @Override
+        public TRECQuery next() {
+
+            if(!hasNext())
+                throw new NoSuchElementException();
+            TRECQuery query = next;
+            next = null;
+            return query;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         if (qName.equalsIgnoreCase("top"))
@@ -114,7 +283,15 @@ public class TRECQueryParser extends DefaultHandler {
             buff.setLength(0);
         }
         else if (qName.equalsIgnoreCase("top")) {
-            queries.add(query);
+            if(null != stream) {
+                try {
+                    stream.put(query);      // waits while the buffer is full
+                } catch (InterruptedException ex) {
+                    throw new SAXException(ex);
+                }
+            }
+            else
+                queries.add(query);
         }        
     }
 
@@ -0,0 +1,296 @@
+package common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Dictionary of all the terms of a field of the index.<p>
+ * Each term is given a stable integer id (ordinal), which is its position
+ * in the sorted TermsEnum of the field. The cf and df of the terms are kept
+ * in primitive arrays, indexed by the term id.<p>
+ * Built once per index; read-only after construction, hence can be shared
+ * among threads.
+ * @author dwaipayan
+ */
+public class TermDictionary {
+
+    /**
+     * Field for which the dictionary is made.
+     */
+    String      field;
+    /**
+     * Total number of documents in the collection.
+     */
+    long        docCount;
+    /**
+     * Total number of terms in the collection 'in that field'.
+     */
+    long        vocSize;
+    /**
+     * Number of unique terms in the field.
+     */
+    int         size;
+
+    /**
+     * Bytes of all the terms, one after another, in term id order.
+     */
+    byte[]      termBytes;
+    /**
+     * Start of each term in termBytes; termStart[size] is the end of the last term.
+     */
+    int[]       termStart;
+    /**
+     * cf of each term, indexed by the term id.
+     */
+    long[]      cf;
+    /**
+     * df of each term, indexed by the term id.
+     */
+    int[]       df;
+
+    /**
+     * Open addressing hash table of term ids, keyed by the hash of the term bytes; -1 for empty slot.
+     */
+    int[]       hashTable;
+    int         hashMask;
+
+    /**
+     * Constructor for the subclasses that keep the terms elsewhere.
+     */
+    protected TermDictionary() {
+    }
+
+    /**
+     * Constructor: from the terms (in sorted order) with their statistics.
+     * @param field The field of the index
+     * @param docCount Total number of documents in the collection
+     * @param vocSize Total number of terms in the collection 'in that field'
+     * @param size Number of terms
+     * @param termBytes Bytes of the terms, one after another
+     * @param termStart Start of each term in termBytes, with termStart[size] the end of the last term
+     * @param cf cf of the terms
+     * @param df df of the terms
+     */
+    TermDictionary(String field, long docCount, long vocSize, int size,
+        byte[] termBytes, int[] termStart, long[] cf, int[] df) {
+
+        this.field = field;
+        this.docCount = docCount;
+        this.vocSize = vocSize;
+        this.size = size;
+        this.termBytes = termBytes;
+        this.termStart = termStart;
+        this.cf = cf;
+        this.df = df;
+        buildHashTable();
+    }
+
+    /**
+     * Returns a dictionary of some terms of a collection only, with their
+     * statistics given by the caller (e.g. summed over the shards of the
+     * collection). The ids are in the same order as in the dictionary of all
+     * the terms of the collection.
+     * @param field The field
+     * @param docCount Total number of documents in the collection
+     * @param vocSize Total number of terms in the collection 'in that field'
+     * @param terms The terms, in sorted (BytesRef) order
+     * @param cf cf of the terms
+     * @param df df of the terms
+     * @return The dictionary
+     */
+    public static TermDictionary of(String field, long docCount, long vocSize,
+        BytesRef[] terms, long[] cf, int[] df) {
+
+        int length = 0;
+        for (BytesRef term : terms)
+            length += term.length;
+        byte[] termBytes = new byte[length];
+        int[] termStart = new int[terms.length + 1];
+        int end = 0;
+        for (int id = 0; id < terms.length; id++) {
+            System.arraycopy(terms[id].bytes, terms[id].offset, termBytes, end, terms[id].length);
+            termStart[id] = end;
+            end += terms[id].length;
+        }
+        termStart[terms.length] = end;
+        return new TermDictionary(field, docCount, vocSize, terms.length, termBytes, termStart, cf, df);
+    }
+
+    /**
+     * Constructor: walks the TermsEnum of 'field' and assigns the ids.
+     * @param indexReader The index reader
+     * @param field The field of the index for which the dictionary will be made
+     * @throws IOException
+     */
+    public TermDictionary(IndexReader indexReader, String field) throws IOException {
+
+        this.field = field;
+        docCount = indexReader.maxDoc();      // total number of documents in the index
+
+        Fields fields = MultiFields.getFields(indexReader);
+        Terms terms = (null == fields) ? null : fields.terms(field);
+        if(null == terms) {
+            System.err.println("Field: "+field);
+            System.err.println("Error TermDictionary(): terms Null found");
+        }
+        vocSize = (null == terms) ? 0 : terms.getSumTotalTermFreq();  // total number of terms in the index in that field
+        // the collection probabilities are cf/vocSize
+        if(vocSize <= 0)
+            throw new IOException("No terms in the field: " + field);
+        if(terms.size() > Integer.MAX_VALUE)
+            throw new IOException("Too many terms in the field: " + field + ": " + terms.size());
+
+        int capacity = (terms.size() > 0) ? (int) terms.size() : 1024;
+        // about 8 bytes per term to start with; grown as needed
+        termBytes = new byte[(int) Math.min(8L * capacity, ArrayUtil.MAX_ARRAY_LENGTH)];
+        termStart = new int[capacity + 1];
+        cf = new long[capacity];
+        df = new int[capacity];
+
+        TermsEnum iterator = terms.iterator(null);
+        BytesRef byteRef;
+        int end = 0;
+
+        while((byteRef = iterator.next()) != null) {
+        //* for each word in the collection
+            if(size == cf.length) {
+                int newLength = ArrayUtil.oversize(size + 1, 8);
+                cf = Arrays.copyOf(cf, newLength);
+                df = Arrays.copyOf(df, newLength);
+                termStart = Arrays.copyOf(termStart, newLength + 1);
+            }
+            if(end + byteRef.length > termBytes.length)
+                termBytes = ArrayUtil.grow(termBytes, end + byteRef.length);
+            System.arraycopy(byteRef.bytes, byteRef.offset, termBytes, end, byteRef.length);
+            termStart[size] = end;
+            end += byteRef.length;
+            cf[size] = iterator.totalTermFreq();    // cf of 't'
+            df[size] = iterator.docFreq();          // df of 't'
+            size++;
+        }
+        termStart[size] = end;
+
+        buildHashTable();
+    }
+
+    /**
+     * Size of the hash table for a number of terms.
+     * @param numTerms Number of terms
+     * @return A power of 2, at least 2*numTerms
+     */
+    static int hashTableSize(int numTerms) {
+        return Integer.highestOneBit(Math.max(numTerms, 1) * 2 - 1) << 1;
+    }
+
+    /**
+     * Hash of the bytes of a term; to be used for the hash table.
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return Hash of the term
+     */
+    static int hash(byte[] bytes, int offset, int length) {
+        return StringHelper.murmurhash3_x86_32(bytes, offset, length, 0);
+    }
+
+    private void buildHashTable() {
+
+        int tableSize = hashTableSize(size);
+        hashTable = new int[tableSize];
+        Arrays.fill(hashTable, -1);
+        hashMask = tableSize - 1;
+
+        for (int id = 0; id < size; id++) {
+            int slot = hash(termBytes, termStart[id], termStart[id+1] - termStart[id]) & hashMask;
+            while(hashTable[slot] != -1)
+                slot = (slot + 1) & hashMask;
+            hashTable[slot] = id;
+        }
+    }
+
+    /**
+     * Returns the id of a term.
+     * @param term The term
+     * @return The id of the term; -1 if the term is not in the dictionary
+     */
+    public int getId(BytesRef term) {
+
+        int slot = hash(term.bytes, term.offset, term.length) & hashMask;
+        int id;
+        while((id = hashTable[slot]) != -1) {
+            if(termEquals(id, term))
+                return id;
+            slot = (slot + 1) & hashMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the id of a term.
+     * @param term The term
+     * @return The id of the term; -1 if the term is not in the dictionary
+     */
+    public int getId(String term) {
+        return getId(new BytesRef(term));
+    }
+
+    private boolean termEquals(int id, BytesRef term) {
+
+        int start = termStart[id];
+        if(termStart[id+1] - start != term.length)
+            return false;
+        for (int i = 0; i < term.length; i++) {
+            if(termBytes[start+i] != term.bytes[term.offset+i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the term with the id.
+     * @param id The term id
+     * @return The term
+     */
+    public String getTerm(int id) {
+        return new String(termBytes, termStart[id], termStart[id+1] - termStart[id], StandardCharsets.UTF_8);
+    }
+
+    public long getCF(int id) {return cf[id];}
+    public int getDF(int id) {return df[id];}
+
+    /**
+     * idf = log(#docCount / (df+1) )
+     * @param id The term id
+     * @return idf of the term
+     */
+    public double getIDF(int id) {
+        return Math.log((float)(docCount)/(float)(getDF(id)+1));
+    }
+
+    /**
+     * cf(t) / |collection size|
+     * @param id The term id
+     * @return The collection probability of the term
+     */
+    public float getCollectionProbability(int id) {
+        return (float) getCF(id) / (float) vocSize;
+    }
+
+    public String getField() {return field;}
+    public long getDocCount() {return docCount;}
+    public long getVocSize() {return vocSize;}
+    /**
+     * Returns the number of unique terms in the dictionary; term ids are in [0, size()).
+     * @return Number of unique terms
+     */
+    public int size() {return size;}
+}
@@ -0,0 +1,334 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds and reads the term statistics sidecar of a field of the index.<p>
+ * The sidecar has the terms of the field in sorted order (a term block with
+ * the start offset of each term), parallel columns of cf (long), df (int),
+ * idf (double) and norm_cf (double), and a hash table of the term ids.
+ * Term ids are the same as those of {@link TermDictionary}.<p>
+ * It is built once, in parallel over the segments of the index, and read
+ * by memory mapping, with nothing copied on the heap.
+ * @author dwaipayan
+ */
+public class TermStatsSidecar {
+
+    static final int MAGIC          = 0x52465453;   // "RFTS"
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Opens the sidecar if it is valid for the index; else (re)builds it first.
+     * @param indexReader The index reader
+     * @param field The field of the index
+     * @param sidecarFile The sidecar file
+     * @param numThreads Number of segments to be read in parallel, when building
+     * @return The term dictionary over the sidecar
+     * @throws IOException
+     */
+    public static TermDictionary loadOrBuild(IndexReader indexReader, String field,
+        File sidecarFile, int numThreads) throws IOException {
+
+        if(sidecarFile.exists()) {
+            TermDictionary termDict = open(indexReader, field, sidecarFile);
+            if(null != termDict) {
+                System.out.println("Term statistics read from: " + sidecarFile.getPath());
+                return termDict;
+            }
+            System.err.println("Term statistics sidecar not valid for the index: " + sidecarFile.getPath());
+        }
+
+        System.out.println("Building term statistics sidecar: " + sidecarFile.getPath());
+        write(indexReader, build(indexReader, field, sidecarFile.getAbsoluteFile().getParentFile(), numThreads), sidecarFile);
+
+        return open(indexReader, field, sidecarFile);
+    }
+
+    /**
+     * Opens the sidecar by memory mapping its columns.
+     * @param indexReader The index the sidecar is to be used with
+     * @param field The field of the index
+     * @param sidecarFile The sidecar file
+     * @return The term dictionary over the sidecar; null if the sidecar
+     *  is not valid for the index (e.g. the index has changed since)
+     * @throws IOException
+     */
+    public static MappedTermDictionary open(IndexReader indexReader, String field, File sidecarFile) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(sidecarFile, "r");
+            FileChannel channel = file.getChannel()) {
+
+            DataInputStream header = IndexSidecar.readHeader(channel, MAGIC, FORMAT_VERSION, indexReader, field);
+            if(null == header)
+                return null;
+            long docCount = header.readLong();
+            long vocSize = header.readLong();
+            int numTerms = header.readInt();
+            long termBytesLength = header.readLong();
+            int hashTableSize = header.readInt();
+
+            long offset = channel.position();
+            ByteBuffer termStart = IndexSidecar.map(channel, offset, 4L * (numTerms + 1));
+            offset += 4L * (numTerms + 1);
+            ByteBuffer termBytes = IndexSidecar.map(channel, offset, termBytesLength);
+            offset += termBytesLength;
+            ByteBuffer cf = IndexSidecar.map(channel, offset, 8L * numTerms);
+            offset += 8L * numTerms;
+            ByteBuffer df = IndexSidecar.map(channel, offset, 4L * numTerms);
+            offset += 4L * numTerms;
+            ByteBuffer idf = IndexSidecar.map(channel, offset, 8L * numTerms);
+            offset += 8L * numTerms;
+            ByteBuffer normCF = IndexSidecar.map(channel, offset, 8L * numTerms);
+            offset += 8L * numTerms;
+            ByteBuffer hashTable = IndexSidecar.map(channel, offset, 4L * hashTableSize);
+            offset += 4L * hashTableSize;
+            if(offset != channel.size())
+                return null;
+
+            return new MappedTermDictionary(field, docCount, vocSize, numTerms,
+                termBytes, termStart.asIntBuffer(), cf.asLongBuffer(), df.asIntBuffer(),
+                idf.asDoubleBuffer(), normCF.asDoubleBuffer(), hashTable.asIntBuffer());
+        }
+    }
+
+    /**
+     * Writes the sidecar of a dictionary; the file is replaced atomically.
+     * @param indexReader The index from which the dictionary is made
+     * @param termDict The dictionary
+     * @param sidecarFile The sidecar file
+     * @throws IOException
+     */
+    public static void write(IndexReader indexReader, TermDictionary termDict, File sidecarFile) throws IOException {
+
+        int numTerms = termDict.size;
+        long termBytesLength = termDict.termStart[numTerms];
+
+        ByteArrayOutputStream extraBytes = new ByteArrayOutputStream();
+        DataOutputStream extra = new DataOutputStream(extraBytes);
+        extra.writeLong(termDict.docCount);
+        extra.writeLong(termDict.vocSize);
+        extra.writeInt(numTerms);
+        extra.writeLong(termBytesLength);
+        extra.writeInt(termDict.hashTable.length);
+        extra.close();
+
+        File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20))) {
+            IndexSidecar.writeHeader(out, MAGIC, FORMAT_VERSION, indexReader, termDict.field, extraBytes.toByteArray());
+            for (int id = 0; id <= numTerms; id++)
+                out.writeInt(termDict.termStart[id]);
+            out.write(termDict.termBytes, 0, (int) termBytesLength);
+            for (int id = 0; id < numTerms; id++)
+                out.writeLong(termDict.cf[id]);
+            for (int id = 0; id < numTerms; id++)
+                out.writeInt(termDict.df[id]);
+            for (int id = 0; id < numTerms; id++)
+                out.writeDouble(termDict.getIDF(id));
+            for (int id = 0; id < numTerms; id++)
+                out.writeDouble((double)termDict.cf[id] / (double)termDict.vocSize);
+            for (int slot = 0; slot < termDict.hashTable.length; slot++)
+                out.writeInt(termDict.hashTable[slot]);
+        }
+        Files.move(tempFile.toPath(), sidecarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Term statistics sidecar written: " + numTerms + " terms");
+    }
+
+    /**
+     * Makes the dictionary of a field, reading the segments of the index in parallel.<p>
+     * The terms of each segment are spilled in a temporary file; the files
+     * are then merged in sorted order, adding up the cf and df of the same term.
+     * @param indexReader The index reader
+     * @param field The field of the index
+     * @param tempDir Directory for the temporary files
+     * @param numThreads Number of segments to be read in parallel
+     * @return The dictionary, with the same term ids as {@link TermDictionary#TermDictionary(IndexReader, String)}
+     * @throws IOException
+     */
+    public static TermDictionary build(IndexReader indexReader, final String field, final File tempDir, int numThreads) throws IOException {
+
+        List<AtomicReaderContext> leaves = indexReader.leaves();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, leaves.size())));
+        List<Future<File>> spills = new ArrayList<>();
+        long vocSize = 0;
+
+        try {
+            for (final AtomicReaderContext leaf : leaves) {
+                Terms terms = leaf.reader().terms(field);
+                if(null == terms)
+                    continue;
+                vocSize += terms.getSumTotalTermFreq();
+                spills.add(pool.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return spillSegment(leaf, field, tempDir);
+                    }
+                }));
+            }
+
+            if(vocSize <= 0)
+                throw new IOException("No terms in the field: " + field);
+
+            List<File> spillFiles = new ArrayList<>();
+            for (Future<File> spill : spills)
+                spillFiles.add(spill.get());
+            return merge(spillFiles, field, indexReader.maxDoc(), vocSize);
+        } catch (Exception ex) {
+            throw (ex instanceof IOException) ? (IOException) ex : new IOException(ex);
+        } finally {
+            pool.shutdownNow();
+            for (Future<File> spill : spills) {
+                if(spill.isDone() && !spill.isCancelled()) {
+                    try {
+                        spill.get().delete();
+                    } catch (Exception ex) {
+                        // the spill file was not made
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the terms of a segment, in sorted order, with their cf and df, in a temporary file.
+     */
+    private static File spillSegment(AtomicReaderContext leaf, String field, File tempDir) throws IOException {
+
+        File spillFile = File.createTempFile("termstats-seg" + leaf.ord + "-", ".tmp", tempDir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16))) {
+            TermsEnum iterator = leaf.reader().terms(field).iterator(null);
+            BytesRef byteRef;
+            while((byteRef = iterator.next()) != null) {
+                out.writeInt(byteRef.length);
+                out.write(byteRef.bytes, byteRef.offset, byteRef.length);
+                out.writeLong(iterator.totalTermFreq());
+                out.writeInt(iterator.docFreq());
+            }
+        }
+        return spillFile;
+    }
+
+    /**
+     * Reader of a segment spill file, positioned at one term.
+     */
+    private static class SpillReader {
+        DataInputStream in;
+        BytesRef        term = new BytesRef(16);
+        long            cf;
+        int             df;
+
+        SpillReader(File spillFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException ex) {
+                in.close();
+                return false;
+            }
+            term.bytes = ArrayUtil.grow(term.bytes, length);
+            term.length = length;
+            in.readFully(term.bytes, 0, length);
+            cf = in.readLong();
+            df = in.readInt();
+            return true;
+        }
+    }
+
+    private static boolean sameTerm(byte[] termBytes, int start, int end, BytesRef term) {
+
+        if(end - start != term.length)
+            return false;
+        for (int i = 0; i < term.length; i++) {
+            if(termBytes[start+i] != term.bytes[term.offset+i])
+                return false;
+        }
+        return true;
+    }
+
+    private static TermDictionary merge(List<File> spillFiles, String field, long docCount, long vocSize) throws IOException {
+
+        PriorityQueue<SpillReader> queue = new PriorityQueue<>(Math.max(1, spillFiles.size()), new Comparator<SpillReader>() {
+            @Override
+            public int compare(SpillReader r1, SpillReader r2) {
+                return r1.term.compareTo(r2.term);
+            }
+        });
+        for (File spillFile : spillFiles) {
+            SpillReader reader = new SpillReader(spillFile);
+            if(reader.next())
+                queue.add(reader);
+        }
+
+        byte[] termBytes = new byte[1 << 16];
+        int[] termStart = new int[1025];
+        long[] cf = new long[1024];
+        int[] df = new int[1024];
+        int size = 0;
+        int end = 0;
+
+        while(!queue.isEmpty()) {
+            SpillReader top = queue.poll();
+            int length = top.term.length;
+
+            if(size > 0 && sameTerm(termBytes, termStart[size-1], end, top.term)) {
+                // same term as the last one, from another segment
+                cf[size-1] += top.cf;
+                df[size-1] += top.df;
+            }
+            else {
+                if(size == cf.length) {
+                    int newLength = ArrayUtil.oversize(size + 1, 8);
+                    cf = Arrays.copyOf(cf, newLength);
+                    df = Arrays.copyOf(df, newLength);
+                    termStart = Arrays.copyOf(termStart, newLength + 1);
+                }
+                if(end + length > termBytes.length)
+                    termBytes = ArrayUtil.grow(termBytes, end + length);
+                System.arraycopy(top.term.bytes, 0, termBytes, end, length);
+                termStart[size] = end;
+                end += length;
+                cf[size] = top.cf;
+                df[size] = top.df;
+                size++;
+                termStart[size] = end;
+            }
+
+            if(top.next())
+                queue.add(top);
+        }
+
+        return new TermDictionary(field, docCount, vocSize, size, termBytes, termStart, cf, df);
+    }
+}